@@ -0,0 +1,417 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class runs a command file without prompts: java Cafe db port --batch file.
+ *
+ * One command per line, fields separated by '|', '#' starts a comment:
+ *
+ *   user|login|password|phone[|type]           create a user (type defaults to Customer)
+ *   order|login|item[:comment]|item[:comment]  place an order with one or more items
+ *   status|orderid|itemName|status             set the status of an item
+ *   paid|orderid                               mark an order paid
+ *
+ * An orderid of '$' means the order of the last order command; when that
+ * order was rejected or failed, the command fails too.
+ *
+ * Commands run in groups of cafe.batch.groupSize (default 1000), one
+ * transaction per group.  In a group the users are inserted first, then
+ * the orders and their items, then the status and paid updates, each
+ * kind as one JDBC batch; the orderids of the group come from one
+ * sequence query, and the order totals are computed by one UPDATE.  If a
+ * batch fails, the group is rolled back and run again command by
+ * command, each under a savepoint, so only the bad commands fail.
+ *
+ * Every command gets a result line: "line N: ok ..." or "line N: error ...".
+ */
+public class BatchRunner {
+
+   private static final String INSERT_USER =
+      "INSERT INTO Users (phoneNum, login, password, favItems, type) VALUES (?, ?, ?, '', ?) " +
+      "ON CONFLICT (login) DO NOTHING";
+   private static final String NEXT_ORDERIDS =
+      "SELECT nextval(pg_get_serial_sequence('orders', 'orderid')) FROM generate_series(1, ?)";
+   private static final String INSERT_ORDER =
+      "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES (?, ?, false, now(), 0)";
+   private static final String INSERT_ITEM =
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES (?, ?, now(), ?, ?)";
+   private static final String SET_TOTALS =
+      "UPDATE Orders o SET total = t.total FROM " +
+      "(SELECT s.orderid, round(sum(m.price::numeric), 2) AS total FROM ItemStatus s " +
+      "JOIN Menu m ON m.itemName = s.itemName WHERE s.orderid = ANY(?) GROUP BY s.orderid) t " +
+      "WHERE o.orderid = t.orderid";
+   private static final String SET_STATUS =
+      "UPDATE ItemStatus SET status = ?, lastUpdated = now() WHERE orderid = ? AND itemName = ?";
+   private static final String SET_PAID =
+      "UPDATE Orders SET paid = true WHERE orderid = ?";
+
+   /**
+    * One line of the command file.
+    */
+   private static class Command {
+      final int line;
+      final String kind;
+      final String[] fields;
+      // for order: the items and comments; for status and paid: the order referred to by '$'
+      List<String> items;
+      List<String> comments;
+      Command ref;
+      int orderid = -1;
+      // set when the line itself is wrong; such a command never runs
+      boolean invalid = false;
+      String result;
+
+      Command (int line, String kind, String[] fields) {
+         this.line = line;
+         this.kind = kind;
+         this.fields = fields;
+      }//end Command
+
+      int targetOrder () {
+         return this.ref != null ? this.ref.orderid : Integer.parseInt(this.fields[1].trim());
+      }//end targetOrder
+   }//end Command
+
+   private final Cafe _esql;
+   private final int _groupSize = Math.max(1, Integer.getInteger("cafe.batch.groupSize", 1000));
+   private int _ok = 0;
+   private int _failed = 0;
+
+   /**
+    * Creates a batch runner
+    *
+    * @param esql the database access object
+    */
+   public BatchRunner (Cafe esql) {
+      this._esql = esql;
+   }//end BatchRunner
+
+   /**
+    * Method to run a command file and print a result per command.
+    *
+    * @param file the command file
+    * @return the number of failed commands
+    * @throws java.io.IOException when the file could not be read
+    * @throws java.sql.SQLException when the database failed outside a command
+    */
+   public int run (String file) throws IOException, SQLException {
+      long start = System.currentTimeMillis();
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+      List<Command> group = new ArrayList<Command>();
+      Command lastOrder = null;
+      int lineNo = 0;
+      try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            lineNo++;
+            int hash = line.indexOf('#');
+            if (hash >= 0)
+               line = line.substring(0, hash);
+            if (line.trim().isEmpty())
+               continue;
+            String[] fields = line.split("\\|", -1);
+            Command cmd = new Command(lineNo, fields[0].trim().toLowerCase(), fields);
+            parse(cmd, lastOrder);
+            // a rejected order still takes '$', so what follows it fails too
+            if (cmd.kind.equals("order"))
+               lastOrder = cmd;
+            group.add(cmd);
+            if (group.size() >= this._groupSize) {
+               runGroup(group, out);
+               group.clear();
+            }//end if
+         }//end while
+      }
+      if (!group.isEmpty())
+         runGroup(group, out);
+      long millis = Math.max(1, System.currentTimeMillis() - start);
+      out.write(String.format("%d commands ok, %d failed in %d ms (%.0f commands/s)%n",
+         this._ok, this._failed, millis, (this._ok + this._failed) * 1000.0 / millis));
+      out.flush();
+      return this._failed;
+   }//end run
+
+   // checks the fields; a command that cannot run gets its error result here
+   private void parse (Command cmd, Command lastOrder) {
+      String[] f = cmd.fields;
+      try{
+         switch (cmd.kind) {
+            case "user":
+               if (f.length < 4)
+                  throw new IllegalArgumentException("expected user|login|password|phone[|type]");
+               if (f.length > 4)
+                  Session.Role.fromColumn(f[4]);
+               break;
+            case "order":
+               if (f.length < 3)
+                  throw new IllegalArgumentException("expected order|login|item[:comment]|...");
+               cmd.items = new ArrayList<String>();
+               cmd.comments = new ArrayList<String>();
+               for (int i = 2; i < f.length; i++) {
+                  int colon = f[i].indexOf(':');
+                  String item = (colon < 0 ? f[i] : f[i].substring(0, colon)).trim();
+                  if (!this._esql.getMenu().contains(item))
+                     throw new IllegalArgumentException("unknown item '" + item + "'");
+                  if (cmd.items.contains(item))
+                     throw new IllegalArgumentException("item '" + item + "' twice in one order");
+                  cmd.items.add(item);
+                  cmd.comments.add(colon < 0 ? "" : f[i].substring(colon + 1));
+               }//end for
+               break;
+            case "status":
+            case "paid":
+               if (f.length < (cmd.kind.equals("status") ? 4 : 2))
+                  throw new IllegalArgumentException(cmd.kind.equals("status")
+                     ? "expected status|orderid|itemName|status" : "expected paid|orderid");
+               if (f[1].trim().equals("$")) {
+                  if (lastOrder == null)
+                     throw new IllegalArgumentException("'$' before any order");
+                  cmd.ref = lastOrder;
+               } else {
+                  Integer.parseInt(f[1].trim());
+               }//end if
+               break;
+            default:
+               throw new IllegalArgumentException("unknown command '" + cmd.kind + "'");
+         }//end switch
+      }catch (IllegalArgumentException e){
+         cmd.invalid = true;
+         cmd.result = "error " + e.getMessage();
+      }//end try
+   }//end parse
+
+   private void runGroup (List<Command> group, Writer out) throws IOException, SQLException {
+      try (ConnectionPool.PooledConnection conn = this._esql.getPool().borrow()) {
+         Connection c = conn.connection();
+         c.setAutoCommit(false);
+         try{
+            runBatched(conn, group);
+            c.commit();
+         }catch (SQLException e){
+            c.rollback();
+            // a statement a schema change made stale is prepared again
+            if (StatementCache.isStale(e))
+               conn.statements().clear();
+            // find the bad commands one at a time
+            for (Command cmd : group) {
+               if (cmd.invalid)
+                  continue;
+               cmd.result = null;
+               cmd.orderid = -1;
+            }//end for
+            runOneByOne(conn, group);
+            c.commit();
+         }//end try
+      }
+      for (Command cmd : group) {
+         if (cmd.result.startsWith("ok"))
+            this._ok++;
+         else
+            this._failed++;
+         out.write("line " + cmd.line + ": " + cmd.result + "\n");
+      }//end for
+   }//end runGroup
+
+   private void runBatched (ConnectionPool.PooledConnection conn, List<Command> group) throws SQLException {
+      List<Command> users = new ArrayList<Command>();
+      List<Command> orders = new ArrayList<Command>();
+      List<Command> statuses = new ArrayList<Command>();
+      List<Command> paid = new ArrayList<Command>();
+      for (Command cmd : group) {
+         if (cmd.result != null || orderFailed(cmd))
+            continue;
+         switch (cmd.kind) {
+            case "user": users.add(cmd); break;
+            case "order": orders.add(cmd); break;
+            case "status": statuses.add(cmd); break;
+            case "paid": paid.add(cmd); break;
+         }//end switch
+      }//end for
+
+      if (!users.isEmpty()) {
+         PreparedStatement stmt = conn.statements().prepare(INSERT_USER);
+         for (Command cmd : users) {
+            bindUser(stmt, cmd);
+            stmt.addBatch();
+         }//end for
+         int[] counts = stmt.executeBatch();
+         for (int i = 0; i < counts.length; i++)
+            users.get(i).result = counts[i] == 0 ? "error login exists" : "ok user " + users.get(i).fields[1].trim();
+      }//end if
+
+      if (!orders.isEmpty()) {
+         // one round trip for all the orderids of the group
+         PreparedStatement ids = conn.statements().prepare(NEXT_ORDERIDS);
+         ids.setInt(1, orders.size());
+         try (ResultSet rs = ids.executeQuery()) {
+            for (Command cmd : orders) {
+               rs.next();
+               cmd.orderid = rs.getInt(1);
+            }//end for
+         }
+         PreparedStatement order = conn.statements().prepare(INSERT_ORDER);
+         PreparedStatement item = conn.statements().prepare(INSERT_ITEM);
+         for (Command cmd : orders) {
+            order.setInt(1, cmd.orderid);
+            order.setString(2, cmd.fields[1].trim());
+            order.addBatch();
+            for (int i = 0; i < cmd.items.size(); i++) {
+               item.setInt(1, cmd.orderid);
+               item.setString(2, cmd.items.get(i));
+               item.setString(3, Cafe.INITIAL_ITEM_STATUS);
+               item.setString(4, cmd.comments.get(i));
+               item.addBatch();
+            }//end for
+         }//end for
+         order.executeBatch();
+         item.executeBatch();
+         setTotals(conn, orders);
+         for (Command cmd : orders)
+            cmd.result = "ok order " + cmd.orderid;
+      }//end if
+
+      if (!statuses.isEmpty()) {
+         PreparedStatement stmt = conn.statements().prepare(SET_STATUS);
+         for (Command cmd : statuses) {
+            bindStatus(stmt, cmd);
+            stmt.addBatch();
+         }//end for
+         int[] counts = stmt.executeBatch();
+         for (int i = 0; i < counts.length; i++)
+            statuses.get(i).result = counts[i] == 0 ? "error no such order item" : "ok status";
+      }//end if
+
+      if (!paid.isEmpty()) {
+         PreparedStatement stmt = conn.statements().prepare(SET_PAID);
+         for (Command cmd : paid) {
+            stmt.setInt(1, cmd.targetOrder());
+            stmt.addBatch();
+         }//end for
+         int[] counts = stmt.executeBatch();
+         for (int i = 0; i < counts.length; i++)
+            paid.get(i).result = counts[i] == 0 ? "error no such order" : "ok paid " + paid.get(i).targetOrder();
+      }//end if
+   }//end runBatched
+
+   // the slow path after a failed batch: every command alone under a savepoint
+   private void runOneByOne (ConnectionPool.PooledConnection conn, List<Command> group) throws SQLException {
+      Connection c = conn.connection();
+      for (Command cmd : group) {
+         if (cmd.result != null)
+            continue;
+         if (orderFailed(cmd))
+            continue;
+         Savepoint sp = c.setSavepoint();
+         try{
+            cmd.result = runOne(conn, cmd);
+            c.releaseSavepoint(sp);
+         }catch (SQLException e){
+            c.rollback(sp);
+            if (cmd.kind.equals("order"))
+               cmd.orderid = -1;
+            cmd.result = "error " + e.getMessage();
+         }//end try
+      }//end for
+   }//end runOneByOne
+
+   // a '$' command whose order was rejected or failed gets its error result here
+   private static boolean orderFailed (Command cmd) {
+      if (cmd.ref == null || cmd.ref.result == null || cmd.ref.orderid >= 0)
+         return false;
+      cmd.result = "error the order on line " + cmd.ref.line + " failed";
+      return true;
+   }//end orderFailed
+
+   private String runOne (ConnectionPool.PooledConnection conn, Command cmd) throws SQLException {
+      PreparedStatement stmt;
+      switch (cmd.kind) {
+         case "user":
+            stmt = conn.statements().prepare(INSERT_USER);
+            bindUser(stmt, cmd);
+            return stmt.executeUpdate() == 0 ? "error login exists" : "ok user " + cmd.fields[1].trim();
+         case "order": {
+            PreparedStatement ids = conn.statements().prepare(NEXT_ORDERIDS);
+            ids.setInt(1, 1);
+            try (ResultSet rs = ids.executeQuery()) {
+               rs.next();
+               cmd.orderid = rs.getInt(1);
+            }
+            stmt = conn.statements().prepare(INSERT_ORDER);
+            stmt.setInt(1, cmd.orderid);
+            stmt.setString(2, cmd.fields[1].trim());
+            stmt.executeUpdate();
+            stmt = conn.statements().prepare(INSERT_ITEM);
+            for (int i = 0; i < cmd.items.size(); i++) {
+               stmt.setInt(1, cmd.orderid);
+               stmt.setString(2, cmd.items.get(i));
+               stmt.setString(3, Cafe.INITIAL_ITEM_STATUS);
+               stmt.setString(4, cmd.comments.get(i));
+               stmt.addBatch();
+            }//end for
+            stmt.executeBatch();
+            List<Command> one = new ArrayList<Command>();
+            one.add(cmd);
+            setTotals(conn, one);
+            return "ok order " + cmd.orderid;
+         }
+         case "status":
+            stmt = conn.statements().prepare(SET_STATUS);
+            bindStatus(stmt, cmd);
+            return stmt.executeUpdate() == 0 ? "error no such order item" : "ok status";
+         default:
+            stmt = conn.statements().prepare(SET_PAID);
+            stmt.setInt(1, cmd.targetOrder());
+            return stmt.executeUpdate() == 0 ? "error no such order" : "ok paid " + cmd.targetOrder();
+      }//end switch
+   }//end runOne
+
+   private static void bindUser (PreparedStatement stmt, Command cmd) throws SQLException {
+      String[] f = cmd.fields;
+      stmt.setString(1, f[3].trim());
+      stmt.setString(2, f[1].trim());
+      stmt.setString(3, f[2].trim());
+      stmt.setString(4, f.length > 4 ? Session.Role.fromColumn(f[4]).column : Session.Role.CUSTOMER.column);
+   }//end bindUser
+
+   private static void bindStatus (PreparedStatement stmt, Command cmd) throws SQLException {
+      stmt.setString(1, cmd.fields[3].trim());
+      stmt.setInt(2, cmd.targetOrder());
+      stmt.setString(3, cmd.fields[2].trim());
+   }//end bindStatus
+
+   // the totals of the orders, summed on the server in one statement
+   private static void setTotals (ConnectionPool.PooledConnection conn, List<Command> orders) throws SQLException {
+      Integer[] ids = new Integer[orders.size()];
+      for (int i = 0; i < ids.length; i++)
+         ids[i] = orders.get(i).orderid;
+      Array array = conn.connection().createArrayOf("integer", ids);
+      PreparedStatement stmt = conn.statements().prepare(SET_TOTALS);
+      stmt.setArray(1, array);
+      stmt.executeUpdate();
+   }//end setTotals
+
+}//end BatchRunner
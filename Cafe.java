@@ -12,9 +12,10 @@
 /*ideas
 if something is not found output a message*/
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Array;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -24,11 +25,18 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.Date;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.sql.Timestamp;
 import java.io.*;
+import java.math.BigDecimal;
 
 //private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
 
@@ -39,11 +47,29 @@ import java.io.*;
  */
 public class Cafe {
 
-   //login info for later use
-   private static String authorisedUser = null;
+   // pool of physical database connections shared by all sessions.
+   private ConnectionPool _pool = null;
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // process-local copy of the Menu table, kept fresh through LISTEN/NOTIFY
+   private MenuCache _menu = null;
+
+   // statements slower than -Dcafe.slowlog.thresholdMs, with their plans
+   private SlowQueryLog _slowLog = null;
+
+   // sends the queries of read-only actions to replicas, see ReplicaRouter
+   private ReplicaRouter _router = null;
+
+   // local write-behind journal of order changes, null unless -Dcafe.journal.dir is set
+   private OrderJournal _journal = null;
+
+   // prefix and fuzzy search over the cached menu, rebuilt when it changes
+   private volatile MenuSearchIndex _menuSearch = null;
+
+   // rows fetched per round trip when printing a result, 0 fetches all at once
+   private int _printFetchSize = Integer.getInteger("cafe.print.fetchSize", 500);
+
+   // rows printed before pausing for the user, 0 prints without pausing
+   private int _printPageSize = Integer.getInteger("cafe.print.pageSize", 0);
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -58,6 +84,18 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe (String dbname, String dbport) throws SQLException {
+      this(dbname, dbport, ConnectionPool.Config.fromSystemProperties());
+   }//end Cafe
+
+   /**
+    * Creates a new instance of Cafe with explicit connection pool settings
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the PostgreSQL server listens on
+    * @param poolConfig the connection pool settings
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe (String dbname, String dbport, ConnectionPool.Config poolConfig) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -65,8 +103,28 @@ public class Cafe {
          String url = "jdbc:postgresql://127.0.0.1:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url);
+         // obtain the pool of physical connections
+         this._pool = new ConnectionPool(url, poolConfig);
+         this._router = new ReplicaRouter(this._pool, ReplicaRouter.urlsFromSystemProperties(dbname), poolConfig);
+         CafeMetrics.startLogFromSystemProperties();
+         this._slowLog = new SlowQueryLog(this._pool);
+
+         // bring the schema and the indexes up to date; a no-op when current
+         if (Boolean.parseBoolean(System.getProperty("cafe.migrate", "true")))
+            SchemaMigrator.migrate(this._pool);
+
+         // load the menu once and follow the changes other clients make
+         this._menu = new MenuCache(this._pool);
+         this._menu.addChangeListener(new Runnable() {
+            public void run () {
+               Cafe.this._menuSearch = MenuSearchIndex.build(Cafe.this._menu.getAll());
+            }
+         });
+         this._menu.reload();
+         this._menu.startListening(url);
+
+         // takes orders on local disk first when enabled, see OrderJournal
+         this._journal = OrderJournal.fromSystemProperties(this._pool);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -75,22 +133,106 @@ public class Cafe {
       }//end catch
    }//end Cafe
 
+   /**
+    * @return the connection pool, e.g. to inspect its metrics
+    */
+   public ConnectionPool getPool () {
+      return this._pool;
+   }//end getPool
+
+   /**
+    * @return the router choosing between the primary and the replicas
+    */
+   public ReplicaRouter getRouter () {
+      return this._router;
+   }//end getRouter
+
+   /**
+    * Method to set how printed results are fetched and shown.
+    *
+    * @param fetchSize rows fetched per round trip, 0 to fetch the whole result at once
+    * @param pageSize rows shown before pausing for the user, 0 to never pause
+    */
+   public void setPrintOptions (int fetchSize, int pageSize) {
+      this._printFetchSize = fetchSize;
+      this._printPageSize = pageSize;
+   }//end setPrintOptions
+
+   /**
+    * @return the cached menu
+    */
+   public MenuCache getMenu () {
+      return this._menu;
+   }//end getMenu
+
+   /**
+    * @return the order journal, or null when orders go straight to the database
+    */
+   public OrderJournal getJournal () {
+      return this._journal;
+   }//end getJournal
+
+   /**
+    * @return the search index over the current menu
+    */
+   public MenuSearchIndex getMenuSearch () {
+      return this._menuSearch;
+   }//end getMenuSearch
+
+   /**
+    * Prints the names a user probably meant when an item name is not on
+    * the menu.
+    *
+    * @param input the name the user typed
+    */
+   public void printSuggestions (String input) {
+      List<String> names = this._menuSearch.suggest(input, 5);
+      if (!names.isEmpty())
+         System.out.println("Did you mean: " + String.join(", ", names) + "?");
+   }//end printSuggestions
+
+   // metrics of the data-access methods, published over JMX by CafeMetrics
+   private static final CafeMetrics.Operation M_EXECUTE_UPDATE = CafeMetrics.query ("executeUpdate");
+   private static final CafeMetrics.Operation M_PRINT_RESULT = CafeMetrics.query ("executeQueryAndPrintResult");
+   private static final CafeMetrics.Operation M_RETURN_RESULT = CafeMetrics.query ("executeQueryAndReturnResult");
+   private static final CafeMetrics.Operation M_EXECUTE_QUERY = CafeMetrics.query ("executeQuery");
+   private static final CafeMetrics.Operation M_EXISTS = CafeMetrics.query ("exists");
+   private static final CafeMetrics.Operation M_SCALAR = CafeMetrics.query ("queryScalar");
+   private static final CafeMetrics.Operation M_SINGLE_ROW = CafeMetrics.query ("querySingleRow");
+   private static final CafeMetrics.Operation M_PLACE_ORDER = CafeMetrics.query ("placeOrder");
+   private static final CafeMetrics.Operation M_TRANSACTION = CafeMetrics.query ("executeInTransaction");
+   private static final CafeMetrics.Operation M_REORDER = CafeMetrics.query ("reorderFavorites");
+
+   /*
+    * Records a statement that succeeded in the metrics and, when it was
+    * slower than the threshold, in the slow query log.
+    */
+   private void done (CafeMetrics.Operation op, long start, long rows, String sql, Object[] params) {
+      op.record (start, rows);
+      this._slowLog.check (System.nanoTime () - start, sql, params);
+   }//end done
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow ()) {
+         // issues the update instruction on the cached statement object
+         int rows = update (conn, sql, params);
+         this._router.wroteNow ();
+         done (M_EXECUTE_UPDATE, start, rows, sql, params);
+         return rows;
+      }catch (SQLException e){
+         M_EXECUTE_UPDATE.failed (start);
+         throw e;
+      }
    }//end executeUpdate
 
    /**
@@ -98,135 +240,813 @@ public class Cafe {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ()) {
+         PreparedStatement stmt = prepare (conn, query, params);
+         // a fetch size only streams through a server-side cursor inside a transaction
+         if (this._printFetchSize > 0)
+            conn.connection ().setAutoCommit (false);
+         stmt.setFetchSize (this._printFetchSize);
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+         // issues the query instruction
+         try (ResultSet rs = stmt.executeQuery ()) {
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            int rowCount = 0;
+
+            // iterates through the result set and output them to standard out.
+            TablePrinter out = new TablePrinter (this._printPageSize, in);
+            boolean outputHeader = true;
+            while (rs.next()){
+               if(outputHeader){
+                  for(int i = 1; i <= numCol; i++){
+                     out.cell (rsmd.getColumnName(i));
+                  }
+                  out.endRow ();
+                  outputHeader = false;
+               }
+               for (int i=1; i<=numCol; ++i)
+                  out.cell (rs.getString (i));
+               ++rowCount;
+               if (!out.endRow ())
+                  break;
+            }//end while
+            out.flush ();
+            done (M_PRINT_RESULT, start, rowCount, query, params);
+            return rowCount;
+         }catch (SQLException e){
+            // a stale plan would fail the same way on every later call
+            if (StatementCache.isStale (e))
+               conn.statements ().evict (query);
+            throw e;
+         }catch (IOException e){
+            throw new SQLException ("Unable to print the query result: " + e.getMessage (), e);
+         }
+      }catch (SQLException e){
+         M_PRINT_RESULT.failed (start);
+         throw e;
+      }
    }//end executeQuery
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * method issues the query to the DBMS and returns the results column by
+    * column, with numbers, money and timestamps kept in primitive arrays
+    * and strings dictionary encoded.
     *
-    * @param query the input query string
-    * @return the query result as a list of records
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result in columnar form
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
- 
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
- 
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
- 
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+   public ColumnarResult executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           // issues the query instruction
+           ResultSet rs = query (conn, query, params)) {
+         ColumnarResult result = ColumnarResult.from (rs);
+         done (M_RETURN_RESULT, start, result.getRowCount (), query, params);
+         return result;
+      }catch (SQLException e){
+         M_RETURN_RESULT.failed (start);
+         throw e;
+      }
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           // issues the query instruction
+           ResultSet rs = query (conn, query, params)) {
+
+         int rowCount = 0;
+
+         // iterates through the result set and count nuber of results.
+         if(rs.next()){
+            rowCount++;
+         }//end if
+         done (M_EXECUTE_QUERY, start, rowCount, query, params);
+         return rowCount;
+      }catch (SQLException e){
+         M_EXECUTE_QUERY.failed (start);
+         throw e;
+      }
+   }//end executeQuery
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Reads the current row of a result set into a value.
+    */
+   public interface RowMapper<T> {
+      T map (ResultSet rs) throws SQLException;
+   }//end RowMapper
 
-       int rowCount = 0;
+   /**
+    * Method to test whether a query returns any row.  Write the query as
+    * "SELECT 1 FROM ... WHERE ... LIMIT 1" so only a single constant
+    * crosses the wire.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return true when the query returns at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           ResultSet rs = query (conn, query, params)) {
+         boolean found = rs.next ();
+         done (M_EXISTS, start, found ? 1 : 0, query, params);
+         return found;
+      }catch (SQLException e){
+         M_EXISTS.failed (start);
+         throw e;
+      }
+   }//end exists
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to read the first column of the first row as an int.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the value, or empty when the query returns no row or NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OptionalInt queryScalarInt (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           ResultSet rs = query (conn, query, params)) {
+         boolean found = rs.next ();
+         int value = found ? rs.getInt (1) : 0;
+         OptionalInt result = found && !rs.wasNull () ? OptionalInt.of (value) : OptionalInt.empty ();
+         done (M_SCALAR, start, found ? 1 : 0, query, params);
+         return result;
+      }catch (SQLException e){
+         M_SCALAR.failed (start);
+         throw e;
+      }
+   }//end queryScalarInt
+
+   /**
+    * Method to read the first column of the first row as a long.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the value, or empty when the query returns no row or NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OptionalLong queryScalarLong (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           ResultSet rs = query (conn, query, params)) {
+         boolean found = rs.next ();
+         long value = found ? rs.getLong (1) : 0;
+         OptionalLong result = found && !rs.wasNull () ? OptionalLong.of (value) : OptionalLong.empty ();
+         done (M_SCALAR, start, found ? 1 : 0, query, params);
+         return result;
+      }catch (SQLException e){
+         M_SCALAR.failed (start);
+         throw e;
+      }
+   }//end queryScalarLong
+
+   /**
+    * Method to read the first column of the first row as an exact decimal.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the value, or null when the query returns no row or SQL NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public BigDecimal queryScalarBigDecimal (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           ResultSet rs = query (conn, query, params)) {
+         boolean found = rs.next ();
+         BigDecimal value = found ? rs.getBigDecimal (1) : null;
+         done (M_SCALAR, start, found ? 1 : 0, query, params);
+         return value;
+      }catch (SQLException e){
+         M_SCALAR.failed (start);
+         throw e;
+      }
+   }//end queryScalarBigDecimal
+
+   /**
+    * Method to read the first column of the first row as a string.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the value, or null when the query returns no row or SQL NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String queryScalarString (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           ResultSet rs = query (conn, query, params)) {
+         boolean found = rs.next ();
+         String value = found ? rs.getString (1) : null;
+         done (M_SCALAR, start, found ? 1 : 0, query, params);
+         return value;
+      }catch (SQLException e){
+         M_SCALAR.failed (start);
+         throw e;
+      }
+   }//end queryScalarString
+
+   /**
+    * Method to read the first row of a query through a mapper.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper turns the row into a value
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped row, or null when the query returns no row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T querySingleRow (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._router.borrowForRead ();
+           ResultSet rs = query (conn, query, params)) {
+         boolean found = rs.next ();
+         T value = found ? mapper.map (rs) : null;
+         done (M_SINGLE_ROW, start, found ? 1 : 0, query, params);
+         return value;
+      }catch (SQLException e){
+         M_SINGLE_ROW.failed (start);
+         throw e;
+      }
+   }//end querySingleRow
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current 
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  Note that currval is
+    * per database session, so with pooled connections it is only
+    * meaningful on the connection that called nextval.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+      // currval returns a row or fails
+      return queryScalarInt ("SELECT currval(?::regclass)", sequence).getAsInt ();
    }
 
+   // status given to an item when it is added to an order
+   public static final String INITIAL_ITEM_STATUS = "Hasn't started";
+
+   /*
+    * Creates an order for one menu item in a single round trip.  The price
+    * is read from Menu on the server, the ORDERS row returns its generated
+    * orderid, and the ItemStatus row is inserted from that id, all inside
+    * one statement and therefore one transaction.  No row is written if
+    * the item does not exist.
+    */
+   private static final String PLACE_ORDER_SQL =
+      "WITH item AS (SELECT itemName, price FROM Menu WHERE itemName = ?), " +
+      "neworder AS (INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+                   "SELECT ?, false, now(), price FROM item " +
+                   "RETURNING orderid, timeStampRecieved), " +
+      "newitem AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) " +
+                  "SELECT neworder.orderid, item.itemName, neworder.timeStampRecieved, ?, ? " +
+                  "FROM neworder, item) " +
+      "SELECT orderid FROM neworder";
+
    /**
-    * Method to close the physical connection if it is open.
+    * Method to create a new unpaid order holding one menu item.
+    *
+    * @param login the login of the customer placing the order
+    * @param itemName the name of the ordered menu item
+    * @param comments optional comments for the item, may be empty
+    * @return the new orderid, or -1 when the item is not on the menu
+    * @throws java.sql.SQLException when the order could not be written
     */
-   public void cleanup(){
+   public int placeOrder (String login, String itemName, String comments) throws SQLException {
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow ();
+           ResultSet rs = query (conn, PLACE_ORDER_SQL, itemName, login, INITIAL_ITEM_STATUS, comments)) {
+         int oid = rs.next () ? rs.getInt (1) : -1;
+         this._router.wroteNow ();
+         M_PLACE_ORDER.record (start, oid > 0 ? 2 : 0);
+         return oid;
+      }catch (SQLException e){
+         M_PLACE_ORDER.failed (start);
+         throw e;
+      }
+   }//end placeOrder
+
+   /*
+    * Adds one menu item to an open order in a single statement.  The total
+    * is raised on the server as total + price, so the row lock taken by
+    * the UPDATE serializes concurrent additions and none of them is lost.
+    * The arithmetic is done in NUMERIC and rounded to cents.  Nothing is
+    * written unless the order is open, belongs to the user and the item
+    * exists; a duplicate item rolls the whole statement back.
+    */
+   private static final String ADD_ITEM_SQL =
+      "WITH item AS (SELECT itemName, price FROM Menu WHERE itemName = ?), " +
+      "updated AS (UPDATE Orders o " +
+                  "SET total = round(o.total::numeric + item.price::numeric, 2), timeStampRecieved = now() " +
+                  "FROM item WHERE o.orderid = ? AND o.paid = false AND o.login = ? " +
+                  "RETURNING o.orderid, o.timeStampRecieved) " +
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) " +
+      "SELECT updated.orderid, item.itemName, updated.timeStampRecieved, ?, ? FROM updated, item";
+
+   /**
+    * Method to add a menu item to an open order of a user.
+    *
+    * @param orderid the order to add to
+    * @param login the login the order must belong to
+    * @param itemName the name of the menu item
+    * @param comments optional comments for the item, may be empty
+    * @return false when the order is not open, not the user's, or the item is unknown
+    * @throws java.sql.SQLException when the item could not be added
+    */
+   public boolean addItemToOrder (int orderid, String login, String itemName, String comments) throws SQLException {
+      return executeUpdate (ADD_ITEM_SQL, itemName, orderid, login, INITIAL_ITEM_STATUS, comments) > 0;
+   }//end addItemToOrder
+
+   /**
+    * Method to check that an order is open and belongs to a user.  With the
+    * order journal on, an order still in the journal counts as open, and
+    * so does any order while the database is unreachable; the journal
+    * checks again when it writes the change.
+    *
+    * @param orderid the order
+    * @param login the login the order must belong to
+    * @return true when changes to the order may be taken
+    * @throws java.sql.SQLException when the check failed and there is no journal
+    */
+   public boolean isOpenOrder (int orderid, String login) throws SQLException {
+      if (this._journal != null && this._journal.isPending (orderid, login))
+         return true;
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         return exists ("SELECT 1 FROM ORDERS WHERE orderid = ? AND paid = false AND login = ? LIMIT 1", orderid, login);
+      }catch (SQLException e){
+         if (this._journal == null)
+            throw e;
+         System.out.println ("Database unavailable; the change is checked when it is written");
+         return true;
+      }//end try
+   }//end isOpenOrder
+
+   /**
+    * Method to check that an order holds an item before its comments are
+    * changed.  Like isOpenOrder, it lets the change through for an order
+    * still in the journal, or when the database is down and the journal
+    * is on; the journal rejects the change if the item is not there.
+    *
+    * @param orderid the order
+    * @param login the login the order must belong to
+    * @param itemName the item
+    * @return true when the item's comments may be changed
+    * @throws java.sql.SQLException when the check failed and there is no journal
+    */
+   public boolean hasOrderItem (int orderid, String login, String itemName) throws SQLException {
+      if (this._journal != null && this._journal.isPending (orderid, login))
+         return true;
+      try{
+         return exists ("SELECT 1 FROM ItemStatus WHERE itemName = ? AND orderid = ? LIMIT 1", itemName, orderid);
       }catch (SQLException e){
-         // ignored.
+         if (this._journal == null)
+            throw e;
+         System.out.println ("Database unavailable; the change is checked when it is written");
+         return true;
       }//end try
+   }//end hasOrderItem
+
+   /**
+    * Method to check that an order exists, whoever placed it.
+    *
+    * @param orderid the order
+    * @return true when there is such an order
+    * @throws java.sql.SQLException when the check failed
+    */
+   public boolean orderExists (int orderid) throws SQLException {
+      return exists ("SELECT 1 FROM Orders WHERE orderid = ? LIMIT 1", orderid);
+   }//end orderExists
+
+   /**
+    * Method to check that an order holds an item, whoever placed it.
+    *
+    * @param orderid the order
+    * @param itemName the item
+    * @return true when the item is in the order
+    * @throws java.sql.SQLException when the check failed
+    */
+   public boolean orderHasItem (int orderid, String itemName) throws SQLException {
+      return exists ("SELECT 1 FROM ItemStatus WHERE orderid = ? AND itemName = ? LIMIT 1", orderid, itemName);
+   }//end orderHasItem
+
+   /**
+    * Method to read the items of an order and their status.
+    *
+    * @param orderid the order
+    * @return the itemName and status of every item, or null when there is no such order
+    * @throws java.sql.SQLException when the order could not be read
+    */
+   public ColumnarResult getOrderStatus (int orderid) throws SQLException {
+      if (!orderExists (orderid))
+         return null;
+      return executeQueryAndReturnResult ("SELECT itemName, status FROM ItemStatus WHERE orderid = ?", orderid);
+   }//end getOrderStatus
+
+   /**
+    * Method to read the unpaid orders of the last day, oldest first.
+    *
+    * @return the orderid, login, paid, timeStampRecieved and total of each order
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public ColumnarResult getCurrentOrders () throws SQLException {
+      return executeQueryAndReturnResult (
+         "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders " +
+         "WHERE timeStampRecieved >= NOW() - INTERVAL '1' DAY AND paid = false " + // orders_unpaid_time_idx
+         "ORDER BY timeStampRecieved");
+   }//end getCurrentOrders
+
+   /**
+    * Method to set the status of an item of an order.
+    *
+    * @param orderid the order
+    * @param itemName the item
+    * @param status the new status
+    * @return false when the item is not in the order
+    * @throws java.sql.SQLException when the status could not be written
+    */
+   public boolean setItemStatus (int orderid, String itemName, String status) throws SQLException {
+      return executeUpdate ("UPDATE ItemStatus SET status = ?, lastUpdated = now() WHERE orderid = ? AND itemName = ?",
+         status, orderid, itemName) > 0;
+   }//end setItemStatus
+
+   /**
+    * Method to mark an order as paid.
+    *
+    * @param orderid the order
+    * @return false when there is no such order
+    * @throws java.sql.SQLException when the order could not be written
+    */
+   public boolean markPaid (int orderid) throws SQLException {
+      return executeUpdate ("UPDATE Orders SET paid = true WHERE orderid = ?", orderid) > 0;
+   }//end markPaid
+
+   /**
+    * Work that runs inside one database transaction on one connection.
+    */
+   public interface Transaction<T> {
+      T run (ConnectionPool.PooledConnection conn) throws SQLException;
+   }//end Transaction
+
+   /**
+    * Method to run several statements as one transaction.  The work is
+    * committed when it returns normally and rolled back when it throws.
+    *
+    * @param work the statements to run on the borrowed connection
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when the work or the commit failed
+    */
+   public <T> T executeInTransaction (Transaction<T> work) throws SQLException {
+      long start = System.nanoTime ();
+      long statements = CafeMetrics.statements ();
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow ()) {
+         Connection c = conn.connection ();
+         c.setAutoCommit (false);
+         try{
+            T result = work.run (conn);
+            c.commit ();
+            CafeMetrics.roundTrip ();
+            this._router.wroteNow ();
+            M_TRANSACTION.record (start, 0, CafeMetrics.statements () - statements);
+            return result;
+         }catch (SQLException e){
+            c.rollback ();
+            M_TRANSACTION.failed (start);
+            throw e;
+         }catch (RuntimeException e){
+            c.rollback ();
+            M_TRANSACTION.failed (start);
+            throw e;
+         }//end try
+      }
+   }//end executeInTransaction
+
+   private static final String INSERT_ITEMS_SQL =
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES (?,?,?,?,?)";
+
+   /**
+    * Method to create a new unpaid order holding several menu items.  The
+    * items are validated against Menu with one query, the order total is
+    * computed once on the server when the ORDERS row is inserted, and the
+    * ItemStatus rows are sent as one JDBC batch, all in one transaction.
+    *
+    * @param login the login of the customer placing the order
+    * @param items the names of the ordered menu items, without duplicates
+    * @param comments the comments for each item, in the same order
+    * @param rejected receives the items that are unknown or repeated
+    * @return the new orderid, or -1 when any item was rejected
+    * @throws java.sql.SQLException when the order could not be written
+    */
+   public int placeOrder (final String login, final List<String> items, final List<String> comments,
+                          final List<String> rejected) throws SQLException {
+      if (items.isEmpty())
+         return -1;
+      return executeInTransaction (new Transaction<Integer>() {
+         public Integer run (ConnectionPool.PooledConnection conn) throws SQLException {
+            Array names = conn.connection ().createArrayOf ("text", items.toArray ());
+
+            // validates the whole basket in one round trip
+            Set<String> known = new HashSet<String>();
+            try (ResultSet rs = query (conn, "SELECT itemName FROM Menu WHERE itemName = ANY(?)", names)) {
+               while (rs.next ())
+                  known.add (rs.getString (1).trim ());
+            }
+            Set<String> seen = new HashSet<String>();
+            for (String item : items)
+               if (!known.contains (item) || !seen.add (item))
+                  rejected.add (item);
+            if (!rejected.isEmpty ())
+               return -1;
+
+            // the total is summed on the server and written once
+            int oid;
+            Timestamp received;
+            try (ResultSet rs = query (conn,
+                  "INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+                  "SELECT ?, false, now(), round(sum(price::numeric), 2) FROM Menu WHERE itemName = ANY(?) " +
+                  "RETURNING orderid, timeStampRecieved", login, names)) {
+               rs.next ();
+               oid = rs.getInt (1);
+               received = rs.getTimestamp (2);
+            }
+
+            PreparedStatement stmt = prepare (conn, INSERT_ITEMS_SQL);
+            for (int i = 0; i < items.size (); ++i) {
+               stmt.setInt (1, oid);
+               stmt.setString (2, items.get (i));
+               stmt.setTimestamp (3, received);
+               stmt.setString (4, INITIAL_ITEM_STATUS);
+               stmt.setString (5, comments.get (i));
+               stmt.addBatch ();
+            }//end for
+            try{
+               stmt.executeBatch ();
+            }catch (SQLException e){
+               if (StatementCache.isStale (e))
+                  conn.statements ().evict (INSERT_ITEMS_SQL);
+               throw e;
+            }
+            return oid;
+         }
+      });
+   }//end placeOrder
+
+   /*
+    * Creates an order from the user's favorites in a single statement: the
+    * items are matched against Menu, the ORDERS row is inserted with the
+    * total and the ItemStatus rows from its orderid.  Nothing is written
+    * unless every favorite is still on the menu.
+    */
+   private static final String REORDER_SQL =
+      "WITH fav AS (SELECT m.itemName, m.price, f.comments " +
+                   "FROM unnest(?::text[], ?::text[]) AS f(itemName, comments) " +
+                   "JOIN Menu m ON m.itemName = f.itemName::char(50)), " +
+      "neworder AS (INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+                   "SELECT ?, false, now(), round(sum(price::numeric), 2) FROM fav HAVING count(*) = ? " +
+                   "RETURNING orderid, timeStampRecieved), " +
+      "newitems AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) " +
+                   "SELECT neworder.orderid, fav.itemName, neworder.timeStampRecieved, ?, fav.comments " +
+                   "FROM neworder, fav) " +
+      "SELECT orderid FROM neworder";
+
+   /**
+    * Method to order a user's favorites again, from the favorites read at
+    * login.  Takes one round trip, or none with the order journal on.
+    *
+    * @param session the user
+    * @return the new orderid, 0 when the journal assigns it later, or -1
+    *         when a favorite is no longer on the menu
+    * @throws java.sql.SQLException when the order could not be written
+    * @throws java.io.IOException when the order could not be journaled
+    */
+   public int reorderFavorites (Session session) throws SQLException, IOException {
+      Session.Favorites favs = session.getFavorites ();
+      if (favs.isEmpty ())
+         return -1;
+      if (this._journal != null) {
+         for (String item : favs.items)
+            if (!this._menu.contains (item))
+               return -1;
+         return this._journal.appendOrder (session.login, favs.items, favs.comments);
+      }//end if
+      long start = System.nanoTime ();
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow ()) {
+         Connection c = conn.connection ();
+         try (ResultSet rs = query (conn, REORDER_SQL, c.createArrayOf ("text", favs.items.toArray ()),
+               c.createArrayOf ("text", favs.comments.toArray ()), session.login, favs.items.size (),
+               INITIAL_ITEM_STATUS)) {
+            int oid = rs.next () ? rs.getInt (1) : -1;
+            this._router.wroteNow ();
+            M_REORDER.record (start, oid > 0 ? 1 + favs.items.size () : 0);
+            return oid;
+         }
+      }catch (SQLException e){
+         M_REORDER.failed (start);
+         throw e;
+      }
+   }//end reorderFavorites
+
+   /**
+    * Method to replace a user's favorites.  The items must be on the menu;
+    * the old favorites, the new ones and the legacy Users.favItems text
+    * are written in one transaction.
+    *
+    * @param login the user
+    * @param favorites the new favorites
+    * @throws java.sql.SQLException when an item is not on the menu or the write failed
+    */
+   public void setFavorites (final String login, final Session.Favorites favorites) throws SQLException {
+      executeInTransaction (new Transaction<Void>() {
+         public Void run (ConnectionPool.PooledConnection conn) throws SQLException {
+            Connection c = conn.connection ();
+            update (conn, "DELETE FROM FavoriteItems WHERE login = ?", login);
+            update (conn,
+               "INSERT INTO FavoriteItems (login, itemName, listOrder, comments) " +
+               "SELECT ?, f.itemName, f.n, f.comments " +
+               "FROM unnest(?::text[], ?::text[]) WITH ORDINALITY AS f(itemName, comments, n)",
+               login, c.createArrayOf ("text", favorites.items.toArray ()),
+               c.createArrayOf ("text", favorites.comments.toArray ()));
+            update (conn, "UPDATE Users SET favItems = ? WHERE login = ?",
+               String.join (",", favorites.items), login);
+            return null;
+         }
+      });
+   }//end setFavorites
+
+   /**
+    * Method to execute an update SQL statement on the Menu table.  The
+    * change and a NOTIFY naming the changed items are committed together,
+    * so every running client refreshes those items in its menu cache.
+    *
+    * @param changedItems the names of the items the statement changes
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeMenuUpdate (final String[] changedItems, final String sql, final Object... params) throws SQLException {
+      int rows = executeInTransaction (new Transaction<Integer>() {
+         public Integer run (ConnectionPool.PooledConnection conn) throws SQLException {
+            int n = update (conn, sql, params);
+            MenuCache.notifyChanged (conn, changedItems);
+            return n;
+         }
+      });
+      // our own listener will see the notification too, but the manager
+      // making the change should see it right away
+      this._menu.refresh (Arrays.asList (changedItems));
+      return rows;
+   }//end executeMenuUpdate
+
+   /**
+    * Prints menu items in the same layout as executeQueryAndPrintResult.
+    *
+    * @param items the items to print
+    * @return the number of items printed
+    * @throws java.io.IOException when the output could not be written
+    */
+   public int printMenuItems (List<MenuCache.MenuItem> items) throws IOException {
+      if (items.isEmpty())
+         return 0;
+      TablePrinter out = new TablePrinter (this._printPageSize, in);
+      out.cell ("itemname").cell ("type").cell ("price").cell ("description").cell ("imageurl").endRow ();
+      for (MenuCache.MenuItem item : items) {
+         out.cell (item.itemName).cell (item.type).cell (item.price.toPlainString ())
+            .cell (item.description).cell (item.imageURL);
+         if (!out.endRow ())
+            break;
+      }//end for
+      out.flush ();
+      return items.size();
+   }//end printMenuItems
+
+   /**
+    * Prints a result in the same layout as executeQueryAndPrintResult.
+    *
+    * @param result the rows to print
+    * @return the number of rows printed
+    * @throws java.io.IOException when the output could not be written
+    */
+   public int printResult (ColumnarResult result) throws IOException {
+      if (result.getRowCount () == 0)
+         return 0;
+      TablePrinter out = new TablePrinter (this._printPageSize, in);
+      for (int c = 1; c <= result.getColumnCount (); c++)
+         out.cell (result.getColumnName (c));
+      out.endRow ();
+      int rowCount = 0;
+      for (int r = 0; r < result.getRowCount (); r++) {
+         for (int c = 1; c <= result.getColumnCount (); c++)
+            out.cell (result.getString (r, c));
+         ++rowCount;
+         if (!out.endRow ())
+            break;
+      }//end for
+      out.flush ();
+      return rowCount;
+   }//end printResult
+
+   /**
+    * Runs a query on the cached statement for a SQL text.  Statements are
+    * prepared once per connection and reused, so PostgreSQL can keep a
+    * server-side plan; one whose plan a schema change made stale is
+    * dropped from the cache and prepared again on the next call.  Counts
+    * as one round trip of the current action in CafeMetrics.
+    *
+    * @param conn the borrowed connection
+    * @param sql the SQL text with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the result, to be closed by the caller
+    * @throws java.sql.SQLException when the query failed
+    */
+   private static ResultSet query (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+      CafeMetrics.roundTrip ();
+      return conn.statements ().executeQuery (sql, params);
+   }//end query
+
+   /**
+    * Runs an update on the cached statement for a SQL text, like query.
+    *
+    * @param conn the borrowed connection
+    * @param sql the SQL text with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when the update failed
+    */
+   private static int update (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+      CafeMetrics.roundTrip ();
+      return conn.statements ().executeUpdate (sql, params);
+   }//end update
+
+   /**
+    * Looks up the prepared statement for a SQL text in the statement cache
+    * of a connection and binds the given parameters to it.  Statements are
+    * prepared once per connection and reused, so PostgreSQL can keep a
+    * server-side plan.  Each call counts as one round trip of the current
+    * action in CafeMetrics.
+    *
+    * @param conn the borrowed connection
+    * @param sql the SQL text with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the ready to execute statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   private static PreparedStatement prepare (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+      // every prepared statement is executed once, so this counts the round trips
+      CafeMetrics.roundTrip ();
+      PreparedStatement stmt = conn.statements ().prepare (sql);
+      stmt.clearParameters ();
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Method to close the physical connections if they are open.
+    */
+   public void cleanup(){
+      if (this._menu != null){
+         this._menu.stopListening ();
+      }//end if
+      if (this._slowLog != null){
+         this._slowLog.close ();
+      }//end if
+      if (this._journal != null){
+         this._journal.close ();
+      }//end if
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -235,12 +1055,20 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 2) {
+      boolean tool = args.length == 4 &&
+         (args[2].equals ("--batch") || args[2].equals ("--menu-import") || args[2].equals ("--menu-export") ||
+          args[2].equals ("--serve"));
+      if (args.length != 2 && !tool) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port>");
+            " <dbname> <port> [--batch <command file> | --menu-import <csv file> | --menu-export <csv file>" +
+            " | --serve <http port>]");
+         return;
+      }//end if
+      if (tool) {
+         runTool (args[0], args[1], args[2], args[3]);
          return;
       }//end if
 
@@ -255,6 +1083,9 @@ public class Cafe {
          String dbport = args[1];
          esql = new Cafe (dbname, dbport);
 
+         Session session = null;
+         // the menu action running, see CafeMetrics
+         CafeMetrics.Action a;
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -263,18 +1094,21 @@ public class Cafe {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            authorisedUser = null;
+            session = null;
             switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 1: a = CafeMetrics.action ("CreateUser"); try { CreateUser(esql); } finally { a.close (); } break;
+               case 2:
+                  a = CafeMetrics.action ("LogIn"); try { session = LogIn(esql); } finally { a.close (); }
+                  break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            if (session != null) {
+              // its writes keep its reads on the primary for a moment
+              esql.getRouter().bind(session);
               boolean usermenu = true;
-              String user_type = find_type(esql);
-	      switch (user_type){
-		case "Customer": 
+	      switch (session.role){
+		case CUSTOMER: 
 		  while(usermenu) {
                     System.out.println("MAIN MENU");
                     System.out.println("---------");
@@ -285,21 +1119,23 @@ public class Cafe {
                     System.out.println("5. View Order History");
                     System.out.println("6. View Order Status");
                     System.out.println("7. Update User Info");
+                    System.out.println("8. Reorder Favorites");
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
-                       case 1: BrowseMenuName(esql); break;
-                       case 2: BrowseMenuType(esql); break;
-                       case 3: AddOrder(esql); break;
-                       case 4: UpdateOrder(esql); break;
-                       case 5: ViewOrderHistory(esql); break;
-                       case 6: ViewOrderStatus(esql); break;
-                       case 7: UpdateUserInfo(esql); break;
+                       case 1: a = CafeMetrics.action ("BrowseMenuName"); try { BrowseMenuName(esql); } finally { a.close (); } break;
+                       case 2: a = CafeMetrics.action ("BrowseMenuType"); try { BrowseMenuType(esql); } finally { a.close (); } break;
+                       case 3: a = CafeMetrics.action ("AddOrder"); try { AddOrder(esql, session); } finally { a.close (); } break;
+                       case 4: a = CafeMetrics.action ("UpdateOrder"); try { UpdateOrder(esql, session); } finally { a.close (); } break;
+                       case 5: a = CafeMetrics.action ("ViewOrderHistory"); try { ViewOrderHistory(esql, session); } finally { a.close (); } break;
+                       case 6: a = CafeMetrics.action ("ViewOrderStatus"); try { ViewOrderStatus(esql); } finally { a.close (); } break;
+                       case 7: a = CafeMetrics.action ("UpdateUserInfo"); try { UpdateUserInfo(esql, session); } finally { a.close (); } break;
+                       case 8: a = CafeMetrics.action ("ReorderFavorites"); try { ReorderFavorites(esql, session); } finally { a.close (); } break;
                        case 9: usermenu = false; break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
-		case "Employee": 
+		case EMPLOYEE: 
 		  while(usermenu) {
                     System.out.println("MAIN MENU");
                     System.out.println("---------");
@@ -313,18 +1149,18 @@ public class Cafe {
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
-                       case 1: BrowseMenuName(esql); break;
-                       case 2: BrowseMenuType(esql); break;
-                       case 3: AddOrder(esql); break;
-                       case 4: EmployeeUpdateOrder(esql); break;
-                       case 5: ViewCurrentOrder(esql); break;
-                       case 6: ViewOrderStatus(esql); break;
-                       case 7: UpdateUserInfo(esql); break;
+                       case 1: a = CafeMetrics.action ("BrowseMenuName"); try { BrowseMenuName(esql); } finally { a.close (); } break;
+                       case 2: a = CafeMetrics.action ("BrowseMenuType"); try { BrowseMenuType(esql); } finally { a.close (); } break;
+                       case 3: a = CafeMetrics.action ("AddOrder"); try { AddOrder(esql, session); } finally { a.close (); } break;
+                       case 4: a = CafeMetrics.action ("EmployeeUpdateOrder"); try { EmployeeUpdateOrder(esql); } finally { a.close (); } break;
+                       case 5: a = CafeMetrics.action ("ViewCurrentOrder"); try { ViewCurrentOrder(esql); } finally { a.close (); } break;
+                       case 6: a = CafeMetrics.action ("ViewOrderStatus"); try { ViewOrderStatus(esql); } finally { a.close (); } break;
+                       case 7: a = CafeMetrics.action ("UpdateUserInfo"); try { UpdateUserInfo(esql, session); } finally { a.close (); } break;
                        case 9: usermenu = false; break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
-		case "Manager ": 
+		case MANAGER: 
 		  while(usermenu) {
                     System.out.println("MAIN MENU");
                     System.out.println("---------");
@@ -336,22 +1172,26 @@ public class Cafe {
                     System.out.println("6. View Order Status");
                     System.out.println("7. Update User Info");
                     System.out.println("8. Update Menu");
+                    System.out.println("10. Sales Reports");
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
-                       case 1: BrowseMenuName(esql); break;
-                       case 2: BrowseMenuType(esql); break;
-                       case 3: AddOrder(esql); break;
-                       case 4: EmployeeUpdateOrder(esql); break;
-                       case 5: ViewCurrentOrder(esql); break;
-                       case 6: ViewOrderStatus(esql); break;
-                       case 7: ManagerUpdateUserInfo(esql); break;
-                       case 8: UpdateMenu(esql); break;
+                       case 1: a = CafeMetrics.action ("BrowseMenuName"); try { BrowseMenuName(esql); } finally { a.close (); } break;
+                       case 2: a = CafeMetrics.action ("BrowseMenuType"); try { BrowseMenuType(esql); } finally { a.close (); } break;
+                       case 3: a = CafeMetrics.action ("AddOrder"); try { AddOrder(esql, session); } finally { a.close (); } break;
+                       case 4: a = CafeMetrics.action ("EmployeeUpdateOrder"); try { EmployeeUpdateOrder(esql); } finally { a.close (); } break;
+                       case 5: a = CafeMetrics.action ("ViewCurrentOrder"); try { ViewCurrentOrder(esql); } finally { a.close (); } break;
+                       case 6: a = CafeMetrics.action ("ViewOrderStatus"); try { ViewOrderStatus(esql); } finally { a.close (); } break;
+                       case 7: a = CafeMetrics.action ("ManagerUpdateUserInfo"); try { ManagerUpdateUserInfo(esql, session); } finally { a.close (); } break;
+                       case 8: a = CafeMetrics.action ("UpdateMenu"); try { UpdateMenu(esql); } finally { a.close (); } break;
+                       case 10: a = CafeMetrics.action ("SalesReports"); try { Query6(esql); } finally { a.close (); } break;
                        case 9: usermenu = false; break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
 	      }//end switch
+              esql.getRouter().bind(null);
+              session.close();
             }//end if
          }//end while
       }catch(Exception e) {
@@ -370,6 +1210,53 @@ public class Cafe {
       }//end try
    }//end main
 
+   /*
+    * Runs a command file without prompts, see BatchRunner, imports or
+    * exports the menu, see MenuCopy, or serves the JSON API until the
+    * process is stopped, see CafeServer.  Exits with status 1 when any
+    * command or line failed.
+    */
+   private static void runTool (String dbname, String dbport, String option, String file) {
+      Cafe esql = null;
+      int failed = 1;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         esql = new Cafe (dbname, dbport);
+         if (option.equals ("--batch"))
+            failed = new BatchRunner (esql).run (file);
+         else if (option.equals ("--menu-import"))
+            failed = new MenuCopy (esql).importMenu (file);
+         else if (option.equals ("--serve")) {
+            final CafeServer server = new CafeServer (esql, Integer.parseInt (file));
+            final Thread main = Thread.currentThread ();
+            server.start ();
+            Runtime.getRuntime ().addShutdownHook (new Thread () {
+               public void run () {
+                  server.stop ();
+                  try{
+                     // let main close the journal and the pools
+                     main.join (10000);
+                  }catch (InterruptedException e){
+                     // exiting anyway
+                  }//end try
+               }
+            });
+            server.awaitStop ();
+            failed = 0;
+         } else {
+            new MenuCopy (esql).exportMenu (file);
+            failed = 0;
+         }//end if
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+      if (failed > 0)
+         System.exit (1);
+   }//end runTool
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -412,9 +1299,9 @@ public class Cafe {
 	 String type="Customer";
 	 String favItems="";
 
-	 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
+	 String query = "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES (?,?,?,?,?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, phone, login, password, favItems, type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -422,20 +1309,20 @@ public class Cafe {
    }//end
    
    /*
-    * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * Check log in credentials for an existing user.  One query returns the
+    * user's role and profile along with the password check.
+    * @return the new session or null is the user does not exist
     **/
-   public static String LogIn(Cafe esql){
+   public static Session LogIn(Cafe esql){
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
+	 Session session = esql.querySingleRow(Session.LOGIN_QUERY, Session.FROM_ROW, login, password);
+	 if (session != null)
+		return session.open();
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -443,42 +1330,31 @@ public class Cafe {
       }
    }//end
 
-   public static String find_type(Cafe esql){
-      // Your code goes here.
-      // ...
-      // ...
-      //started not tested home
-	String types;
-try{
-	String query = "SELECT type FROM Users WHERE login = '" + authorisedUser + "'";
-        List<List<String>> trys = esql.executeQueryAndReturnResult(query);
-        types = (trys.get(0)).get(0);
-        
-      return types;
-}
-catch(Exception e){
-         System.err.println (e.getMessage());
-      return null;
-}
-
-   }
-
    public static void BrowseMenuName(Cafe esql){
       // Your code goes here.
       // ...
       // ...
 	//done tested
 try{
-      String query = "SELECT * FROM Menu WHERE itemName = '";
       System.out.print("\tEnter itemName: ");
       String input = in.readLine();
-      query += input;
-      query +="'";
- 	int rowCount = esql.executeQueryAndPrintResult(query);
-         if(rowCount == 0)
+      MenuCache.MenuItem item = esql.getMenu().get(input);
+	if (item != null)
+	{
+		esql.printMenuItems(Collections.singletonList(item));
+		return;
+	}
+	// no exact match: show what starts with or is spelled like the input
+	List<MenuCache.MenuItem> similar = new ArrayList<MenuCache.MenuItem>();
+	for (MenuSearchIndex.Match m : esql.getMenuSearch().search(input, 10))
+		similar.add(m.item);
+         if(similar.isEmpty())
 	{
 		System.out.print("\tItem Name does not exist\n");
+		return;
 	}
+	System.out.print("\tNo item named '" + input + "', closest matches:\n");
+	esql.printMenuItems(similar);
 }
 	catch(Exception e){
          System.err.println (e.getMessage());
@@ -492,12 +1368,9 @@ try{
       // ...
 	//done tested
 	try{
-	      String query = "SELECT * FROM Menu WHERE type = '";
 	      System.out.print("\tEnter item type: ");
 	      String input = in.readLine();
-	      query += input;
-	      query +="'";
-	 	int rowCount = esql.executeQueryAndPrintResult(query);
+	 	int rowCount = esql.printMenuItems(esql.getMenu().getByType(input));
 		if(rowCount == 0)
 		{
 		System.out.print("\tItem Type does not exist\n");
@@ -510,37 +1383,55 @@ try{
 	}
    }//end
 
-   public static Integer AddOrder(Cafe esql){
+   public static Integer AddOrder(Cafe esql, Session session){
       // Your code goes here.
       // ...
       // ...
 	//done tested can be extended asking for comments and checking if item name is real
 	try{
-		System.out.print("\tEnter item name: ");
-     		String input = in.readLine();
-		String query = "SELECT itemName FROM Menu WHERE itemName ='" + input + "'";
-	 	int userNum = esql.executeQuery(query);
-		 if (userNum == 0){
-			System.out.print("Unreconized Item Name\n");
-			return 0;}
-		System.out.print("\tComments(optional): ");
-     		String comment = in.readLine();
-		
-		Timestamp date = new Timestamp(System.currentTimeMillis());
-		boolean paid = false;
-		String stat = "Hasn''t started";
-      		query = "SELECT  price FROM MENU WHERE itemName = '" + input + "'";
-		List<List<String>> trys = esql.executeQueryAndReturnResult(query);
-		String total = (trys.get(0)).get(0);
-		query = String.format("INSERT INTO ORDERS ( login, paid, timeStampRecieved, total) 			VALUES ('%s','%s','%s','%s')", authorisedUser,paid , date, total);
-		esql.executeUpdate(query);
-		query = "SELECT orderid FROM ORDERS WHERE timeStampRecieved = '" + date + "' AND login 			= '" + authorisedUser + "'";
-		List<List<String>> id = esql.executeQueryAndReturnResult(query);
-		int oid = Integer.parseInt((id.get(0)).get(0));
-		query = String.format("INSERT INTO ItemStatus ( orderid, itemName, lastUpdated, status, 		comments)VALUES ('%s','%s','%s','%s','%s')", oid, input ,date,stat,comment);
-		esql.executeUpdate(query);
-		//query = "SELECT * FROM itemStatus";
-		//esql.executeQueryAndPrintResult(query);
+		// collects the whole basket first, then writes it in one go
+		List<String> items = new ArrayList<String>();
+		List<String> comments = new ArrayList<String>();
+		do{
+			System.out.print(items.isEmpty() ? "\tEnter item name: " : "\tEnter another item name (blank to finish): ");
+			String input = in.readLine();
+			if (input == null || input.isEmpty())
+				break;
+			if (!esql.getMenu().contains(input)){
+				System.out.print("Unreconized Item Name\n");
+				esql.printSuggestions(input);
+				continue;}
+			if (items.contains(input)){
+				System.out.print("Item already in this order\n");
+				continue;}
+			System.out.print("\tComments(optional): ");
+			comments.add(in.readLine());
+			items.add(input);
+		}while(true);
+		if (items.isEmpty())
+			return 0;
+
+		int oid;
+		if (esql.getJournal() != null){
+			// durable on local disk now, written to the database shortly
+			oid = esql.getJournal().appendOrder(session.login, items, comments);
+			if (oid == 0){
+				System.out.print("Order accepted; its number is given when the database is back\n");
+				return 0;}
+		}else if (items.size() == 1){
+			// price lookup, both inserts and the id come back in one statement
+			oid = esql.placeOrder(session.login, items.get(0), comments.get(0));
+			if (oid < 0){
+				System.out.print("Unreconized Item Name\n");
+				return 0;}
+		}else{
+			List<String> rejected = new ArrayList<String>();
+			oid = esql.placeOrder(session.login, items, comments, rejected);
+			if (oid < 0){
+				System.out.print("Unreconized Item Name(s): " + rejected + "\n");
+				return 0;}
+		}
+		System.out.print("Order " + oid + " placed\n");
 		Integer orderid=oid;
       		return orderid;
 		
@@ -555,68 +1446,59 @@ try{
       return orderid;
    }//end 
 
-   public static void UpdateOrder(Cafe esql){
+   public static void UpdateOrder(Cafe esql, Session session){
       // Your code goes here.
       // ...
       // ...
 	//Finished tested can be extended
 	try{
-		String stat = "Hasn''t Started";
 		System.out.print("Do you want to add an item to your order or update existing order (type \"add\" or \"existing\"): ");
 		String response = in.readLine();
 		if(response.equals("add")){
 		System.out.print("\tWhat Orderid do you want to update: ");
-		String input = in.readLine();
-		String query = "SELECT orderid FROM ORDERS WHERE orderid = '" + input + "' AND 			paid = false AND login = '" + authorisedUser + "'";
-	 	int userNum = esql.executeQuery(query);
-		 if (userNum == 0){
+		int input = Integer.parseInt(in.readLine());
+		 if (!esql.isOpenOrder(input, session.login)){
 			System.out.print("Unreconized Orderid or Unauthorized Orderid\n");
 			return;}
 		System.out.print("Add item\nEnter item name: ");
 		String newitem = in.readLine();
 		System.out.print("\tComments(optional): ");
      		String comment = in.readLine();
-		Timestamp date = new Timestamp(System.currentTimeMillis());
-		query = "SELECT * FROM Menu WHERE itemName ='" + newitem + "'";
-		int num = esql.executeQuery(query);
-		if(num == 0)
+		if(!esql.getMenu().contains(newitem))
 		{
-			System.out.print("Item Name not reconized");
+			System.out.print("Item Name not reconized\n");
+			esql.printSuggestions(newitem);
 			return ;
 		}	
-		query = "SELECT  price FROM MENU WHERE itemName = '" + newitem + "'";
-		List<List<String>> trys = esql.executeQueryAndReturnResult(query);
-		String total = (trys.get(0)).get(0);
-		query = "SELECT  total FROM ORDERS WHERE orderid = '" + input + "'";
-		trys = esql.executeQueryAndReturnResult(query);
-		Double totalnew = Double.parseDouble((trys.get(0)).get(0)) + Double.parseDouble(total);
-		query = "UPDATE ORDERS SET total = " +totalnew + "WHERE orderid = '" + input + "'";
-		esql.executeUpdate(query);
-		query = "UPDATE ORDERS SET timeStampRecieved = '" + date + "' WHERE orderid = '" + 			input + "'";
-		esql.executeUpdate(query);
-		query = String.format("INSERT INTO ItemStatus ( orderid, itemName, lastUpdated, status, 		comments)VALUES ('%s','%s','%s','%s','%s')", input, newitem ,date,stat,comment);
-		esql.executeUpdate(query);
+		// total, timestamp and the new item are written by one statement
+		if(esql.getJournal() != null)
+			esql.getJournal().appendAddItem(input, session.login, newitem, comment);
+		else if(!esql.addItemToOrder(input, session.login, newitem, comment))
+		{
+			System.out.print("Order is no longer open or item is gone from the menu\n");
+			return ;
+		}
 		}
 		else if(response.equals("existing"))
 		{
 			System.out.print("\tWhat Orderid do you want to update: ");
-			String input = in.readLine();
-			String query = "SELECT orderid FROM ORDERS WHERE orderid = '" + input + "' AND 				paid = false AND login = '" + authorisedUser + "'";
-	 		int userNum = esql.executeQuery(query);
-		 if (userNum == 0){
+			int input = Integer.parseInt(in.readLine());
+		 if (!esql.isOpenOrder(input, session.login)){
 			System.out.print("Unreconized Orderid or Unauthorized Orderid\n");
 			return;}
 			System.out.print("\tWhat item name do you want to update: ");
 			String inputname = in.readLine();
-			query = "SELECT itemName FROM ItemStatus WHERE itemName = '" + inputname 				+"' AND orderid = '"+ input + "'";
-	 		userNum = esql.executeQuery(query);
-		 if (userNum == 0){
+		 if (!esql.hasOrderItem(input, session.login, inputname)){
 			System.out.print("Unreconized item name\n");
 			return;}
 			System.out.print("Comments: ");
 			String comments = in.readLine();
-			query = "UPDATE ItemStatus SET comments = '" + comments + "' WHERE orderid = '" 			+ input +"' AND itemName = '" + inputname + "'";
-			esql.executeUpdate(query);		
+			if (esql.getJournal() != null)
+				esql.getJournal().appendComment(input, session.login, inputname, comments);
+			else{
+			String query = "UPDATE ItemStatus SET comments = ? WHERE orderid = ? AND itemName = ?";
+			esql.executeUpdate(query, comments, input, inputname);
+			}		
 			
 			
 		}
@@ -637,10 +1519,8 @@ try{
       // ...
       try{
         System.out.print("\tWhat Orderid do you want to update: ");
-		String input = in.readLine();
-		String query = "SELECT orderid FROM ORDERS WHERE orderid = '" + input + "'";
-	 	int userNum = esql.executeQuery(query);
-		 if (userNum == 0){
+		int input = Integer.parseInt(in.readLine());
+		 if (!esql.orderExists(input)){
 			System.out.print("Unreconized Orderid or Unauthorized Orderid\n");
 			return;}
         System.out.print("Do you want to change status to paid?: (y or n) ");
@@ -653,8 +1533,7 @@ try{
         }
         if(yesno.equals("y"))
         {
-            query = "UPDATE Orders SET paid = true WHERE orderid = '"+input + "'";
-            esql.executeUpdate(query);
+            esql.markPaid(input);
         }
         System.out.print("Do you want to update an item status? (y or n) ");
         yesno = in.readLine();
@@ -668,23 +1547,19 @@ try{
         {
             System.out.print("What item do you want to update: ");
             String itemNames = in.readLine();
-            query = "SELECT * FROM itemStatus WHERE orderid = '"+ input +"' AND itemName = '" + itemNames + "'";
-            int huh = esql.executeQuery(query);
-            while(huh == 0 && !itemNames.equals("q"))
+            boolean huh = esql.orderHasItem(input, itemNames);
+            while(!huh && !itemNames.equals("q"))
             {
                 System.out.print("No such item in this order\n");
                 System.out.print("What item do you want to update: (q to quit)");
                 itemNames = in.readLine();
-                query = "SELECT * FROM itemStatus WHERE orderid = '"+ input +"' AND itemName = '" + itemNames + "'";
-                 huh = esql.executeQuery(query);
+                 huh = esql.orderHasItem(input, itemNames);
             }
             if(itemNames.equals('q'))
                 return;
-            Timestamp date = new Timestamp(System.currentTimeMillis());
             System.out.print("What do you want to set the status to? ");
             String stat = in.readLine();
-            query = "UPDATE itemStatus SET status = '" + stat + "' WHERE orderid = '" + input + "' AND itemName = '" + itemNames + "'";
-            esql.executeUpdate(query);
+            esql.setItemStatus(input, itemNames, stat);
          }
       }
       catch(Exception e){
@@ -695,16 +1570,17 @@ try{
         
    }//end
 
-   public static void ViewOrderHistory(Cafe esql){
+   public static void ViewOrderHistory(Cafe esql, Session session){
       // Your code goes here.
       // ...
       // ...
 	//finished and tested can be extended
 	try{
-		String query = "SELECT * from ORDERS WHERE login = '"  + authorisedUser + "'  ORDER BY 			timeStampRecieved DESC LIMIT 5";
-		esql.executeQueryAndPrintResult(query);
-		
-   
+		System.out.print("Show the items of each order? (y or n) ");
+		boolean withItems = in.readLine().equals("y");
+		// pages by seeking on (timeStampRecieved, orderid), so deep pages cost the same as the first
+		new OrderHistory(esql, session.login, Integer.getInteger("cafe.history.pageSize", 5), withItems)
+			.browse(in);
 	}
 	catch(Exception e){
 		System.err.println (e.getMessage());
@@ -712,7 +1588,7 @@ try{
 	}
    }//end
 
-   public static void UpdateUserInfo(Cafe esql){
+   public static void UpdateUserInfo(Cafe esql, Session session){
       // Your code goes here.
       // ...
       // ...
@@ -726,38 +1602,33 @@ try{
           {
               System.out.print("What is the updated phone number: ");
               String phoneno = in.readLine();
-              String query = "UPDATE Users SET phoneNum = '" + phoneno + "' WHERE login = '" + authorisedUser + "'";
-              esql.executeUpdate(query);
+              String query = "UPDATE Users SET phoneNum = ? WHERE login = ?";
+              esql.executeUpdate(query, phoneno, session.login);
+              session.setPhoneNum(phoneno);
           }
           else if(updateRes.toLowerCase().equals("password"))
           {
-              int userNum = 0;
-              while(userNum == 0){
+              boolean userNum = false;
+              while(!userNum){
                   System.out.print("Please reenter your password for security purposes: ");
                   String pass = in.readLine();
-                  String query = "SELECT * FROM USERS WHERE login = '" + authorisedUser + "' AND password = '" + pass + "'";
-                  userNum = esql.executeQuery(query);
-                  if(userNum == 0)
+                  String query = "SELECT 1 FROM USERS WHERE login = ? AND password = ? LIMIT 1";
+                  userNum = esql.exists(query, session.login, pass);
+                  if(!userNum)
                   {
                       System.out.print("Incorrect Password: Try again\n");
                   }
               }
               System.out.print("What is the updated password: ");
               String passnew = in.readLine();
-              String query = "UPDATE Users SET password = '" + passnew + "' WHERE login = '" + 			authorisedUser + "'";
-              esql.executeUpdate(query);
-		query = "SELECT * FROM Users WHERE login = '" + authorisedUser +"'";
-              esql.executeQueryAndPrintResult(query);
+              String query = "UPDATE Users SET password = ? WHERE login = ?";
+              esql.executeUpdate(query, passnew, session.login);
+		query = "SELECT * FROM Users WHERE login = ?";
+              esql.executeQueryAndPrintResult(query, session.login);
           }
           else if(updateRes.toLowerCase().equals( "favorite items"))
           {
-              System.out.print("What are your favorite items: ");
-              String favs = in.readLine();
-              //String query = "SELECT favItems FROM USERS WHERE login = '" + authorisedUser + "'";
-              //List<List<String>> trys = esql.executeQueryAndReturnResult(query);
-             //String items = (trys.get(0)).get(0);
-              String query = "UPDATE Users SET favItems = '" + favs + "' WHERE login = '" + authorisedUser + "'";
-              esql.executeUpdate(query);
+              UpdateFavorites(esql, session);
           }
           else if(!updateRes.toLowerCase().equals("done"))
           {
@@ -772,7 +1643,63 @@ catch(Exception e){
 	}
    }//end
 
-   public static void ManagerUpdateUserInfo(Cafe esql){
+   /*
+    * Replaces the user's favorites with menu items entered one by one
+    **/
+   public static void UpdateFavorites(Cafe esql, Session session) throws IOException, SQLException{
+	Session.Favorites current = session.getFavorites();
+	if (!current.isEmpty())
+		System.out.print("Your favorites are: " + String.join(", ", current.items) + "\n");
+	List<String> items = new ArrayList<String>();
+	List<String> comments = new ArrayList<String>();
+	do{
+		System.out.print(items.isEmpty() ? "\tEnter a favorite item name (blank to clear): " : "\tEnter another favorite (blank to finish): ");
+		String input = in.readLine();
+		if (input == null || input.isEmpty())
+			break;
+		if (!esql.getMenu().contains(input)){
+			System.out.print("Unreconized Item Name\n");
+			esql.printSuggestions(input);
+			continue;}
+		if (items.contains(input)){
+			System.out.print("Item already a favorite\n");
+			continue;}
+		System.out.print("\tUsual comments(optional): ");
+		comments.add(in.readLine());
+		items.add(input);
+	}while(true);
+	Session.Favorites favorites = new Session.Favorites(items, comments);
+	esql.setFavorites(session.login, favorites);
+	session.setFavorites(favorites);
+	System.out.print(items.isEmpty() ? "Favorites cleared\n" : "Favorites saved\n");
+   }//end
+
+   /*
+    * Orders the user's favorites again in one step
+    **/
+   public static void ReorderFavorites(Cafe esql, Session session){
+	try{
+		Session.Favorites favs = session.getFavorites();
+		if (favs.isEmpty()){
+			System.out.print("You have no favorites yet, add them under Update User Info\n");
+			return;}
+		System.out.print("Order " + String.join(", ", favs.items) + " again? (y or n) ");
+		if (!in.readLine().equals("y"))
+			return;
+		int oid = esql.reorderFavorites(session);
+		if (oid < 0)
+			System.out.print("A favorite is no longer on the menu, please update your favorites\n");
+		else if (oid == 0)
+			System.out.print("Order accepted; its number is given when the database is back\n");
+		else
+			System.out.print("Order " + oid + " placed\n");
+	}
+	catch(Exception e){
+		System.err.println (e.getMessage());
+	}
+   }//end
+
+   public static void ManagerUpdateUserInfo(Cafe esql, Session session){
       // Your code goes here.
       // ...
       // ...
@@ -786,52 +1713,46 @@ catch(Exception e){
           {
               System.out.print("What is the updated phone number: ");
               String phoneno = in.readLine();
-              String query = "UPDATE Users SET phoneNum = '" + phoneno + "' WHERE login = '" + authorisedUser + "'";
-              esql.executeUpdate(query);
+              String query = "UPDATE Users SET phoneNum = ? WHERE login = ?";
+              esql.executeUpdate(query, phoneno, session.login);
+              session.setPhoneNum(phoneno);
           }
           else if(updateRes.toLowerCase().equals("password"))
           {
-              int userNum = 0;
-              while(userNum == 0){
+              boolean userNum = false;
+              while(!userNum){
                   System.out.print("Please reenter your password for security purposes: ");
                   String pass = in.readLine();
-                  String query = "SELECT * FROM USERS WHERE login = '" + authorisedUser + "' AND password = '" + pass + "'";
-                  userNum = esql.executeQuery(query);
-                  if(userNum == 0)
+                  String query = "SELECT 1 FROM USERS WHERE login = ? AND password = ? LIMIT 1";
+                  userNum = esql.exists(query, session.login, pass);
+                  if(!userNum)
                   {
                       System.out.print("Incorrect Password: Try again\n");
                   }
               }
               System.out.print("What is the updated password: ");
               String passnew = in.readLine();
-              String query = "UPDATE Users SET password = '" + passnew + "' WHERE login = '" + 			authorisedUser + "'";
-              esql.executeUpdate(query);
-		query = "SELECT * FROM Users WHERE login = '" + authorisedUser +"'";
-              esql.executeQueryAndPrintResult(query);
+              String query = "UPDATE Users SET password = ? WHERE login = ?";
+              esql.executeUpdate(query, passnew, session.login);
+		query = "SELECT * FROM Users WHERE login = ?";
+              esql.executeQueryAndPrintResult(query, session.login);
           }
           else if(updateRes.toLowerCase().equals( "favorite items"))
           {
-              System.out.print("What are your favorite items: ");
-              String favs = in.readLine();
-              //String query = "SELECT favItems FROM USERS WHERE login = '" + authorisedUser + "'";
-              //List<List<String>> trys = esql.executeQueryAndReturnResult(query);
-             //String items = (trys.get(0)).get(0);
-              String query = "UPDATE Users SET favItems = '" + favs + "' WHERE login = '" + authorisedUser + "'";
-              esql.executeUpdate(query);
+              UpdateFavorites(esql, session);
           }
 	  else if(updateRes.toLowerCase().equals("user type"))
 	{
 		System.out.print("What user would you like to change: ");
 		String userna = in.readLine();
-		String query = "SELECT * FROM Users WHERE login = '" + userna + "'";
-		int numba = esql.executeQuery(query);
-		while(numba == 0)
+		String query = "SELECT 1 FROM Users WHERE login = ? LIMIT 1";
+		boolean numba = esql.exists(query, userna);
+		while(!numba)
 		{
 			System.out.print("User does not exist\n");
 			System.out.print("What user would you like to change: ");
 			userna = in.readLine();
-			query = "SELECT * FROM Users WHERE login = '" + userna + "'";
-			numba = esql.executeQuery(query);
+			numba = esql.exists(query, userna);
 		}
 		System.out.print("What is the new status:(Customer, Manager, or Employee)");
 		String stat = in.readLine();
@@ -841,8 +1762,8 @@ catch(Exception e){
 			System.out.print("What is the new status:(Customer, Manager, or Employee)");
 			stat = in.readLine();
 		}
-		query = "UPDATE Users SET type = '" + stat + "' WHERE login = '" + userna + "'";
-		esql.executeUpdate(query);
+		query = "UPDATE Users SET type = ? WHERE login = ?";
+		esql.executeUpdate(query, stat, userna);
 	}
           else if(!updateRes.toLowerCase().equals("done"))
           {
@@ -871,20 +1792,17 @@ try{
 	  do{
           	System.out.print("What item would you like to update (Type 'q' to exit.): ");
           	itUp = in.readLine();
-          	String query = "SELECT * FROM Menu WHERE itemName = '" + itUp + "'";
-          	int count = esql.executeQuery(query);
 		if (itUp.toLowerCase().equals("q"))
 		{
 			break;	
 		}
-          	if(count == 0)
+          	if(!esql.getMenu().contains(itUp))
           	{
               		System.out.print("No such item name\n");
               		return;
           	}
-		query = "SELECT * FROM ItemStatus WHERE itemName = '" + itUp + "'";
-		count = esql.executeQuery(query);
-		if(count != 0)
+		String query = "SELECT 1 FROM ItemStatus WHERE itemName = ? LIMIT 1";
+		if(esql.exists(query, itUp))
 		{
 			System.out.print("Item in order cannot update");
 			return;
@@ -909,36 +1827,37 @@ try{
 				{
 					System.out.print("New name: ");
 					String newnm = in.readLine();
-					q = "UPDATE MENU SET ITEMNAME = '" + newnm + "' WHERE ITEMNAME = '" + itUp +"'";
-					esql.executeUpdate(q);
+					q = "UPDATE MENU SET ITEMNAME = ? WHERE ITEMNAME = ?";
+					esql.executeMenuUpdate(new String[] {itUp, newnm}, q, newnm, itUp);
+					itUp = newnm;
 				}
 				else if (fieldToUpdate.toLowerCase().equals("type"))
 				{
 					System.out.print("New type: ");
 					String newtype = in.readLine();
-					q = "UPDATE MENU SET TYPE = '" + newtype + "' WHERE ITEMNAME = '" + itUp +"'";
-					esql.executeUpdate(q);	
+					q = "UPDATE MENU SET TYPE = ? WHERE ITEMNAME = ?";
+					esql.executeMenuUpdate(new String[] {itUp}, q, newtype, itUp);	
 				}
 				else if (fieldToUpdate.toLowerCase().equals("price"))
 				{
 					System.out.print("New price: ");
 					String newprice = in.readLine();
-					q = "UPDATE MENU SET PRICE = '" + Double.parseDouble(newprice) + "' WHERE ITEMNAME = '" + itUp +"'";
-					esql.executeUpdate(q);					
+					q = "UPDATE MENU SET PRICE = ? WHERE ITEMNAME = ?";
+					esql.executeMenuUpdate(new String[] {itUp}, q, new BigDecimal(newprice), itUp);					
 				}
 				else if (fieldToUpdate.toLowerCase().equals("description"))
 				{
 					System.out.print("New description: ");
 					String newdes = in.readLine();
-					q = "UPDATE MENU SET DESCRIPTION = '" + newdes + "' WHERE ITEMNAME = '" + itUp +"'";
-					esql.executeUpdate(q);					
+					q = "UPDATE MENU SET DESCRIPTION = ? WHERE ITEMNAME = ?";
+					esql.executeMenuUpdate(new String[] {itUp}, q, newdes, itUp);					
 				}
 				else if (fieldToUpdate.toLowerCase().equals("url"))
 				{
 					System.out.print("New url: ");
 					String newurl = in.readLine();
-					q = "UPDATE MENU SET IMAGEURL = '" + newurl + "' WHERE ITEMNAME = '" + itUp +"'";
-					esql.executeUpdate(q);					
+					q = "UPDATE MENU SET IMAGEURL = ? WHERE ITEMNAME = ?";
+					esql.executeMenuUpdate(new String[] {itUp}, q, newurl, itUp);					
 				}
 				else
 				{
@@ -962,29 +1881,26 @@ try{
           String desc = in.readLine();
           System.out.print("URL: ");
           String url = in.readLine();
-          String query = String.format("INSERT INTO Menu ( itemName, type, price, description, imageURL)VALUES ('%s','%s','%s','%s','%s')", iName, typename,pricenew,desc, url);
-          esql.executeUpdate(query);
+          String query = "INSERT INTO Menu ( itemName, type, price, description, imageURL) VALUES (?,?,?,?,?)";
+          esql.executeMenuUpdate(new String[] {iName}, query, iName, typename, new BigDecimal(pricenew), desc, url);
       }
 	else if(options.toLowerCase().equals("delete"))
 	{
 		System.out.print("What item name do you want to delete? ");
 		String iname = in.readLine();
-		String query = "SELECT * FROM Menu WHERE itemName = '" + iname + "'";
-		int count = esql.executeQuery(query);
-		if(count == 0)
+		if(!esql.getMenu().contains(iname))
 		{
 			System.out.print("No such item name\n ");
 			return;
 		}
-		query = "SELECT * FROM ItemStatus WHERE itemName = '" + iname + "'";
-		count = esql.executeQuery(query);
-		if(count!=0)
+		String query = "SELECT 1 FROM ItemStatus WHERE itemName = ? LIMIT 1";
+		if(esql.exists(query, iname))
 		{
 			System.out.print("Cannot delete because still in order\n");
 			return;
 		}
-		query = "DELETE FROM Menu WHERE itemName = '" + iname + "'";
-		esql.executeUpdate(query);
+		query = "DELETE FROM Menu WHERE itemName = ?";
+		esql.executeMenuUpdate(new String[] {iname}, query, iname);
 	}
 	else
 	return;
@@ -1001,16 +1917,14 @@ catch(Exception e){
       // ...
 try{
         System.out.print("What is the order id: ");
-        String oid = in.readLine();
-        String query = "SELECT * FROM Orders WHERE orderid = '" + oid + "'";
-        int count = esql.executeQuery(query);
-          if(count == 0)
+        int oid = Integer.parseInt(in.readLine());
+        ColumnarResult items = esql.getOrderStatus(oid);
+          if(items == null)
           {
               System.out.print("No such order id");
               return;
           }
-        query = "SELECT itemName, status FROM ItemStatus WHERE orderid = '" + oid +"'";
-        esql.executeQueryAndPrintResult(query);
+        esql.printResult(items);
 }
 
 catch(Exception e){
@@ -1025,9 +1939,14 @@ catch(Exception e){
       // ...
 	//timestamp
 	try{
-		Timestamp date = new Timestamp(System.currentTimeMillis());
-		String query = "SELECT * FROM Orders WHERE timeStampRecieved >= NOW() - INTERVAL '1' DAY AND paid = false"; //index this
-		esql.executeQueryAndPrintResult(query);
+		System.out.print("Show the live kitchen board? (y or n) ");
+		if (in.readLine().equals("y"))
+		{
+			// loads the open orders once, then only reads what changed
+			new KitchenBoard(esql).run(in, Long.getLong("cafe.board.refreshMs", 2000L));
+			return;
+		}
+		esql.printResult(esql.getCurrentOrders());
 	}
    
 catch(Exception e){
@@ -1036,10 +1955,49 @@ catch(Exception e){
 	}
    }//end
 
+   /*
+    * Sales reports for managers, read from the rollup tables, see SalesReports
+    **/
    public static void Query6(Cafe esql){
-      // Your code goes here.
-      // ...
-      // ...
+	try{
+		SalesReports reports = new SalesReports(esql);
+		System.out.println("1. Top items");
+		System.out.println("2. Revenue by day");
+		System.out.println("3. Revenue by hour of one day");
+		System.out.println("4. Busy hours of the day");
+		System.out.println("5. Average ticket size");
+		System.out.println("6. Item prep times");
+		int choice = readChoice();
+		if (choice == 3){
+			System.out.print("\tWhich day (yyyy-mm-dd, blank for today): ");
+			String day = in.readLine().trim();
+			if (day.isEmpty())
+				day = new java.sql.Date(System.currentTimeMillis()).toString();
+			reports.revenueByHour(day);
+			return;
+		}
+		if (choice < 1 || choice > 6){
+			System.out.println("Unrecognized choice!");
+			return;
+		}
+		System.out.print("\tOver how many days, ending today (blank for 7): ");
+		String input = in.readLine().trim();
+		int days = input.isEmpty() ? 7 : Integer.parseInt(input);
+		if (days < 1){
+			System.out.println("The period must be at least one day");
+			return;
+		}
+		switch (choice){
+			case 1: reports.topItems(days, 10); break;
+			case 2: reports.revenueByDay(days); break;
+			case 4: reports.revenueByHourOfDay(days); break;
+			case 5: reports.averageTicket(days); break;
+			case 6: reports.prepTimes(days); break;
+		}
+	}
+	catch(Exception e){
+		System.err.println (e.getMessage());
+	}
    }//end Query6
 
 }//end Cafe
@@ -0,0 +1,306 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * This class collects the latency, rows, round trips and errors of every
+ * Cafe data-access method ("queries") and of every menu action the user
+ * picks ("actions").  Each one is published as an MBean under
+ * cafe:type=Query,name=... or cafe:type=Action,name=..., so jconsole or
+ * any JMX client can see which action is eating database time.
+ *
+ * Recording is lock-free: LatencyHistogram buckets and LongAdder counters.
+ * The action in progress is kept per thread, so the queries it runs add
+ * their round trips and rows to it without any lookup.
+ *
+ * With -Dcafe.metrics.log=file every operation is also written to that
+ * file every cafe.metrics.logSec seconds (default 60).
+ */
+public class CafeMetrics {
+
+   /**
+    * The attributes an operation shows over JMX.  Times are in milliseconds.
+    */
+   public interface OperationMBean {
+      long getCount ();
+      long getErrorCount ();
+      long getRows ();
+      long getRoundTrips ();
+      double getMeanMillis ();
+      double getP50Millis ();
+      double getP95Millis ();
+      double getP99Millis ();
+      double getMaxMillis ();
+      void reset ();
+   }//end OperationMBean
+
+   /**
+    * The metrics of one query method or one action.
+    */
+   public static class Operation implements OperationMBean {
+      public final String type;
+      public final String name;
+
+      private final LatencyHistogram _latency = new LatencyHistogram();
+      private final LongAdder _errors = new LongAdder();
+      private final LongAdder _rows = new LongAdder();
+      private final LongAdder _roundTrips = new LongAdder();
+
+      Operation (String type, String name) {
+         this.type = type;
+         this.name = name;
+      }//end Operation
+
+      /**
+       * Method to record a call that succeeded and ran one statement.
+       *
+       * @param startNanos System.nanoTime() when the call started
+       * @param rows the rows it returned or changed
+       */
+      public void record (long startNanos, long rows) {
+         record(startNanos, rows, 1);
+      }//end record
+
+      /**
+       * Method to record a call that succeeded.
+       *
+       * @param startNanos System.nanoTime() when the call started
+       * @param rows the rows it returned or changed
+       * @param roundTrips the statements it sent
+       */
+      public void record (long startNanos, long rows, long roundTrips) {
+         this._latency.record(System.nanoTime() - startNanos);
+         this._rows.add(rows);
+         this._roundTrips.add(roundTrips);
+         Action action = CURRENT.get();
+         if (action.op != null)
+            action.rows += rows;
+      }//end record
+
+      /**
+       * Method to record a call that failed.
+       *
+       * @param startNanos System.nanoTime() when the call started
+       */
+      public void failed (long startNanos) {
+         this._latency.record(System.nanoTime() - startNanos);
+         this._errors.increment();
+         this._roundTrips.increment();
+         Action action = CURRENT.get();
+         if (action.op != null)
+            action.failed = true;
+      }//end failed
+
+      public long getCount () { return this._latency.getCount(); }
+      public long getErrorCount () { return this._errors.sum(); }
+      public long getRows () { return this._rows.sum(); }
+      public long getRoundTrips () { return this._roundTrips.sum(); }
+      public double getMeanMillis () { return this._latency.getMeanNanos() / 1e6; }
+      public double getP50Millis () { return this._latency.getPercentileNanos(50) / 1e6; }
+      public double getP95Millis () { return this._latency.getPercentileNanos(95) / 1e6; }
+      public double getP99Millis () { return this._latency.getPercentileNanos(99) / 1e6; }
+      public double getMaxMillis () { return this._latency.getMaxNanos() / 1e6; }
+
+      public void reset () {
+         this._latency.reset();
+         this._errors.reset();
+         this._rows.reset();
+         this._roundTrips.reset();
+      }//end reset
+
+      @Override
+      public String toString () {
+         return String.format("%-6s %-28s %s rows=%d roundTrips=%d errors=%d",
+            this.type, this.name, this._latency, getRows(), getRoundTrips(), getErrorCount());
+      }//end toString
+   }//end Operation
+
+   /**
+    * The action running on a thread.  There is one per thread and it is
+    * reused, so starting an action does not allocate.  Close it in a
+    * finally block to record the action.  Actions do not nest.
+    */
+   public static class Action implements AutoCloseable {
+      // statements sent by this thread, never reset
+      private long statements;
+      private Operation op;
+      private long start;
+      private long rows;
+      private int roundTrips;
+      private boolean failed;
+
+      /**
+       * Records the action and ends it.
+       */
+      public void close () {
+         Operation op = this.op;
+         if (op == null)
+            return;
+         this.op = null;
+         op._latency.record(System.nanoTime() - this.start);
+         op._rows.add(this.rows);
+         op._roundTrips.add(this.roundTrips);
+         if (this.failed)
+            op._errors.increment();
+      }//end close
+   }//end Action
+
+   private static final ThreadLocal<Action> CURRENT = new ThreadLocal<Action>() {
+      protected Action initialValue () {
+         return new Action();
+      }
+   };
+
+   // every operation by "type name", sorted for the log
+   private static final Map<String, Operation> OPERATIONS = new ConcurrentSkipListMap<String, Operation>();
+
+   private static Thread _logger = null;
+
+   /**
+    * @param name the name of a Cafe data-access method
+    * @return the metrics of that method, created and registered on first use
+    */
+   public static Operation query (String name) {
+      return operation("Query", name);
+   }//end query
+
+   /**
+    * Method to start timing a menu action on this thread.  The queries run
+    * until the action is closed count toward it.  An action cannot start
+    * while another is running on the thread: the outer one would lose its
+    * numbers, and the replica routing would see the wrong action.
+    *
+    * @param name the action, e.g. the handler name
+    * @return the action, to be closed when it is done
+    * @throws java.lang.IllegalStateException when an action is already running
+    */
+   public static Action action (String name) {
+      Action action = CURRENT.get();
+      if (action.op != null)
+         throw new IllegalStateException("Action " + name + " started inside action " + action.op.name);
+      action.op = operation("Action", name);
+      action.start = System.nanoTime();
+      action.rows = 0;
+      action.roundTrips = 0;
+      action.failed = false;
+      return action;
+   }//end action
+
+   /**
+    * Method to count one database round trip toward the action running
+    * on this thread, if any.
+    */
+   public static void roundTrip () {
+      Action action = CURRENT.get();
+      action.statements++;
+      if (action.op != null)
+         action.roundTrips++;
+   }//end roundTrip
+
+   /**
+    * @return the name of the action running on this thread, or null
+    */
+   public static String currentAction () {
+      Operation op = CURRENT.get().op;
+      return op == null ? null : op.name;
+   }//end currentAction
+
+   /**
+    * @return the statements this thread has sent so far; the difference of
+    *         two calls is the round trips made in between
+    */
+   public static long statements () {
+      return CURRENT.get().statements;
+   }//end statements
+
+   private static Operation operation (String type, String name) {
+      String key = type + " " + name;
+      Operation op = OPERATIONS.get(key);
+      if (op != null)
+         return op;
+      synchronized (OPERATIONS) {
+         op = OPERATIONS.get(key);
+         if (op == null) {
+            op = new Operation(type, name);
+            OPERATIONS.put(key, op);
+            register(op);
+         }//end if
+      }//end synchronized
+      return op;
+   }//end operation
+
+   private static void register (Operation op) {
+      try{
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName("cafe:type=" + op.type + ",name=" + ObjectName.quote(op.name));
+         if (!server.isRegistered(name))
+            server.registerMBean(new StandardMBean(op, OperationMBean.class), name);
+      }catch (JMException e){
+         System.err.println("Unable to publish metrics of " + op.name + ": " + e.getMessage());
+      }//end try
+   }//end register
+
+   /**
+    * @return every operation, one per line
+    */
+   public static String dump () {
+      StringBuilder out = new StringBuilder();
+      for (Operation op : OPERATIONS.values())
+         if (op.getCount() > 0)
+            out.append(op).append('\n');
+      return out.toString();
+   }//end dump
+
+   /**
+    * Method to start writing the metrics to a file periodically when
+    * cafe.metrics.log is set.  Does nothing when it is not set or the
+    * writer is already running.
+    */
+   public static synchronized void startLogFromSystemProperties () {
+      final String file = System.getProperty("cafe.metrics.log");
+      if (file == null || file.isEmpty() || _logger != null)
+         return;
+      final long period = Long.getLong("cafe.metrics.logSec", 60L) * 1000;
+      _logger = new Thread(new Runnable() {
+         public void run () {
+            while (!Thread.currentThread().isInterrupted()) {
+               try{
+                  Thread.sleep(period);
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+               try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+                  out.println("-- " + new Timestamp(System.currentTimeMillis()));
+                  out.print(dump());
+               }catch (IOException e){
+                  System.err.println("Unable to write metrics to " + file + ": " + e.getMessage());
+               }//end try
+            }//end while
+         }
+      }, "cafe-metrics-log");
+      _logger.setDaemon(true);
+      _logger.start();
+   }//end startLogFromSystemProperties
+
+}//end CafeMetrics
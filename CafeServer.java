@@ -0,0 +1,944 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the Cafe operations as a JSON API over HTTP, for the
+ * mobile ordering app and the in-store tablets:
+ *
+ *   java Cafe db port --serve 8080
+ *
+ *   POST   /login                      {"login", "password"} -> {"token", "role", "favorites"}
+ *   POST   /logout
+ *   GET    /menu[?type=|?q=|?name=]    the menu, one type, a search, or one item
+ *   POST   /menu                       manager: add an item
+ *   PUT    /menu/{name}                manager: change type, price, description, imageURL
+ *   DELETE /menu/{name}                manager: remove an item that is in no order
+ *   POST   /orders                     {"items": [{"name", "comments"}]} -> {"orderid"}
+ *   POST   /orders/reorder             order the user's favorites again
+ *   GET    /orders/current             staff: unpaid orders of the last day
+ *   GET    /orders/{id}                an order and the status of its items
+ *   POST   /orders/{id}/items          {"name", "comments"}: add an item to an open order
+ *   PUT    /orders/{id}/items/{name}   {"comments"} or, staff, {"status"}
+ *   POST   /orders/{id}/paid           staff: mark an order paid
+ *
+ * Every request but /login and GET /menu needs "Authorization: Bearer
+ * <token>".  The token is the id of a Session, which is closed after
+ * cafe.server.sessionIdleMin minutes without a request.
+ *
+ * Requests run on virtual threads when the JDK has them (21 and later),
+ * else on a pool of cafe.server.threads threads.  Each request runs as
+ * the menu action of the same name, so CafeMetrics, the slow query log,
+ * the replica routing and the order journal treat it like the console.
+ * The menu is answered from the menu cache without touching the database.
+ *
+ * Settings (system properties):
+ *   cafe.server.backlog          pending connections, default 1024
+ *   cafe.server.threads          threads when there are no virtual threads, default 256
+ *   cafe.server.sessionIdleMin   idle minutes before a session is closed, default 30
+ *   cafe.server.maxBodyBytes     largest request body, default 65536
+ */
+public class CafeServer {
+
+   private static final String ORDER_STATUS =
+      "SELECT o.orderid, o.login, o.paid, o.total, o.timeStampRecieved, " +
+      "s.itemName, s.status, s.comments, s.lastUpdated " +
+      "FROM Orders o LEFT JOIN ItemStatus s ON s.orderid = o.orderid WHERE o.orderid = ? " +
+      "ORDER BY s.itemName";
+   private static final String SET_COMMENTS =
+      "UPDATE ItemStatus SET comments = ? WHERE orderid = ? AND itemName = ?";
+
+   /**
+    * A request that cannot be served, with the HTTP status to answer.
+    */
+   private static class ApiException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      ApiException (int status, String message) {
+         super(message);
+         this.status = status;
+      }//end ApiException
+   }//end ApiException
+
+   /**
+    * One request being served.
+    */
+   private class Request {
+      final HttpExchange exchange;
+      final String method;
+      // the path split at '/', decoded, without the leading empty part
+      final String[] path;
+      final Map<String, String> query;
+      Session session = null;
+
+      Request (HttpExchange exchange) throws ApiException {
+         this.exchange = exchange;
+         this.method = exchange.getRequestMethod().toUpperCase();
+         String raw = exchange.getRequestURI().getRawPath();
+         List<String> parts = new ArrayList<String>();
+         for (String part : raw.split("/"))
+            if (!part.isEmpty())
+               parts.add(decode(part));
+         this.path = parts.toArray(new String[0]);
+         this.query = new LinkedHashMap<String, String>();
+         String q = exchange.getRequestURI().getRawQuery();
+         if (q != null)
+            for (String pair : q.split("&")) {
+               int eq = pair.indexOf('=');
+               if (eq > 0)
+                  this.query.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+            }//end for
+      }//end Request
+
+      // the JSON object sent with the request
+      Map<String, Object> body () throws ApiException {
+         byte[] bytes = readBody(this.exchange.getRequestBody());
+         Object value = bytes.length == 0 ? new LinkedHashMap<String, Object>()
+            : Json.parse(new String(bytes, StandardCharsets.UTF_8));
+         if (!(value instanceof Map))
+            throw new ApiException(400, "The body must be a JSON object");
+         @SuppressWarnings("unchecked")
+         Map<String, Object> map = (Map<String, Object>) value;
+         return map;
+      }//end body
+
+      Session authenticate () throws ApiException {
+         String header = this.exchange.getRequestHeaders().getFirst("Authorization");
+         if (header == null || !header.startsWith("Bearer "))
+            throw new ApiException(401, "Log in first");
+         this.session = Session.lookup(header.substring(7).trim());
+         if (this.session == null)
+            throw new ApiException(401, "Session expired, log in again");
+         CafeServer.this._esql.getRouter().bind(this.session);
+         return this.session;
+      }//end authenticate
+
+      Session staff () throws ApiException {
+         Session session = authenticate();
+         if (session.role == Session.Role.CUSTOMER)
+            throw new ApiException(403, "Only employees and managers may do this");
+         return session;
+      }//end staff
+
+      Session manager () throws ApiException {
+         Session session = authenticate();
+         if (session.role != Session.Role.MANAGER)
+            throw new ApiException(403, "Only managers may do this");
+         return session;
+      }//end manager
+   }//end Request
+
+   private final Cafe _esql;
+   private final int _port;
+   private final int _maxBodyBytes = Integer.getInteger("cafe.server.maxBodyBytes", 64 * 1024);
+   private final long _sessionIdleMillis = Long.getLong("cafe.server.sessionIdleMin", 30L) * 60 * 1000;
+   private final CountDownLatch _stopped = new CountDownLatch(1);
+   private HttpServer _server = null;
+   private ExecutorService _executor = null;
+   private ScheduledExecutorService _reaper = null;
+
+   /**
+    * Creates a server; call start() to listen
+    *
+    * @param esql the database access object
+    * @param port the HTTP port
+    */
+   public CafeServer (Cafe esql, int port) {
+      this._esql = esql;
+      this._port = port;
+   }//end CafeServer
+
+   /**
+    * Method to start listening.
+    *
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public void start () throws IOException {
+      this._server = HttpServer.create(new InetSocketAddress(this._port), Integer.getInteger("cafe.server.backlog", 1024));
+      this._executor = newExecutor();
+      this._server.setExecutor(this._executor);
+      this._server.createContext("/login", route("LogIn"));
+      this._server.createContext("/logout", route("LogOut"));
+      this._server.createContext("/menu", route("Menu"));
+      this._server.createContext("/orders", route("Orders"));
+      this._server.start();
+
+      this._reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "cafe-session-reaper");
+         t.setDaemon(true);
+         return t;
+      });
+      this._reaper.scheduleWithFixedDelay(this::closeIdleSessions, 1, 1, TimeUnit.MINUTES);
+      System.out.println("Serving the Cafe API on port " + this._port);
+   }//end start
+
+   // a virtual thread per request where the JDK has them
+   private static ExecutorService newExecutor () {
+      try{
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (ReflectiveOperationException e){
+         return Executors.newFixedThreadPool(Integer.getInteger("cafe.server.threads", 256), r -> {
+            Thread t = new Thread(r, "cafe-http");
+            t.setDaemon(true);
+            return t;
+         });
+      }//end try
+   }//end newExecutor
+
+   /**
+    * Method to wait until stop() is called.
+    *
+    * @throws java.lang.InterruptedException when the wait was interrupted
+    */
+   public void awaitStop () throws InterruptedException {
+      this._stopped.await();
+   }//end awaitStop
+
+   /**
+    * Method to stop listening, giving requests in progress a moment to finish.
+    */
+   public void stop () {
+      if (this._server != null)
+         this._server.stop(2);
+      if (this._executor != null)
+         this._executor.shutdown();
+      if (this._reaper != null)
+         this._reaper.shutdownNow();
+      this._stopped.countDown();
+   }//end stop
+
+   private void closeIdleSessions () {
+      long oldest = System.currentTimeMillis() - this._sessionIdleMillis;
+      for (Session session : Session.openSessions())
+         if (session.getLastAccessMillis() < oldest)
+            session.close();
+   }//end closeIdleSessions
+
+   private HttpHandler route (final String resource) {
+      return new HttpHandler() {
+         public void handle (HttpExchange exchange) throws IOException {
+            serve(resource, exchange);
+         }
+      };
+   }//end route
+
+   private void serve (String resource, HttpExchange exchange) throws IOException {
+      int status = 200;
+      Object response;
+      Request request = null;
+      try{
+         request = new Request(exchange);
+         switch (resource) {
+            case "LogIn": response = login(request); break;
+            case "LogOut": response = logout(request); break;
+            case "Menu": response = menu(request); break;
+            default: response = orders(request); break;
+         }//end switch
+         if (response instanceof Created) {
+            status = 201;
+            response = ((Created) response).body;
+         }//end if
+      }catch (ApiException e){
+         status = e.status;
+         response = error(e.getMessage());
+      }catch (SQLException e){
+         // constraint violations are the caller's fault, everything else ours;
+         // the message names tables and columns, so it stays in the server log
+         String state = e.getSQLState();
+         if (state != null && state.startsWith("23")) {
+            status = 409;
+            response = error("The request conflicts with existing data");
+         } else if (state != null && state.startsWith("22")) {
+            status = 400;
+            response = error("A value in the request is not valid");
+         } else {
+            status = 500;
+            response = error("Internal error");
+         }//end if
+         log(exchange, e);
+      }catch (IOException e){
+         // the order journal is full or closed while the database is away
+         status = 503;
+         response = error("Orders cannot be taken right now, try again later");
+         log(exchange, e);
+      }catch (RuntimeException e){
+         status = 500;
+         response = error("Internal error");
+         log(exchange, e);
+      }finally{
+         if (request != null && request.session != null)
+            this._esql.getRouter().bind(null);
+      }//end try
+      byte[] bytes = Json.write(response).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+         out.write(bytes);
+      }
+   }//end serve
+
+   private static void log (HttpExchange exchange, Exception e) {
+      System.err.println(new Timestamp(System.currentTimeMillis()) + " " + exchange.getRequestMethod() + " " +
+         exchange.getRequestURI().getRawPath() + ": " + e);
+   }//end log
+
+   /**
+    * A response body answered with 201 Created.
+    */
+   private static class Created {
+      final Object body;
+
+      Created (Object body) {
+         this.body = body;
+      }//end Created
+   }//end Created
+
+   private static Map<String, Object> error (String message) {
+      Map<String, Object> out = new LinkedHashMap<String, Object>();
+      out.put("error", message);
+      return out;
+   }//end error
+
+   private static Map<String, Object> object (Object... keysAndValues) {
+      Map<String, Object> out = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < keysAndValues.length; i += 2)
+         out.put((String) keysAndValues[i], keysAndValues[i + 1]);
+      return out;
+   }//end object
+
+   // POST /login
+   private Object login (Request request) throws ApiException, SQLException {
+      expect(request, "POST", 1);
+      Map<String, Object> body = request.body();
+      Session session;
+      CafeMetrics.Action a = CafeMetrics.action("LogIn");
+      try{
+         session = this._esql.querySingleRow(Session.LOGIN_QUERY, Session.FROM_ROW,
+            string(body, "login", true), string(body, "password", true));
+      }finally{
+         a.close();
+      }//end try
+      if (session == null)
+         throw new ApiException(401, "Wrong login or password");
+      session.open();
+      return object("token", session.id, "login", session.login, "role", session.role.column,
+         "favorites", favorites(session.getFavorites()));
+   }//end login
+
+   // POST /logout
+   private Object logout (Request request) throws ApiException {
+      expect(request, "POST", 1);
+      request.authenticate().close();
+      return object("loggedOut", true);
+   }//end logout
+
+   private static List<Object> favorites (Session.Favorites favorites) {
+      List<Object> out = new ArrayList<Object>();
+      for (int i = 0; i < favorites.items.size(); i++)
+         out.add(object("name", favorites.items.get(i), "comments", favorites.comments.get(i)));
+      return out;
+   }//end favorites
+
+   // /menu and /menu/{name}
+   private Object menu (Request request) throws ApiException, SQLException {
+      MenuCache menu = this._esql.getMenu();
+      if (request.method.equals("GET") && request.path.length == 1) {
+         CafeMetrics.Action a = CafeMetrics.action(request.query.containsKey("type") ? "BrowseMenuType" : "BrowseMenuName");
+         try{
+            String name = request.query.get("name");
+            if (name != null) {
+               MenuCache.MenuItem item = menu.get(name);
+               if (item == null)
+                  throw new ApiException(404, "No item named " + name);
+               return item(item);
+            }//end if
+            List<Object> items = new ArrayList<Object>();
+            String q = request.query.get("q");
+            if (q != null) {
+               int limit = request.query.containsKey("limit") ? integer(request.query.get("limit")) : 10;
+               for (MenuSearchIndex.Match m : this._esql.getMenuSearch().search(q, limit)) {
+                  Map<String, Object> item = item(m.item);
+                  item.put("score", m.score);
+                  items.add(item);
+               }//end for
+               return items;
+            }//end if
+            String type = request.query.get("type");
+            List<MenuCache.MenuItem> found = type != null ? menu.getByType(type)
+               : new ArrayList<MenuCache.MenuItem>(menu.getAll());
+            if (type == null)
+               Collections.sort(found, new Comparator<MenuCache.MenuItem>() {
+                  public int compare (MenuCache.MenuItem x, MenuCache.MenuItem y) {
+                     return x.itemName.compareTo(y.itemName);
+                  }
+               });
+            for (MenuCache.MenuItem item : found)
+               items.add(item(item));
+            return items;
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+
+      request.manager();
+      CafeMetrics.Action a = CafeMetrics.action("UpdateMenu");
+      try{
+         if (request.method.equals("POST") && request.path.length == 1) {
+            Map<String, Object> body = request.body();
+            String name = string(body, "itemName", true);
+            this._esql.executeMenuUpdate(new String[] {name},
+               "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?,?,?,?,?)",
+               name, string(body, "type", true), decimal(body, "price", true),
+               string(body, "description", false), string(body, "imageURL", false));
+            return new Created(item(menu.get(name)));
+         }//end if
+         if (request.path.length != 2)
+            throw new ApiException(404, "No such resource");
+         String name = request.path[1];
+         if (!menu.contains(name))
+            throw new ApiException(404, "No item named " + name);
+         if (request.method.equals("PUT")) {
+            Map<String, Object> body = request.body();
+            this._esql.executeMenuUpdate(new String[] {name},
+               "UPDATE Menu SET type = COALESCE(?, type), price = COALESCE(?, price), " +
+               "description = COALESCE(?, description), imageURL = COALESCE(?, imageURL) WHERE itemName = ?",
+               string(body, "type", false), decimal(body, "price", false),
+               string(body, "description", false), string(body, "imageURL", false), name);
+            return item(menu.get(name));
+         }//end if
+         if (request.method.equals("DELETE")) {
+            if (this._esql.exists("SELECT 1 FROM ItemStatus WHERE itemName = ? LIMIT 1", name))
+               throw new ApiException(409, "Cannot delete because still in order");
+            this._esql.executeMenuUpdate(new String[] {name}, "DELETE FROM Menu WHERE itemName = ?", name);
+            return object("deleted", name);
+         }//end if
+         throw new ApiException(405, "Method not allowed");
+      }finally{
+         a.close();
+      }//end try
+   }//end menu
+
+   private static Map<String, Object> item (MenuCache.MenuItem item) {
+      return object("itemName", item.itemName, "type", item.type, "price", item.price,
+         "description", item.description, "imageURL", item.imageURL);
+   }//end item
+
+   // /orders...
+   private Object orders (Request request) throws ApiException, IOException, SQLException {
+      Session session = request.authenticate();
+      String[] path = request.path;
+      if (path.length == 1 && request.method.equals("POST")) {
+         CafeMetrics.Action a = CafeMetrics.action("AddOrder");
+         try{
+            return placeOrder(session, request.body());
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+      if (path.length == 2 && path[1].equals("reorder") && request.method.equals("POST")) {
+         CafeMetrics.Action a = CafeMetrics.action("ReorderFavorites");
+         try{
+            int oid = this._esql.reorderFavorites(session);
+            if (oid < 0)
+               throw new ApiException(409, "A favorite is not on the menu or there are no favorites");
+            return new Created(object("orderid", oid == 0 ? null : oid));
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+      if (path.length == 2 && path[1].equals("current") && request.method.equals("GET")) {
+         request.staff();
+         CafeMetrics.Action a = CafeMetrics.action("ViewCurrentOrder");
+         try{
+            return rows(this._esql.getCurrentOrders());
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+      if (path.length < 2)
+         throw new ApiException(404, "No such resource");
+      int orderid = integer(path[1]);
+
+      if (path.length == 2 && request.method.equals("GET")) {
+         CafeMetrics.Action a = CafeMetrics.action("ViewOrderStatus");
+         try{
+            return orderStatus(session, orderid);
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+      if (path.length == 3 && path[2].equals("paid") && request.method.equals("POST")) {
+         request.staff();
+         CafeMetrics.Action a = CafeMetrics.action("EmployeeUpdateOrder");
+         try{
+            if (!this._esql.markPaid(orderid))
+               throw new ApiException(404, "No order " + orderid);
+            return object("orderid", orderid, "paid", true);
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+      if (path.length == 3 && path[2].equals("items") && request.method.equals("POST")) {
+         CafeMetrics.Action a = CafeMetrics.action("UpdateOrder");
+         try{
+            Map<String, Object> body = request.body();
+            String name = string(body, "name", true);
+            String comments = string(body, "comments", false);
+            if (!this._esql.getMenu().contains(name))
+               throw new ApiException(400, "No item named " + name);
+            if (!this._esql.isOpenOrder(orderid, session.login))
+               throw new ApiException(404, "No open order " + orderid + " of " + session.login);
+            if (this._esql.getJournal() != null)
+               this._esql.getJournal().appendAddItem(orderid, session.login, name, comments == null ? "" : comments);
+            else if (!this._esql.addItemToOrder(orderid, session.login, name, comments == null ? "" : comments))
+               throw new ApiException(409, "Order is no longer open or item is gone from the menu");
+            return new Created(object("orderid", orderid, "itemName", name));
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+      if (path.length == 4 && path[2].equals("items") && request.method.equals("PUT")) {
+         Map<String, Object> body = request.body();
+         String name = path[3];
+         String status = string(body, "status", false);
+         if (status != null) {
+            request.staff();
+            CafeMetrics.Action a = CafeMetrics.action("EmployeeUpdateOrder");
+            try{
+               if (!this._esql.setItemStatus(orderid, name, status))
+                  throw new ApiException(404, "No item " + name + " in order " + orderid);
+               return object("orderid", orderid, "itemName", name, "status", status);
+            }finally{
+               a.close();
+            }//end try
+         }//end if
+         String comments = string(body, "comments", true);
+         CafeMetrics.Action a = CafeMetrics.action("UpdateOrder");
+         try{
+            if (session.role == Session.Role.CUSTOMER && !this._esql.isOpenOrder(orderid, session.login))
+               throw new ApiException(404, "No open order " + orderid + " of " + session.login);
+            if (this._esql.getJournal() != null)
+               this._esql.getJournal().appendComment(orderid, session.login, name, comments);
+            else if (this._esql.executeUpdate(SET_COMMENTS, comments, orderid, name) == 0)
+               throw new ApiException(404, "No item " + name + " in order " + orderid);
+            return object("orderid", orderid, "itemName", name, "comments", comments);
+         }finally{
+            a.close();
+         }//end try
+      }//end if
+      throw new ApiException(404, "No such resource");
+   }//end orders
+
+   private Object placeOrder (Session session, Map<String, Object> body) throws ApiException, IOException, SQLException {
+      Object list = body.get("items");
+      if (!(list instanceof List) || ((List<?>) list).isEmpty())
+         throw new ApiException(400, "items must be a non-empty array");
+      List<String> items = new ArrayList<String>();
+      List<String> comments = new ArrayList<String>();
+      for (Object entry : (List<?>) list) {
+         if (!(entry instanceof Map))
+            throw new ApiException(400, "each item must be an object with a name");
+         @SuppressWarnings("unchecked")
+         Map<String, Object> item = (Map<String, Object>) entry;
+         String name = string(item, "name", true);
+         if (!this._esql.getMenu().contains(name))
+            throw new ApiException(400, "No item named " + name);
+         if (items.contains(name))
+            throw new ApiException(400, "Item " + name + " is listed twice");
+         String comment = string(item, "comments", false);
+         items.add(name);
+         comments.add(comment == null ? "" : comment);
+      }//end for
+      int oid;
+      if (this._esql.getJournal() != null) {
+         oid = this._esql.getJournal().appendOrder(session.login, items, comments);
+         return new Created(object("orderid", oid == 0 ? null : oid));
+      }//end if
+      if (items.size() == 1) {
+         oid = this._esql.placeOrder(session.login, items.get(0), comments.get(0));
+      } else {
+         List<String> rejected = new ArrayList<String>();
+         oid = this._esql.placeOrder(session.login, items, comments, rejected);
+      }//end if
+      if (oid < 0)
+         throw new ApiException(409, "An item is no longer on the menu");
+      return new Created(object("orderid", oid));
+   }//end placeOrder
+
+   private Object orderStatus (Session session, int orderid) throws ApiException, SQLException {
+      ColumnarResult rows = this._esql.executeQueryAndReturnResult(ORDER_STATUS, orderid);
+      if (rows.getRowCount() == 0) {
+         if (this._esql.getJournal() != null && this._esql.getJournal().isPending(orderid, session.login))
+            return object("orderid", orderid, "pending", true);
+         throw new ApiException(404, "No order " + orderid);
+      }//end if
+      String login = rows.getString(0, 2).trim();
+      if (session.role == Session.Role.CUSTOMER && !login.equals(session.login))
+         throw new ApiException(404, "No order " + orderid);
+      List<Object> items = new ArrayList<Object>();
+      for (int r = 0; r < rows.getRowCount(); r++)
+         if (!rows.isNull(r, 6))
+            items.add(object("itemName", rows.getString(r, 6).trim(), "status", trim(rows.getString(r, 7)),
+               "comments", trim(rows.getString(r, 8)), "lastUpdated", rows.getString(r, 9)));
+      return object("orderid", orderid, "login", login, "paid", rows.getBoolean(0, 3),
+         "total", rows.getBigDecimal(0, 4), "timeStampRecieved", rows.getString(0, 5), "items", items);
+   }//end orderStatus
+
+   // every row as an object keyed by column name
+   private static List<Object> rows (ColumnarResult result) {
+      List<Object> out = new ArrayList<Object>(result.getRowCount());
+      for (int r = 0; r < result.getRowCount(); r++) {
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         for (int c = 1; c <= result.getColumnCount(); c++) {
+            Object value;
+            if (result.isNull(r, c))
+               value = null;
+            else switch (result.getKind(c)) {
+               case INT: case LONG: value = result.getLong(r, c); break;
+               case DOUBLE: value = result.getDouble(r, c); break;
+               case MONEY: case DECIMAL: value = result.getBigDecimal(r, c); break;
+               case BOOLEAN: value = result.getBoolean(r, c); break;
+               default: value = trim(result.getString(r, c)); break;
+            }//end switch
+            row.put(result.getColumnName(c), value);
+         }//end for
+         out.add(row);
+      }//end for
+      return out;
+   }//end rows
+
+   private static void expect (Request request, String method, int pathLength) throws ApiException {
+      if (request.path.length != pathLength)
+         throw new ApiException(404, "No such resource");
+      if (!request.method.equals(method))
+         throw new ApiException(405, "Method not allowed");
+   }//end expect
+
+   private static String string (Map<String, Object> body, String key, boolean required) throws ApiException {
+      Object value = body.get(key);
+      if (value == null) {
+         if (required)
+            throw new ApiException(400, key + " is required");
+         return null;
+      }//end if
+      if (!(value instanceof String))
+         throw new ApiException(400, key + " must be a string");
+      return (String) value;
+   }//end string
+
+   private static BigDecimal decimal (Map<String, Object> body, String key, boolean required) throws ApiException {
+      Object value = body.get(key);
+      if (value == null) {
+         if (required)
+            throw new ApiException(400, key + " is required");
+         return null;
+      }//end if
+      try{
+         BigDecimal price = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+         if (price.signum() < 0)
+            throw new ApiException(400, key + " must not be negative");
+         return price;
+      }catch (NumberFormatException e){
+         throw new ApiException(400, key + " must be a number");
+      }//end try
+   }//end decimal
+
+   private static int integer (String value) throws ApiException {
+      try{
+         return Integer.parseInt(value);
+      }catch (NumberFormatException e){
+         throw new ApiException(400, "'" + value + "' is not a number");
+      }//end try
+   }//end integer
+
+   private static String trim (String value) {
+      return value == null ? null : value.trim();
+   }//end trim
+
+   private static String decode (String value) throws ApiException {
+      try{
+         return URLDecoder.decode(value, "UTF-8");
+      }catch (UnsupportedEncodingException | IllegalArgumentException e){
+         throw new ApiException(400, "Bad URL encoding");
+      }//end try
+   }//end decode
+
+   private byte[] readBody (InputStream in) throws ApiException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      try{
+         while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+            if (out.size() > this._maxBodyBytes)
+               throw new ApiException(413, "Request body too large");
+         }//end while
+      }catch (IOException e){
+         throw new ApiException(400, "Unable to read the request body");
+      }//end try
+      return out.toByteArray();
+   }//end readBody
+
+   /**
+    * The JSON the API reads and writes: objects become LinkedHashMaps,
+    * arrays Lists, numbers BigDecimals.
+    */
+   static class Json {
+      // deeper objects and arrays are refused
+      private static final int MAX_DEPTH = 32;
+
+      private final String _s;
+      private int _pos = 0;
+      private int _depth = 0;
+
+      private Json (String s) {
+         this._s = s;
+      }//end Json
+
+      /**
+       * @param text a JSON document
+       * @return the value it holds
+       * @throws ApiException when the text is not JSON
+       */
+      static Object parse (String text) throws ApiException {
+         Json json = new Json(text);
+         Object value = json.value();
+         json.skipSpace();
+         if (json._pos != text.length())
+            throw json.fail("unexpected text after the value");
+         return value;
+      }//end parse
+
+      private ApiException fail (String problem) {
+         return new ApiException(400, "Bad JSON at " + this._pos + ": " + problem);
+      }//end fail
+
+      private void skipSpace () {
+         while (this._pos < this._s.length() && Character.isWhitespace(this._s.charAt(this._pos)))
+            this._pos++;
+      }//end skipSpace
+
+      private Object value () throws ApiException {
+         skipSpace();
+         if (this._pos >= this._s.length())
+            throw fail("value expected");
+         char ch = this._s.charAt(this._pos);
+         switch (ch) {
+            case '{':
+            case '[':
+               // a body of "[[[[..." must not run the stack out
+               if (this._depth == MAX_DEPTH)
+                  throw fail("nested deeper than " + MAX_DEPTH);
+               this._depth++;
+               try{
+                  return ch == '{' ? object() : array();
+               }finally{
+                  this._depth--;
+               }//end try
+            case '"':
+               return string();
+            default:
+               if (this._s.startsWith("true", this._pos)) { this._pos += 4; return Boolean.TRUE; }
+               if (this._s.startsWith("false", this._pos)) { this._pos += 5; return Boolean.FALSE; }
+               if (this._s.startsWith("null", this._pos)) { this._pos += 4; return null; }
+               int start = this._pos;
+               while (this._pos < this._s.length() && "+-0123456789.eE".indexOf(this._s.charAt(this._pos)) >= 0)
+                  this._pos++;
+               try{
+                  return new BigDecimal(this._s.substring(start, this._pos));
+               }catch (NumberFormatException e){
+                  this._pos = start;
+                  throw fail("value expected");
+               }//end try
+         }//end switch
+      }//end value
+
+      private Map<String, Object> object () throws ApiException {
+         Map<String, Object> map = new LinkedHashMap<String, Object>();
+         this._pos++;
+         skipSpace();
+         if (peek('}'))
+            return map;
+         do {
+            skipSpace();
+            if (this._pos >= this._s.length() || this._s.charAt(this._pos) != '"')
+               throw fail("name expected");
+            String key = string();
+            skipSpace();
+            if (!peek(':'))
+               throw fail("':' expected");
+            map.put(key, value());
+            skipSpace();
+         } while (peek(','));
+         if (!peek('}'))
+            throw fail("'}' expected");
+         return map;
+      }//end object
+
+      private List<Object> array () throws ApiException {
+         List<Object> list = new ArrayList<Object>();
+         this._pos++;
+         skipSpace();
+         if (peek(']'))
+            return list;
+         do {
+            list.add(value());
+            skipSpace();
+         } while (peek(','));
+         if (!peek(']'))
+            throw fail("']' expected");
+         return list;
+      }//end array
+
+      private boolean peek (char ch) {
+         if (this._pos < this._s.length() && this._s.charAt(this._pos) == ch) {
+            this._pos++;
+            return true;
+         }//end if
+         return false;
+      }//end peek
+
+      private String string () throws ApiException {
+         StringBuilder out = new StringBuilder();
+         this._pos++;
+         while (true) {
+            if (this._pos >= this._s.length())
+               throw fail("unterminated string");
+            char ch = this._s.charAt(this._pos++);
+            if (ch == '"')
+               return out.toString();
+            if (ch != '\\') {
+               out.append(ch);
+               continue;
+            }//end if
+            if (this._pos >= this._s.length())
+               throw fail("unterminated string");
+            char esc = this._s.charAt(this._pos++);
+            switch (esc) {
+               case 'b': out.append('\b'); break;
+               case 'f': out.append('\f'); break;
+               case 'n': out.append('\n'); break;
+               case 'r': out.append('\r'); break;
+               case 't': out.append('\t'); break;
+               case 'u':
+                  if (this._pos + 4 > this._s.length())
+                     throw fail("bad \\u escape");
+                  try{
+                     out.append((char) Integer.parseInt(this._s.substring(this._pos, this._pos + 4), 16));
+                  }catch (NumberFormatException e){
+                     throw fail("bad \\u escape");
+                  }//end try
+                  this._pos += 4;
+                  break;
+               default: out.append(esc); break;
+            }//end switch
+         }//end while
+      }//end string
+
+      /**
+       * @param value maps, lists, strings, numbers, booleans and nulls
+       * @return the value as JSON text
+       */
+      static String write (Object value) {
+         StringBuilder out = new StringBuilder(256);
+         write(out, value);
+         return out.toString();
+      }//end write
+
+      private static void write (StringBuilder out, Object value) {
+         if (value == null) {
+            out.append("null");
+         } else if (value instanceof String) {
+            quote(out, (String) value);
+         } else if (value instanceof BigDecimal) {
+            out.append(((BigDecimal) value).toPlainString());
+         } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+         } else if (value instanceof Timestamp) {
+            quote(out, value.toString());
+         } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+               if (!first)
+                  out.append(',');
+               first = false;
+               quote(out, String.valueOf(e.getKey()));
+               out.append(':');
+               write(out, e.getValue());
+            }//end for
+            out.append('}');
+         } else if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object v : (List<?>) value) {
+               if (!first)
+                  out.append(',');
+               first = false;
+               write(out, v);
+            }//end for
+            out.append(']');
+         } else {
+            quote(out, value.toString());
+         }//end if
+      }//end write
+
+      private static void quote (StringBuilder out, String s) {
+         out.append('"');
+         for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+               case '"': out.append("\\\""); break;
+               case '\\': out.append("\\\\"); break;
+               case '\n': out.append("\\n"); break;
+               case '\r': out.append("\\r"); break;
+               case '\t': out.append("\\t"); break;
+               default:
+                  if (ch < 0x20)
+                     out.append(String.format("\\u%04x", (int) ch));
+                  else
+                     out.append(ch);
+            }//end switch
+         }//end for
+         out.append('"');
+      }//end quote
+   }//end Json
+
+}//end CafeServer
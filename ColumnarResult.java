@@ -0,0 +1,423 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * This class holds a query result column by column in primitive arrays,
+ * instead of one List of Strings per row.  The storage of each column is
+ * picked from ResultSetMetaData:
+ *
+ *   INT, LONG, DOUBLE, BOOLEAN  int[], long[], double[], boolean[]
+ *   MONEY                       NUMERIC(p,s) with p <= 18, as a long scaled by 10^s
+ *   TIMESTAMP                   milliseconds since the epoch in a long[]
+ *   DECIMAL                     other NUMERIC columns, as BigDecimal[]
+ *   STRING                      dictionary codes in an int[] plus a String[] of
+ *                               the distinct values; CHAR padding is trimmed
+ *
+ * Rows are numbered from 0 and columns from 1, like JDBC.  SQL NULL is
+ * kept in a bitmap per column and reads as 0, false or null.  Use
+ * cursor() to walk the rows without allocating anything per row.
+ */
+public class ColumnarResult {
+
+   /**
+    * Storage kind of a column.
+    */
+   public enum Kind { INT, LONG, DOUBLE, BOOLEAN, MONEY, TIMESTAMP, DECIMAL, STRING }
+
+   private final String[] _names;
+   private final Kind[] _kinds;
+   private final int[] _scales;
+   private final Object[] _data;
+   private final String[][] _dictionaries;
+   private final int[] _dictionarySizes;
+   private final BitSet[] _nulls;
+   private int _rows = 0;
+   private int _capacity;
+
+   private ColumnarResult (ResultSetMetaData rsmd, int capacity) throws SQLException {
+      int numCol = rsmd.getColumnCount();
+      this._names = new String[numCol];
+      this._kinds = new Kind[numCol];
+      this._scales = new int[numCol];
+      this._data = new Object[numCol];
+      this._dictionaries = new String[numCol][];
+      this._dictionarySizes = new int[numCol];
+      this._nulls = new BitSet[numCol];
+      this._capacity = capacity;
+      for (int c = 0; c < numCol; ++c) {
+         this._names[c] = rsmd.getColumnName(c + 1);
+         this._kinds[c] = kindOf(rsmd, c + 1);
+         this._scales[c] = rsmd.getScale(c + 1);
+         this._nulls[c] = new BitSet();
+         this._data[c] = allocate(this._kinds[c], capacity);
+         if (this._kinds[c] == Kind.STRING)
+            this._dictionaries[c] = new String[16];
+      }//end for
+   }//end ColumnarResult
+
+   private static Kind kindOf (ResultSetMetaData rsmd, int col) throws SQLException {
+      switch (rsmd.getColumnType(col)) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+            return Kind.INT;
+         case Types.BIGINT:
+            return Kind.LONG;
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            return Kind.DOUBLE;
+         case Types.BIT:
+         case Types.BOOLEAN:
+            return Kind.BOOLEAN;
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            // unconstrained NUMERIC reports no usable precision
+            int precision = rsmd.getPrecision(col);
+            int scale = rsmd.getScale(col);
+            if (precision > 0 && precision <= 18 && scale >= 0 && scale <= precision)
+               return Kind.MONEY;
+            return Kind.DECIMAL;
+         case Types.DATE:
+         case Types.TIMESTAMP:
+         case Types.TIMESTAMP_WITH_TIMEZONE:
+            return Kind.TIMESTAMP;
+         default:
+            return Kind.STRING;
+      }//end switch
+   }//end kindOf
+
+   private static Object allocate (Kind kind, int capacity) {
+      switch (kind) {
+         case INT:
+         case STRING:
+            return new int[capacity];
+         case LONG:
+         case MONEY:
+         case TIMESTAMP:
+            return new long[capacity];
+         case DOUBLE:
+            return new double[capacity];
+         case BOOLEAN:
+            return new boolean[capacity];
+         default:
+            return new BigDecimal[capacity];
+      }//end switch
+   }//end allocate
+
+   /**
+    * Reads the rest of a result set.
+    *
+    * @param rs the result set, positioned before the first row
+    * @return the result in columnar form
+    * @throws java.sql.SQLException when the rows could not be read
+    */
+   public static ColumnarResult from (ResultSet rs) throws SQLException {
+      int hint = rs.getFetchSize();
+      ColumnarResult result = new ColumnarResult(rs.getMetaData(), hint > 0 ? hint : 16);
+      // one dictionary lookup table per string column while reading
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      HashMap<String, Integer>[] codes = new HashMap[result._names.length];
+      for (int c = 0; c < codes.length; ++c)
+         if (result._kinds[c] == Kind.STRING)
+            codes[c] = new HashMap<String, Integer>();
+      while (rs.next())
+         result.append(rs, codes);
+      return result;
+   }//end from
+
+   private void append (ResultSet rs, HashMap<String, Integer>[] codes) throws SQLException {
+      if (this._rows == this._capacity)
+         grow();
+      int r = this._rows;
+      for (int c = 0; c < this._names.length; ++c) {
+         int col = c + 1;
+         switch (this._kinds[c]) {
+            case INT:
+               ((int[]) this._data[c])[r] = rs.getInt(col);
+               break;
+            case LONG:
+               ((long[]) this._data[c])[r] = rs.getLong(col);
+               break;
+            case DOUBLE:
+               ((double[]) this._data[c])[r] = rs.getDouble(col);
+               break;
+            case BOOLEAN:
+               ((boolean[]) this._data[c])[r] = rs.getBoolean(col);
+               break;
+            case MONEY: {
+               BigDecimal value = rs.getBigDecimal(col);
+               if (value != null)
+                  ((long[]) this._data[c])[r] = value.setScale(this._scales[c], RoundingMode.HALF_UP).unscaledValue().longValue();
+               break;
+            }
+            case TIMESTAMP: {
+               Timestamp value = rs.getTimestamp(col);
+               if (value != null)
+                  ((long[]) this._data[c])[r] = value.getTime();
+               break;
+            }
+            case DECIMAL:
+               ((BigDecimal[]) this._data[c])[r] = rs.getBigDecimal(col);
+               break;
+            default: {
+               String value = rs.getString(col);
+               if (value != null)
+                  ((int[]) this._data[c])[r] = encode(c, codes[c], value);
+               break;
+            }
+         }//end switch
+         if (rs.wasNull())
+            this._nulls[c].set(r);
+      }//end for
+      this._rows++;
+   }//end append
+
+   private int encode (int c, HashMap<String, Integer> codes, String value) {
+      String key = trimTrailing(value);
+      Integer code = codes.get(key);
+      if (code == null) {
+         code = this._dictionarySizes[c]++;
+         if (code == this._dictionaries[c].length)
+            this._dictionaries[c] = Arrays.copyOf(this._dictionaries[c], code * 2);
+         this._dictionaries[c][code] = key;
+         codes.put(key, code);
+      }//end if
+      return code;
+   }//end encode
+
+   private void grow () {
+      int capacity = this._capacity + (this._capacity >> 1) + 1;
+      for (int c = 0; c < this._data.length; ++c) {
+         Object column = this._data[c];
+         if (column instanceof int[])
+            this._data[c] = Arrays.copyOf((int[]) column, capacity);
+         else if (column instanceof long[])
+            this._data[c] = Arrays.copyOf((long[]) column, capacity);
+         else if (column instanceof double[])
+            this._data[c] = Arrays.copyOf((double[]) column, capacity);
+         else if (column instanceof boolean[])
+            this._data[c] = Arrays.copyOf((boolean[]) column, capacity);
+         else
+            this._data[c] = Arrays.copyOf((BigDecimal[]) column, capacity);
+      }//end for
+      this._capacity = capacity;
+   }//end grow
+
+   private static String trimTrailing (String value) {
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      return end == value.length() ? value : value.substring(0, end);
+   }//end trimTrailing
+
+   /**
+    * @return the number of rows
+    */
+   public int getRowCount () {
+      return this._rows;
+   }//end getRowCount
+
+   /**
+    * @return the number of columns
+    */
+   public int getColumnCount () {
+      return this._names.length;
+   }//end getColumnCount
+
+   /**
+    * @param col the column number, from 1
+    * @return the column name
+    */
+   public String getColumnName (int col) {
+      return this._names[col - 1];
+   }//end getColumnName
+
+   /**
+    * @param col the column number, from 1
+    * @return how the column is stored
+    */
+   public Kind getKind (int col) {
+      return this._kinds[col - 1];
+   }//end getKind
+
+   /**
+    * @param name the column name, case insensitive
+    * @return the column number, from 1
+    * @throws java.lang.IllegalArgumentException when there is no such column
+    */
+   public int findColumn (String name) {
+      for (int c = 0; c < this._names.length; ++c)
+         if (this._names[c].equalsIgnoreCase(name))
+            return c + 1;
+      throw new IllegalArgumentException("No column named " + name);
+   }//end findColumn
+
+   /**
+    * @return true when the value is SQL NULL
+    */
+   public boolean isNull (int row, int col) {
+      return this._nulls[col - 1].get(row);
+   }//end isNull
+
+   /**
+    * @return the value of an INT or LONG column as an int
+    * @throws java.lang.IllegalStateException for other columns; MONEY is read with getBigDecimal
+    */
+   public int getInt (int row, int col) {
+      return (int) getLong(row, col);
+   }//end getInt
+
+   /**
+    * @return the value of an INT or LONG column
+    * @throws java.lang.IllegalStateException for other columns; MONEY is read with getBigDecimal
+    */
+   public long getLong (int row, int col) {
+      Object column = this._data[col - 1];
+      if (this._kinds[col - 1] == Kind.INT)
+         return ((int[]) column)[row];
+      if (this._kinds[col - 1] == Kind.LONG)
+         return ((long[]) column)[row];
+      throw new IllegalStateException(this._names[col - 1] + " is a " + this._kinds[col - 1] + " column");
+   }//end getLong
+
+   /**
+    * @return the value of a numeric column as a double
+    */
+   public double getDouble (int row, int col) {
+      switch (this._kinds[col - 1]) {
+         case DOUBLE:
+            return ((double[]) this._data[col - 1])[row];
+         case MONEY:
+         case DECIMAL: {
+            BigDecimal value = getBigDecimal(row, col);
+            return value == null ? 0 : value.doubleValue();
+         }
+         default:
+            return getLong(row, col);
+      }//end switch
+   }//end getDouble
+
+   /**
+    * @return the value of a numeric column as an exact decimal, or null for SQL NULL
+    */
+   public BigDecimal getBigDecimal (int row, int col) {
+      if (isNull(row, col))
+         return null;
+      switch (this._kinds[col - 1]) {
+         case MONEY:
+            return BigDecimal.valueOf(((long[]) this._data[col - 1])[row], this._scales[col - 1]);
+         case DECIMAL:
+            return ((BigDecimal[]) this._data[col - 1])[row];
+         case DOUBLE:
+            return BigDecimal.valueOf(getDouble(row, col));
+         default:
+            return BigDecimal.valueOf(getLong(row, col));
+      }//end switch
+   }//end getBigDecimal
+
+   /**
+    * @return the value of a BOOLEAN column
+    */
+   public boolean getBoolean (int row, int col) {
+      return ((boolean[]) this._data[col - 1])[row];
+   }//end getBoolean
+
+   /**
+    * @return the value of a TIMESTAMP column in milliseconds since the epoch
+    */
+   public long getTimeMillis (int row, int col) {
+      if (this._kinds[col - 1] != Kind.TIMESTAMP)
+         throw new IllegalStateException(this._names[col - 1] + " is a " + this._kinds[col - 1] + " column");
+      return ((long[]) this._data[col - 1])[row];
+   }//end getTimeMillis
+
+   /**
+    * @return the value of any column as text, or null for SQL NULL
+    */
+   public String getString (int row, int col) {
+      if (isNull(row, col))
+         return null;
+      int c = col - 1;
+      switch (this._kinds[c]) {
+         case STRING:
+            return this._dictionaries[c][((int[]) this._data[c])[row]];
+         case BOOLEAN:
+            return getBoolean(row, col) ? "t" : "f";
+         case DOUBLE:
+            return Double.toString(getDouble(row, col));
+         case MONEY:
+         case DECIMAL:
+            return getBigDecimal(row, col).toPlainString();
+         case TIMESTAMP:
+            return new Timestamp(getTimeMillis(row, col)).toString();
+         default:
+            return Long.toString(getLong(row, col));
+      }//end switch
+   }//end getString
+
+   /**
+    * @param col the number of a STRING column, from 1
+    * @return the dictionary code of the value, equal codes mean equal strings
+    */
+   public int getStringCode (int row, int col) {
+      return ((int[]) this._data[col - 1])[row];
+   }//end getStringCode
+
+   /**
+    * @return a cursor positioned before the first row
+    */
+   public Cursor cursor () {
+      return new Cursor();
+   }//end cursor
+
+   /**
+    * Walks the rows of the result like a ResultSet.  The same cursor object
+    * is used for every row, so iterating allocates nothing.
+    */
+   public class Cursor {
+      private int _row = -1;
+
+      /**
+       * @return false when there are no more rows
+       */
+      public boolean next () {
+         return ++this._row < _rows;
+      }//end next
+
+      /**
+       * @return the current row number, from 0
+       */
+      public int getRow () { return this._row; }
+
+      public boolean isNull (int col) { return ColumnarResult.this.isNull(this._row, col); }
+      public int getInt (int col) { return ColumnarResult.this.getInt(this._row, col); }
+      public long getLong (int col) { return ColumnarResult.this.getLong(this._row, col); }
+      public double getDouble (int col) { return ColumnarResult.this.getDouble(this._row, col); }
+      public BigDecimal getBigDecimal (int col) { return ColumnarResult.this.getBigDecimal(this._row, col); }
+      public boolean getBoolean (int col) { return ColumnarResult.this.getBoolean(this._row, col); }
+      public long getTimeMillis (int col) { return ColumnarResult.this.getTimeMillis(this._row, col); }
+      public String getString (int col) { return ColumnarResult.this.getString(this._row, col); }
+   }//end Cursor
+
+}//end ColumnarResult
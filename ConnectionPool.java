@@ -0,0 +1,423 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections.
+ * Callers borrow a connection for the duration of one operation and give
+ * it back by closing the returned PooledConnection, so several sessions
+ * can share a few connections without paying a TCP and authentication
+ * handshake per operation.
+ *
+ * Idle connections are kept in LIFO order so the most recently used (and
+ * therefore warm) connection is handed out first and the ones at the tail
+ * age out.  A background thread evicts connections idle for longer than
+ * the idle timeout, down to the configured minimum, and validates the
+ * remaining idle connections.
+ */
+public class ConnectionPool {
+
+   /**
+    * Tunable settings of the pool.  Every value can be overridden with a
+    * system property, e.g. -Dcafe.pool.max=16.
+    */
+   public static class Config {
+      // connections kept open even when idle
+      public int minSize = 1;
+      // upper bound on open connections
+      public int maxSize = 8;
+      // idle time after which a connection above minSize is closed
+      public long idleTimeoutMillis = 5 * 60 * 1000L;
+      // how long borrow() waits for a free connection before failing
+      public long borrowTimeoutMillis = 30 * 1000L;
+      // period of the background eviction and health check
+      public long healthCheckMillis = 30 * 1000L;
+      // connections idle for less than this are handed out unchecked
+      public long validateAfterIdleMillis = 1000L;
+      // seconds given to Connection.isValid
+      public int validationTimeoutSeconds = 2;
+      // prepared statements cached per connection
+      public int statementCacheSize = StatementCache.DEFAULT_CAPACITY;
+
+      /**
+       * @return the default settings overridden by cafe.pool.* system properties
+       */
+      public static Config fromSystemProperties () {
+         Config config = new Config();
+         config.minSize = Integer.getInteger("cafe.pool.min", config.minSize);
+         config.maxSize = Integer.getInteger("cafe.pool.max", config.maxSize);
+         config.idleTimeoutMillis = Long.getLong("cafe.pool.idleTimeoutMs", config.idleTimeoutMillis);
+         config.borrowTimeoutMillis = Long.getLong("cafe.pool.borrowTimeoutMs", config.borrowTimeoutMillis);
+         config.healthCheckMillis = Long.getLong("cafe.pool.healthCheckMs", config.healthCheckMillis);
+         config.validateAfterIdleMillis = Long.getLong("cafe.pool.validateAfterIdleMs", config.validateAfterIdleMillis);
+         config.validationTimeoutSeconds = Integer.getInteger("cafe.pool.validationTimeoutSec", config.validationTimeoutSeconds);
+         config.statementCacheSize = Integer.getInteger("cafe.pool.statementCache", config.statementCacheSize);
+         if (config.maxSize < 1)
+            config.maxSize = 1;
+         if (config.minSize > config.maxSize)
+            config.minSize = config.maxSize;
+         return config;
+      }//end fromSystemProperties
+   }//end Config
+
+   /**
+    * A physical connection on loan from the pool together with its
+    * statement cache.  Closing it returns the connection to the pool.
+    */
+   public class PooledConnection implements AutoCloseable {
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private long _lastUsedNanos;
+      private long _borrowedNanos;
+      // set while on loan, so that closing twice returns it only once
+      private final AtomicBoolean _onLoan = new AtomicBoolean();
+
+      private PooledConnection (Connection connection) {
+         this._connection = connection;
+         this._statements = new StatementCache(connection, _config.statementCacheSize);
+         this._lastUsedNanos = System.nanoTime();
+      }//end PooledConnection
+
+      /**
+       * @return the underlying physical connection
+       */
+      public Connection connection () {
+         return this._connection;
+      }//end connection
+
+      /**
+       * @return the prepared statements of this connection
+       */
+      public StatementCache statements () {
+         return this._statements;
+      }//end statements
+
+      /**
+       * Returns the connection to the pool.  Closing it again does nothing;
+       * the handle must not be used after the first close.
+       */
+      @Override
+      public void close () {
+         if (this._onLoan.compareAndSet(true, false))
+            release(this);
+      }//end close
+   }//end PooledConnection
+
+   private final String _url;
+   private final Config _config;
+
+   // limits the number of connections handed out at the same time
+   private final Semaphore _permits;
+
+   // idle connections, most recently used first
+   private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+
+   // number of open physical connections
+   private final AtomicInteger _open = new AtomicInteger();
+
+   private final ScheduledExecutorService _housekeeper;
+   private volatile boolean _closed = false;
+
+   // borrow and return timing metrics
+   private final LongAdder _borrows = new LongAdder();
+   private final LongAdder _borrowWaitNanos = new LongAdder();
+   private final AtomicLong _maxBorrowWaitNanos = new AtomicLong();
+   private final LongAdder _holdNanos = new LongAdder();
+   private final AtomicLong _maxHoldNanos = new AtomicLong();
+   private final LongAdder _timeouts = new LongAdder();
+   private final LongAdder _created = new LongAdder();
+   private final LongAdder _evicted = new LongAdder();
+   private final LongAdder _validationFailures = new LongAdder();
+
+   /**
+    * Creates a new pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param config the pool settings
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool (String url, Config config) throws SQLException {
+      this._url = url;
+      this._config = config;
+      this._permits = new Semaphore(config.maxSize, true);
+
+      // fails fast, like the single connection did, if the server is unreachable
+      for (int i = 0; i < config.minSize; ++i)
+         this._idle.offerLast(open());
+
+      this._housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "cafe-pool-housekeeper");
+         t.setDaemon(true);
+         return t;
+      });
+      this._housekeeper.scheduleWithFixedDelay(this::housekeep,
+         config.healthCheckMillis, config.healthCheckMillis, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to the borrow timeout for one to
+    * become free.  Connections that sat idle for a while are validated
+    * before they are handed out.
+    *
+    * @return a connection that must be closed to give it back
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public PooledConnection borrow () throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+      long start = System.nanoTime();
+      try{
+         if (!this._permits.tryAcquire(this._config.borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            this._timeouts.increment();
+            throw new SQLException("Timed out after " + this._config.borrowTimeoutMillis
+               + " ms waiting for a database connection");
+         }//end if
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }//end try
+
+      try{
+         PooledConnection pc;
+         while ((pc = this._idle.pollFirst()) != null) {
+            long idleNanos = System.nanoTime() - pc._lastUsedNanos;
+            if (idleNanos < TimeUnit.MILLISECONDS.toNanos(this._config.validateAfterIdleMillis)
+                  || isValid(pc))
+               break;
+            this._validationFailures.increment();
+            destroy(pc);
+         }//end while
+         if (pc == null)
+            pc = open();
+
+         long now = System.nanoTime();
+         pc._borrowedNanos = now;
+         pc._onLoan.set(true);
+         long waited = now - start;
+         this._borrows.increment();
+         this._borrowWaitNanos.add(waited);
+         this._maxBorrowWaitNanos.accumulateAndGet(waited, Math::max);
+         return pc;
+      }catch (SQLException e){
+         this._permits.release();
+         throw e;
+      }catch (RuntimeException e){
+         this._permits.release();
+         throw e;
+      }//end try
+   }//end borrow
+
+   /**
+    * Gives a borrowed connection back.  An open transaction is rolled back
+    * and auto-commit restored, so the next borrower starts clean.
+    */
+   private void release (PooledConnection pc) {
+      long now = System.nanoTime();
+      long held = now - pc._borrowedNanos;
+      this._holdNanos.add(held);
+      this._maxHoldNanos.accumulateAndGet(held, Math::max);
+      try{
+         boolean reusable = !this._closed && !pc._connection.isClosed();
+         if (reusable && !pc._connection.getAutoCommit()) {
+            pc._connection.rollback();
+            pc._connection.setAutoCommit(true);
+         }//end if
+         if (reusable) {
+            pc._lastUsedNanos = now;
+            this._idle.offerFirst(pc);
+         }else{
+            destroy(pc);
+         }//end if
+      }catch (SQLException e){
+         destroy(pc);
+      }finally{
+         this._permits.release();
+      }//end try
+   }//end release
+
+   /**
+    * Background task: closes connections that have been idle for too long
+    * while more than minSize are open, validates the rest, and reopens
+    * connections up to minSize.
+    */
+   private void housekeep () {
+      if (this._closed)
+         return;
+      long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(this._config.idleTimeoutMillis);
+      List<PooledConnection> snapshot = new ArrayList<PooledConnection>(this._idle);
+      for (PooledConnection pc : snapshot) {
+         // holding a permit keeps the pool within maxSize while we check
+         if (!this._permits.tryAcquire())
+            break;
+         try{
+            if (!this._idle.remove(pc))
+               continue; // borrowed in the meantime
+            boolean expired = System.nanoTime() - pc._lastUsedNanos > idleTimeoutNanos;
+            if (expired && this._open.get() > this._config.minSize) {
+               this._evicted.increment();
+               destroy(pc);
+            }else if (isValid(pc)) {
+               this._idle.offerLast(pc);
+            }else{
+               this._validationFailures.increment();
+               destroy(pc);
+            }//end if
+         }finally{
+            this._permits.release();
+         }//end try
+      }//end for
+
+      while (!this._closed && this._open.get() < this._config.minSize && this._permits.tryAcquire()) {
+         try{
+            this._idle.offerLast(open());
+         }catch (SQLException e){
+            System.err.println("Connection pool: unable to reopen connection: " + e.getMessage());
+            break;
+         }finally{
+            this._permits.release();
+         }//end try
+      }//end while
+   }//end housekeep
+
+   private PooledConnection open () throws SQLException {
+      Connection connection = DriverManager.getConnection(this._url);
+      this._open.incrementAndGet();
+      this._created.increment();
+      return new PooledConnection(connection);
+   }//end open
+
+   private boolean isValid (PooledConnection pc) {
+      try{
+         return pc._connection.isValid(this._config.validationTimeoutSeconds);
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isValid
+
+   private void destroy (PooledConnection pc) {
+      this._open.decrementAndGet();
+      pc._statements.clear();
+      try{
+         pc._connection.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end destroy
+
+   /**
+    * Closes all idle connections and stops the background thread.
+    * Connections still on loan are closed when they are returned.
+    */
+   public void close () {
+      this._closed = true;
+      this._housekeeper.shutdownNow();
+      PooledConnection pc;
+      while ((pc = this._idle.pollFirst()) != null)
+         destroy(pc);
+   }//end close
+
+   /**
+    * @return the JDBC URL connections are opened against
+    */
+   public String getUrl () { return this._url; }
+
+   /**
+    * @return the number of open physical connections
+    */
+   public int getOpenCount () { return this._open.get(); }
+
+   /**
+    * @return the number of idle connections
+    */
+   public int getIdleCount () { return this._idle.size(); }
+
+   /**
+    * @return the number of connections currently on loan
+    */
+   public int getActiveCount () { return this._config.maxSize - this._permits.availablePermits(); }
+
+   /**
+    * @return the total number of successful borrows
+    */
+   public long getBorrowCount () { return this._borrows.sum(); }
+
+   /**
+    * @return the number of borrows that timed out
+    */
+   public long getTimeoutCount () { return this._timeouts.sum(); }
+
+   /**
+    * @return the number of physical connections opened so far
+    */
+   public long getCreatedCount () { return this._created.sum(); }
+
+   /**
+    * @return the number of connections closed by idle eviction
+    */
+   public long getEvictedCount () { return this._evicted.sum(); }
+
+   /**
+    * @return the number of connections that failed validation
+    */
+   public long getValidationFailureCount () { return this._validationFailures.sum(); }
+
+   /**
+    * @return the mean time a borrower waited for a connection, in microseconds
+    */
+   public double getAverageBorrowWaitMicros () {
+      long n = this._borrows.sum();
+      return n == 0 ? 0 : this._borrowWaitNanos.sum() / 1000.0 / n;
+   }//end getAverageBorrowWaitMicros
+
+   /**
+    * @return the longest time a borrower waited for a connection, in microseconds
+    */
+   public double getMaxBorrowWaitMicros () { return this._maxBorrowWaitNanos.get() / 1000.0; }
+
+   /**
+    * @return the mean time a connection was kept on loan, in microseconds
+    */
+   public double getAverageHoldMicros () {
+      long n = this._borrows.sum();
+      return n == 0 ? 0 : this._holdNanos.sum() / 1000.0 / n;
+   }//end getAverageHoldMicros
+
+   /**
+    * @return the longest time a connection was kept on loan, in microseconds
+    */
+   public double getMaxHoldMicros () { return this._maxHoldNanos.get() / 1000.0; }
+
+   @Override
+   public String toString () {
+      return String.format("open=%d idle=%d active=%d borrows=%d timeouts=%d created=%d evicted=%d "
+            + "invalid=%d wait(avg/max)=%.1f/%.1fus hold(avg/max)=%.1f/%.1fus",
+         getOpenCount(), getIdleCount(), getActiveCount(), getBorrowCount(), getTimeoutCount(),
+         getCreatedCount(), getEvictedCount(), getValidationFailureCount(),
+         getAverageBorrowWaitMicros(), getMaxBorrowWaitMicros(),
+         getAverageHoldMicros(), getMaxHoldMicros());
+   }//end toString
+
+}//end ConnectionPool
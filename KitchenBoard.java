@@ -0,0 +1,274 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class is the live "kitchen board": the open orders of the last day
+ * and the status of their items, redrawn in place every few seconds.
+ *
+ * The board loads the open orders once.  After that it only asks for rows
+ * written by transactions that may have committed since the last refresh.
+ * Every insert and update of Orders and ItemStatus stamps the row with
+ * the id of its transaction (schema migration 3).  Before each read the
+ * board notes the oldest transaction still running; every transaction
+ * below it has ended, so its rows were in that read and need not be read
+ * again.  A long transaction only makes the board re-read the rows
+ * written since it began, never miss its rows when it commits late.
+ *
+ * The watermark and the reads after it run in one REPEATABLE READ
+ * transaction on the primary, so they see the same snapshot.  They never
+ * go to a replica: one that has not replayed some rows yet would report
+ * a watermark above them, or leave them out of a read.
+ */
+public class KitchenBoard {
+
+   // every transaction below this id has committed or rolled back
+   private static final String WATERMARK =
+      "SELECT txid_snapshot_xmin(txid_current_snapshot())";
+
+   private static final String LOAD =
+      "SELECT o.orderid, o.login, o.timeStampRecieved, s.itemName, s.status, s.comments " +
+      "FROM Orders o LEFT JOIN ItemStatus s ON s.orderid = o.orderid " +
+      "WHERE o.timeStampRecieved >= now() - INTERVAL '1' DAY AND o.paid = false " +
+      "ORDER BY o.orderid";
+
+   private static final String CHANGED_ORDERS =
+      "SELECT orderid, login, timeStampRecieved, paid FROM Orders WHERE changeXid >= ?";
+
+   private static final String CHANGED_ITEMS =
+      "SELECT orderid, itemName, status, comments FROM ItemStatus WHERE changeXid >= ?";
+
+   // moves the cursor home and clears the terminal
+   private static final String CLEAR_SCREEN = "\033[H\033[2J";
+
+   private static class Item {
+      String status;
+      String comments;
+   }//end Item
+
+   private static class Order {
+      final int orderid;
+      String login;
+      long received;
+      final Map<String, Item> items = new LinkedHashMap<String, Item>();
+
+      Order (int orderid) {
+         this.orderid = orderid;
+      }//end Order
+   }//end Order
+
+   private final Cafe _esql;
+
+   // open orders by id, oldest first
+   private final TreeMap<Integer, Order> _orders = new TreeMap<Integer, Order>();
+   private long _watermark = 0;
+   private int _lastChanges = 0;
+
+   /**
+    * Creates a board and loads the open orders
+    *
+    * @param esql the database access object
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public KitchenBoard (Cafe esql) throws SQLException {
+      this._esql = esql;
+      ColumnarResult rows;
+      try (ConnectionPool.PooledConnection conn = snapshot()) {
+         this._watermark = watermark(conn);
+         rows = read(conn, LOAD);
+         conn.connection().commit();
+      }
+      ColumnarResult.Cursor row = rows.cursor();
+      while (row.next()) {
+         Order order = order(row.getInt(1));
+         order.login = row.getString(2);
+         order.received = row.getTimeMillis(3);
+         if (!row.isNull(4)) {
+            Item item = item(order, row.getString(4));
+            item.status = row.getString(5);
+            item.comments = row.getString(6);
+         }//end if
+      }//end while
+   }//end KitchenBoard
+
+   /**
+    * Method to apply the changes made since the last refresh.
+    *
+    * @return the number of changed rows read
+    * @throws java.sql.SQLException when the changes could not be read
+    */
+   public int refresh () throws SQLException {
+      long next;
+      ColumnarResult orders;
+      ColumnarResult items;
+      try (ConnectionPool.PooledConnection conn = snapshot()) {
+         next = watermark(conn);
+         orders = read(conn, CHANGED_ORDERS, this._watermark);
+         items = read(conn, CHANGED_ITEMS, this._watermark);
+         conn.connection().commit();
+      }
+      int changes = 0;
+
+      ColumnarResult.Cursor row = orders.cursor();
+      while (row.next()) {
+         changes++;
+         int orderid = row.getInt(1);
+         if (row.getBoolean(4)) {
+            this._orders.remove(orderid);
+            continue;
+         }//end if
+         Order order = order(orderid);
+         order.login = row.getString(2);
+         order.received = row.getTimeMillis(3);
+      }//end while
+
+      row = items.cursor();
+      while (row.next()) {
+         changes++;
+         Order order = this._orders.get(row.getInt(1));
+         if (order == null)
+            continue; // paid or older than the board
+         Item item = item(order, row.getString(2));
+         item.status = row.getString(3);
+         item.comments = row.getString(4);
+      }//end while
+
+      // orders older than a day drop off the board like in ViewCurrentOrder
+      long cutoff = System.currentTimeMillis() - 24L * 60 * 60 * 1000;
+      for (Iterator<Order> it = this._orders.values().iterator(); it.hasNext(); )
+         if (it.next().received < cutoff)
+            it.remove();
+
+      this._watermark = next;
+      this._lastChanges = changes;
+      return changes;
+   }//end refresh
+
+   // a primary connection in a REPEATABLE READ transaction, to be closed by the caller
+   private ConnectionPool.PooledConnection snapshot () throws SQLException {
+      ConnectionPool.PooledConnection conn = this._esql.getPool().borrow();
+      try (Statement stmt = conn.connection().createStatement()) {
+         conn.connection().setAutoCommit(false);
+         stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         return conn;
+      }catch (SQLException e){
+         conn.close();
+         throw e;
+      }//end try
+   }//end snapshot
+
+   // the first statement of the transaction, so the snapshot is taken here
+   private static long watermark (ConnectionPool.PooledConnection conn) throws SQLException {
+      CafeMetrics.roundTrip();
+      try (ResultSet rs = conn.statements().executeQuery(WATERMARK)) {
+         rs.next();
+         return rs.getLong(1);
+      }
+   }//end watermark
+
+   private static ColumnarResult read (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+      CafeMetrics.roundTrip();
+      try (ResultSet rs = conn.statements().executeQuery(sql, params)) {
+         return ColumnarResult.from(rs);
+      }
+   }//end read
+
+   /**
+    * @return true when the board shows the order
+    */
+   boolean shows (int orderid) {
+      return this._orders.containsKey(orderid);
+   }//end shows
+
+   private Order order (int orderid) {
+      Order order = this._orders.get(orderid);
+      if (order == null) {
+         order = new Order(orderid);
+         this._orders.put(orderid, order);
+      }//end if
+      return order;
+   }//end order
+
+   private static Item item (Order order, String itemName) {
+      Item item = order.items.get(itemName);
+      if (item == null) {
+         item = new Item();
+         order.items.put(itemName, item);
+      }//end if
+      return item;
+   }//end item
+
+   /**
+    * Method to draw the board over the previous drawing.
+    */
+   public void draw () {
+      StringBuilder screen = new StringBuilder(CLEAR_SCREEN);
+      screen.append("KITCHEN BOARD  ").append(new Timestamp(System.currentTimeMillis()))
+            .append("  open orders: ").append(this._orders.size())
+            .append("  changes: ").append(this._lastChanges).append('\n');
+      screen.append("------------------------------------------------------------\n");
+      for (Order order : this._orders.values()) {
+         screen.append('#').append(order.orderid).append('\t').append(order.login)
+               .append('\t').append(new Timestamp(order.received)).append('\n');
+         for (Map.Entry<String, Item> e : order.items.entrySet()) {
+            Item item = e.getValue();
+            screen.append("\t").append(e.getKey()).append("\t[").append(item.status).append(']');
+            if (item.comments != null && !item.comments.isEmpty())
+               screen.append("\t").append(item.comments);
+            screen.append('\n');
+         }//end for
+      }//end for
+      screen.append("\nPress Enter to leave the board\n");
+      System.out.print(screen);
+      System.out.flush();
+   }//end draw
+
+   /**
+    * Method to show the board until the user presses Enter.
+    *
+    * @param in the keyboard input
+    * @param refreshMillis the time between refreshes
+    * @throws java.sql.SQLException when the orders could not be read
+    * @throws java.io.IOException when the keyboard could not be read
+    */
+   public void run (BufferedReader in, long refreshMillis) throws SQLException, IOException {
+      draw();
+      while (true) {
+         long next = System.currentTimeMillis() + refreshMillis;
+         while (System.currentTimeMillis() < next) {
+            if (in.ready()) {
+               in.readLine();
+               return;
+            }//end if
+            try{
+               Thread.sleep(50);
+            }catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+               return;
+            }//end try
+         }//end while
+         refresh();
+         draw();
+      }//end while
+   }//end run
+
+}//end KitchenBoard
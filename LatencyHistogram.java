@@ -0,0 +1,136 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records latencies from many threads without locking and
+ * reports percentiles.
+ *
+ * Values are counted in log-linear buckets: exact below 32 ns, and above
+ * that each power of two is split into 16 buckets, so a percentile is off
+ * by at most 1/16 (about 6%) of its value.  Every bucket is a slot in one
+ * AtomicLongArray, so record() is one increment and never allocates.  The
+ * maximum is kept exactly.
+ */
+public class LatencyHistogram {
+
+   // values below this are counted exactly
+   private static final int LINEAR = 32;
+   // buckets per power of two above LINEAR
+   private static final int SUB = 16;
+   // enough buckets for any positive long
+   private static final int BUCKETS = (63 - 4 + 1) * SUB + LINEAR;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final LongAdder _count = new LongAdder();
+   private final LongAdder _sum = new LongAdder();
+   private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+   /**
+    * Method to record one latency.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   public void record (long nanos) {
+      long v = Math.max(0, nanos);
+      this._counts.incrementAndGet(bucket(v));
+      this._count.increment();
+      this._sum.add(v);
+      this._max.accumulate(v);
+   }//end record
+
+   private static int bucket (long v) {
+      if (v < LINEAR)
+         return (int) v;
+      int shift = 63 - Long.numberOfLeadingZeros(v) - 4;
+      return shift * SUB + (int) (v >>> shift);
+   }//end bucket
+
+   // the highest value counted in a bucket
+   private static long highest (int bucket) {
+      if (bucket < LINEAR)
+         return bucket;
+      int shift = bucket / SUB - 1;
+      long low = (long) (bucket % SUB + SUB) << shift;
+      return low + (1L << shift) - 1;
+   }//end highest
+
+   /**
+    * @return the number of recorded values
+    */
+   public long getCount () {
+      return this._count.sum();
+   }//end getCount
+
+   /**
+    * @return the mean in nanoseconds, 0 when nothing was recorded
+    */
+   public double getMeanNanos () {
+      long count = this._count.sum();
+      return count == 0 ? 0 : (double) this._sum.sum() / count;
+   }//end getMeanNanos
+
+   /**
+    * @return the largest recorded value in nanoseconds
+    */
+   public long getMaxNanos () {
+      return this._max.get();
+   }//end getMaxNanos
+
+   /**
+    * @param percent the percentile, from 0 to 100
+    * @return the value in nanoseconds that percent of the values are at or below,
+    *         0 when nothing was recorded
+    */
+   public long getPercentileNanos (double percent) {
+      long count = 0;
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++)
+         count += counts[i] = this._counts.get(i);
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += counts[i];
+         if (seen >= rank)
+            return Math.min(highest(i), getMaxNanos());
+      }//end for
+      return getMaxNanos();
+   }//end getPercentileNanos
+
+   /**
+    * Method to forget every recorded value, e.g. after a warm-up.  Values
+    * recorded while resetting may be partly kept.
+    */
+   public void reset () {
+      for (int i = 0; i < BUCKETS; i++)
+         this._counts.set(i, 0);
+      this._count.reset();
+      this._sum.reset();
+      this._max.reset();
+   }//end reset
+
+   /**
+    * @return count, mean, p50, p95, p99 and max in milliseconds
+    */
+   @Override
+   public String toString () {
+      return String.format("n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+         getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+         getPercentileNanos(95) / 1e6, getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+   }//end toString
+
+}//end LatencyHistogram
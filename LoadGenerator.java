@@ -0,0 +1,433 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a headless load driver: it runs simulated customers,
+ * employees and managers against one Cafe concurrently and reports the
+ * throughput and latency percentiles of every operation, with the number
+ * of errors and deadlocks.  The operations call the same Cafe methods,
+ * OrderHistory pages and KitchenBoard refreshes as the interactive
+ * handlers, with scripted inputs instead of keyboard input; what they
+ * would print is rendered and thrown away.
+ *
+ * Usage: java LoadGenerator <dbname> <port>
+ *
+ * Settings (system properties):
+ *   cafe.load.customers    simulated customers, default 20
+ *   cafe.load.employees    simulated employees, default 4
+ *   cafe.load.managers     simulated managers, default 1
+ *   cafe.load.seconds      measured run time, default 60
+ *   cafe.load.warmupSec    run time before measuring starts, default 10
+ *   cafe.load.thinkMs      mean pause between a client's operations, default 100
+ *   cafe.load.customerMix  operation weights of customers, default browse:40,add:20,update:15,history:10,status:15
+ *   cafe.load.employeeMix  operation weights of employees, default current:30,employee:60,status:10
+ *   cafe.load.managerMix   operation weights of managers, default current:40,paid:40,browse:20
+ *
+ * Give the pool enough connections for the clients (-Dcafe.pool.max), or
+ * the report measures waiting for a connection.
+ */
+public class LoadGenerator {
+
+   // SQLState of a detected deadlock
+   public static final String DEADLOCK = "40P01";
+
+   // the pages a simulated user reads are printed here
+   private static final Writer DISCARD = new Writer() {
+      public void write (char[] buf, int off, int len) { }
+      public void flush () { }
+      public void close () { }
+   };
+
+   /**
+    * The operations a simulated client performs.
+    */
+   public enum Op {
+      BROWSE("browse", "BrowseMenuName"), ADD("add", "AddOrder"), UPDATE("update", "UpdateOrder"),
+      HISTORY("history", "ViewOrderHistory"), STATUS("status", "ViewOrderStatus"),
+      CURRENT("current", "ViewCurrentOrder"), EMPLOYEE("employee", "EmployeeUpdateOrder"),
+      PAID("paid", "EmployeeUpdateOrder");
+
+      public final String key;
+      // the menu action it stands for, so metrics and replica routing see it as one
+      public final String action;
+
+      Op (String key, String action) {
+         this.key = key;
+         this.action = action;
+      }//end Op
+
+      static Op fromKey (String key) {
+         for (Op op : values())
+            if (op.key.equals(key))
+               return op;
+         throw new IllegalArgumentException("Unknown operation '" + key + "'");
+      }//end fromKey
+   }//end Op
+
+   // per operation results
+   private static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LongAdder errors = new LongAdder();
+      final LongAdder deadlocks = new LongAdder();
+   }//end Stats
+
+   // operations drawn by weight
+   private static class Mix {
+      final Op[] ops;
+      final int[] upTo;
+      final int total;
+
+      Mix (String spec) {
+         String[] parts = spec.split(",");
+         this.ops = new Op[parts.length];
+         this.upTo = new int[parts.length];
+         int sum = 0;
+         for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].trim().split(":");
+            this.ops[i] = Op.fromKey(kv[0].trim());
+            sum += Integer.parseInt(kv[1].trim());
+            this.upTo[i] = sum;
+         }//end for
+         if (sum <= 0)
+            throw new IllegalArgumentException("Mix '" + spec + "' has no weight");
+         this.total = sum;
+      }//end Mix
+
+      Op next (Random random) {
+         int r = random.nextInt(this.total);
+         for (int i = 0; i < this.ops.length; i++)
+            if (r < this.upTo[i])
+               return this.ops[i];
+         return this.ops[this.ops.length - 1];
+      }//end next
+   }//end Mix
+
+   private final Cafe _esql;
+   private final Map<Op, Stats> _stats = new EnumMap<Op, Stats>(Op.class);
+   private final List<String> _itemNames;
+   private final long _thinkMillis = Long.getLong("cafe.load.thinkMs", 100L);
+   private volatile boolean _running = true;
+
+   /**
+    * Creates a load generator
+    *
+    * @param esql the Cafe the clients share
+    */
+   public LoadGenerator (Cafe esql) {
+      this._esql = esql;
+      for (Op op : Op.values())
+         this._stats.put(op, new Stats());
+      this._itemNames = new ArrayList<String>();
+      for (MenuCache.MenuItem item : esql.getMenu().getAll())
+         this._itemNames.add(item.itemName);
+      if (this._itemNames.isEmpty())
+         throw new IllegalStateException("The menu is empty, nothing to order");
+   }//end LoadGenerator
+
+   /**
+    * One simulated user.  Each runs on its own thread and keeps the order
+    * it placed last, like a person at the counter would.
+    */
+   private class Client implements Runnable {
+      final Session.Role role;
+      final String login;
+      final Mix mix;
+      int openOrder = -1;
+      List<String> openItems = new ArrayList<String>();
+      // employees keep the kitchen board open once they looked at it
+      KitchenBoard board = null;
+
+      Client (Session.Role role, String login, Mix mix) {
+         this.role = role;
+         this.login = login;
+         this.mix = mix;
+      }//end Client
+
+      public void run () {
+         Random random = ThreadLocalRandom.current();
+         while (LoadGenerator.this._running) {
+            Op op = this.mix.next(random);
+            long start = System.nanoTime();
+            CafeMetrics.Action a = CafeMetrics.action(op.action);
+            try{
+               perform(op, random);
+               LoadGenerator.this._stats.get(op).latency.record(System.nanoTime() - start);
+            }catch (SQLException e){
+               Stats stats = LoadGenerator.this._stats.get(op);
+               if (DEADLOCK.equals(e.getSQLState()))
+                  stats.deadlocks.increment();
+               else
+                  stats.errors.increment();
+            }catch (RuntimeException e){
+               LoadGenerator.this._stats.get(op).errors.increment();
+            }finally{
+               a.close();
+            }//end try
+            think(random);
+         }//end while
+      }//end run
+
+      private void perform (Op op, Random random) throws SQLException {
+         switch (op) {
+            case BROWSE: {
+               // BrowseMenuName; one in four customers types a partial name
+               String name = randomItem(random);
+               if (random.nextInt(4) == 0)
+                  LoadGenerator.this._esql.getMenuSearch().search(name.substring(0, (name.length() + 1) / 2), 10);
+               else
+                  LoadGenerator.this._esql.getMenu().get(name);
+               break;
+            }
+            case ADD: {
+               // AddOrder with one to three items
+               List<String> items = new ArrayList<String>();
+               int n = 1 + random.nextInt(3);
+               while (items.size() < Math.min(n, LoadGenerator.this._itemNames.size())) {
+                  String item = randomItem(random);
+                  if (!items.contains(item))
+                     items.add(item);
+               }//end while
+               int orderid;
+               if (items.size() == 1) {
+                  orderid = LoadGenerator.this._esql.placeOrder(this.login, items.get(0), "");
+               } else {
+                  List<String> comments = new ArrayList<String>();
+                  for (int i = 0; i < items.size(); i++)
+                     comments.add("");
+                  orderid = LoadGenerator.this._esql.placeOrder(this.login, items, comments, new ArrayList<String>());
+               }//end if
+               if (orderid > 0) {
+                  this.openOrder = orderid;
+                  this.openItems = items;
+               }//end if
+               break;
+            }
+            case UPDATE: {
+               // UpdateOrder: add an item to the open order
+               if (this.openOrder < 0 || this.openItems.size() >= LoadGenerator.this._itemNames.size()) {
+                  perform(Op.ADD, random);
+                  break;
+               }//end if
+               String item;
+               do {
+                  item = randomItem(random);
+               } while (this.openItems.contains(item));
+               if (LoadGenerator.this._esql.addItemToOrder(this.openOrder, this.login, item, ""))
+                  this.openItems.add(item);
+               else
+                  this.openOrder = -1;
+               break;
+            }
+            case HISTORY: {
+               // ViewOrderHistory: the first page, and one time in three the next
+               OrderHistory history = new OrderHistory(LoadGenerator.this._esql, this.login,
+                  Integer.getInteger("cafe.history.pageSize", 5), random.nextBoolean(), DISCARD);
+               if (history.first() > 0 && random.nextInt(3) == 0)
+                  history.next();
+               break;
+            }
+            case STATUS: {
+               // ViewOrderStatus of the client's order, or of a recent one
+               int orderid = this.openOrder > 0 ? this.openOrder : recentOrder(random);
+               if (orderid > 0)
+                  LoadGenerator.this._esql.getOrderStatus(orderid);
+               break;
+            }
+            case CURRENT:
+               // ViewCurrentOrder: employees watch the kitchen board, managers read the list
+               if (this.role != Session.Role.EMPLOYEE)
+                  LoadGenerator.this._esql.getCurrentOrders();
+               else if (this.board == null)
+                  this.board = new KitchenBoard(LoadGenerator.this._esql);
+               else
+                  this.board.refresh();
+               break;
+            case EMPLOYEE: {
+               // EmployeeUpdateOrder on a recent order, the item picked from its status
+               int orderid = recentOrder(random);
+               if (orderid < 0 || !LoadGenerator.this._esql.orderExists(orderid))
+                  break;
+               ColumnarResult items = LoadGenerator.this._esql.getOrderStatus(orderid);
+               if (items == null || items.getRowCount() == 0)
+                  break;
+               String item = items.getString(random.nextInt(items.getRowCount()), 1);
+               if (LoadGenerator.this._esql.orderHasItem(orderid, item))
+                  LoadGenerator.this._esql.setItemStatus(orderid, item, random.nextBoolean() ? "Started" : "Finished");
+               break;
+            }
+            case PAID: {
+               // the manager marks a recent order as paid
+               int orderid = recentOrder(random);
+               if (orderid > 0 && LoadGenerator.this._esql.orderExists(orderid))
+                  LoadGenerator.this._esql.markPaid(orderid);
+               break;
+            }
+         }//end switch
+      }//end perform
+
+      private void think (Random random) {
+         if (LoadGenerator.this._thinkMillis <= 0)
+            return;
+         // exponential pauses, like independent arrivals
+         long pause = (long) (-Math.log(1 - random.nextDouble()) * LoadGenerator.this._thinkMillis);
+         try{
+            Thread.sleep(pause);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            LoadGenerator.this._running = false;
+         }//end try
+      }//end think
+   }//end Client
+
+   private String randomItem (Random random) {
+      return this._itemNames.get(random.nextInt(this._itemNames.size()));
+   }//end randomItem
+
+   private int recentOrder (Random random) throws SQLException {
+      int last = this._esql.queryScalarInt("SELECT max(orderid) FROM Orders").orElse(0);
+      return last <= 0 ? -1 : Math.max(1, last - random.nextInt(50));
+   }//end recentOrder
+
+   /**
+    * Method to create the simulated users if they do not exist yet.
+    *
+    * @param role the user type
+    * @param count how many users of that type
+    * @return their logins
+    * @throws java.sql.SQLException when the users could not be created
+    */
+   public List<String> createUsers (Session.Role role, int count) throws SQLException {
+      List<String> logins = new ArrayList<String>();
+      for (int i = 1; i <= count; i++) {
+         String login = "load" + role.column.toLowerCase() + i;
+         this._esql.executeUpdate(
+            "INSERT INTO Users (phoneNum, login, password, favItems, type) VALUES (?, ?, ?, '', ?) " +
+            "ON CONFLICT (login) DO NOTHING", "000-000-0000", login, login, role.column);
+         logins.add(login);
+      }//end for
+      return logins;
+   }//end createUsers
+
+   /**
+    * Method to run the clients and print the report.
+    *
+    * @param customers the customer logins
+    * @param employees the employee logins
+    * @param managers the manager logins
+    * @param warmupMillis run time before measuring starts
+    * @param measureMillis measured run time
+    * @throws java.lang.InterruptedException when interrupted while running
+    */
+   public void run (List<String> customers, List<String> employees, List<String> managers,
+                    long warmupMillis, long measureMillis) throws InterruptedException {
+      List<Client> clients = new ArrayList<Client>();
+      Mix customerMix = new Mix(System.getProperty("cafe.load.customerMix",
+         "browse:40,add:20,update:15,history:10,status:15"));
+      Mix employeeMix = new Mix(System.getProperty("cafe.load.employeeMix", "current:30,employee:60,status:10"));
+      Mix managerMix = new Mix(System.getProperty("cafe.load.managerMix", "current:40,paid:40,browse:20"));
+      for (String login : customers)
+         clients.add(new Client(Session.Role.CUSTOMER, login, customerMix));
+      for (String login : employees)
+         clients.add(new Client(Session.Role.EMPLOYEE, login, employeeMix));
+      for (String login : managers)
+         clients.add(new Client(Session.Role.MANAGER, login, managerMix));
+
+      final CountDownLatch done = new CountDownLatch(clients.size());
+      for (final Client client : clients) {
+         Thread t = new Thread(new Runnable() {
+            public void run () {
+               try{
+                  client.run();
+               }finally{
+                  done.countDown();
+               }//end try
+            }
+         }, "load-" + client.login);
+         t.setDaemon(true);
+         t.start();
+      }//end for
+
+      System.out.println("Warming up " + clients.size() + " clients for " + warmupMillis / 1000 + "s");
+      Thread.sleep(warmupMillis);
+      for (Stats stats : this._stats.values()) {
+         stats.latency.reset();
+         stats.errors.reset();
+         stats.deadlocks.reset();
+      }//end for
+      System.out.println("Measuring for " + measureMillis / 1000 + "s");
+      long start = System.nanoTime();
+      Thread.sleep(measureMillis);
+      long elapsed = System.nanoTime() - start;
+      this._running = false;
+      done.await();
+      report(elapsed);
+   }//end run
+
+   private void report (long elapsedNanos) {
+      double seconds = elapsedNanos / 1e9;
+      System.out.println(String.format("%-9s %9s %9s %9s %9s %9s %9s %7s %9s",
+         "operation", "count", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "errors", "deadlocks"));
+      long total = 0;
+      for (Map.Entry<Op, Stats> e : this._stats.entrySet()) {
+         LatencyHistogram h = e.getValue().latency;
+         long errors = e.getValue().errors.sum();
+         long deadlocks = e.getValue().deadlocks.sum();
+         if (h.getCount() == 0 && errors == 0 && deadlocks == 0)
+            continue;
+         total += h.getCount();
+         System.out.println(String.format("%-9s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %7d %9d",
+            e.getKey().key, h.getCount(), h.getCount() / seconds,
+            h.getPercentileNanos(50) / 1e6, h.getPercentileNanos(95) / 1e6,
+            h.getPercentileNanos(99) / 1e6, h.getMaxNanos() / 1e6, errors, deadlocks));
+      }//end for
+      System.out.println(String.format("%-9s %9d %9.1f", "total", total, total / seconds));
+      System.out.println("Pool: " + this._esql.getPool());
+      if (this._esql.getRouter().getReplicaCount() > 0)
+         System.out.println("Replicas: " + this._esql.getRouter());
+   }//end report
+
+   public static void main (String[] args) {
+      if (args.length != 2) {
+         System.err.println("Usage: java [-classpath <classpath>] " +
+            LoadGenerator.class.getName() + " <dbname> <port>");
+         return;
+      }//end if
+      Cafe esql = null;
+      try{
+         Class.forName("org.postgresql.Driver");
+         esql = new Cafe(args[0], args[1]);
+         LoadGenerator load = new LoadGenerator(esql);
+         load.run(load.createUsers(Session.Role.CUSTOMER, Integer.getInteger("cafe.load.customers", 20)),
+                  load.createUsers(Session.Role.EMPLOYEE, Integer.getInteger("cafe.load.employees", 4)),
+                  load.createUsers(Session.Role.MANAGER, Integer.getInteger("cafe.load.managers", 1)),
+                  Long.getLong("cafe.load.warmupSec", 10L) * 1000,
+                  Long.getLong("cafe.load.seconds", 60L) * 1000);
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+
+}//end LoadGenerator
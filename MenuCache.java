@@ -0,0 +1,319 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps a process-local copy of the Menu table, indexed by
+ * item name and by item type, so browsing and price lookups do not need
+ * a database round trip.
+ *
+ * The menu only changes through UpdateMenu, which sends a NOTIFY on the
+ * CHANNEL with the names of the changed items.  Every running client
+ * LISTENs on that channel over a dedicated connection and reloads just
+ * those items.  A payload of RELOAD_ALL asks for a full reload, which is
+ * also done after the listener had to reconnect and may have missed
+ * notifications, and once the first LISTEN is in place, for changes made
+ * between the first load and the LISTEN.
+ *
+ * Item names are keyed without their CHAR padding; every method taking
+ * a name goes through key(), so "Latte" and "Latte " are the same item.
+ *
+ * Readers see an immutable snapshot that is swapped atomically, so
+ * lookups never block.
+ */
+public class MenuCache {
+
+   // channel UpdateMenu notifies on
+   public static final String CHANNEL = "cafe_menu";
+
+   // notification payload asking every client to reload the whole menu
+   public static final String RELOAD_ALL = "*";
+
+   private static final String SELECT_ALL =
+      "SELECT itemName, type, price, description, imageURL FROM Menu";
+   private static final String SELECT_SOME =
+      "SELECT itemName, type, price, description, imageURL FROM Menu WHERE itemName = ANY(?)";
+
+   /**
+    * One row of the Menu table with the CHAR padding trimmed off.
+    */
+   public static class MenuItem {
+      public final String itemName;
+      public final String type;
+      public final BigDecimal price;
+      public final String description;
+      public final String imageURL;
+
+      public MenuItem (String itemName, String type, BigDecimal price, String description, String imageURL) {
+         this.itemName = itemName;
+         this.type = type;
+         this.price = price;
+         this.description = description;
+         this.imageURL = imageURL;
+      }//end MenuItem
+
+      private static MenuItem from (ResultSet rs) throws SQLException {
+         return new MenuItem(trim(rs.getString(1)), trim(rs.getString(2)), rs.getBigDecimal(3),
+            trim(rs.getString(4)), trim(rs.getString(5)));
+      }//end from
+   }//end MenuItem
+
+   /**
+    * Immutable view of the whole menu.
+    */
+   private static class Snapshot {
+      final Map<String, MenuItem> byName;
+      final Map<String, List<MenuItem>> byType;
+
+      Snapshot (Map<String, MenuItem> byName) {
+         this.byName = byName;
+         Map<String, List<MenuItem>> types = new HashMap<String, List<MenuItem>>();
+         // sorted by name so browse output is stable
+         for (MenuItem item : new TreeMap<String, MenuItem>(byName).values()) {
+            List<MenuItem> list = types.get(item.type);
+            if (list == null) {
+               list = new ArrayList<MenuItem>();
+               types.put(item.type, list);
+            }//end if
+            list.add(item);
+         }//end for
+         for (Map.Entry<String, List<MenuItem>> e : types.entrySet())
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+         this.byType = types;
+      }//end Snapshot
+   }//end Snapshot
+
+   private final ConnectionPool _pool;
+   private volatile Snapshot _snapshot = new Snapshot(new HashMap<String, MenuItem>());
+
+   // called after every change, e.g. to rebuild derived indexes
+   private final List<Runnable> _changeListeners = new CopyOnWriteArrayList<Runnable>();
+
+   private Thread _listener = null;
+   private volatile boolean _running = false;
+
+   /**
+    * Creates a new, empty menu cache
+    *
+    * @param pool the pool used to load menu rows
+    */
+   public MenuCache (ConnectionPool pool) {
+      this._pool = pool;
+   }//end MenuCache
+
+   /**
+    * @param name the item name
+    * @return the item, or null when it is not on the menu
+    */
+   public MenuItem get (String name) {
+      return name == null ? null : this._snapshot.byName.get(key(name));
+   }//end get
+
+   /**
+    * @param name the item name
+    * @return true when the item is on the menu
+    */
+   public boolean contains (String name) {
+      return get(name) != null;
+   }//end contains
+
+   /**
+    * @param type the item type
+    * @return the items of that type sorted by name, possibly empty
+    */
+   public List<MenuItem> getByType (String type) {
+      List<MenuItem> items = type == null ? null : this._snapshot.byType.get(type);
+      return items == null ? Collections.<MenuItem>emptyList() : items;
+   }//end getByType
+
+   /**
+    * @return every item on the menu
+    */
+   public Collection<MenuItem> getAll () {
+      return Collections.unmodifiableCollection(this._snapshot.byName.values());
+   }//end getAll
+
+   /**
+    * @param listener called after the cached menu changed
+    */
+   public void addChangeListener (Runnable listener) {
+      this._changeListeners.add(listener);
+   }//end addChangeListener
+
+   /**
+    * Method to (re)load the whole menu.
+    *
+    * @throws java.sql.SQLException when the menu could not be read
+    */
+   public void reload () throws SQLException {
+      Map<String, MenuItem> byName = new HashMap<String, MenuItem>();
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow();
+           ResultSet rs = conn.statements().executeQuery(SELECT_ALL)) {
+         while (rs.next()) {
+            MenuItem item = MenuItem.from(rs);
+            byName.put(item.itemName, item);
+         }//end while
+      }
+      publish(new Snapshot(byName));
+   }//end reload
+
+   /**
+    * Method to reload some items.  Items that are no longer in Menu are
+    * dropped from the cache.
+    *
+    * @param names the names of the changed items, or RELOAD_ALL
+    * @throws java.sql.SQLException when the items could not be read
+    */
+   public void refresh (Collection<String> names) throws SQLException {
+      Set<String> keys = new LinkedHashSet<String>();
+      for (String name : names)
+         keys.add(key(name));
+      if (keys.isEmpty())
+         return;
+      if (keys.contains(RELOAD_ALL)) {
+         reload();
+         return;
+      }//end if
+      Map<String, MenuItem> fresh = new HashMap<String, MenuItem>();
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow();
+           ResultSet rs = conn.statements().executeQuery(SELECT_SOME,
+              conn.connection().createArrayOf("text", keys.toArray()))) {
+         while (rs.next()) {
+            MenuItem item = MenuItem.from(rs);
+            fresh.put(item.itemName, item);
+         }//end while
+      }
+      synchronized (this) {
+         Map<String, MenuItem> byName = new HashMap<String, MenuItem>(this._snapshot.byName);
+         for (String name : keys)
+            byName.remove(name);
+         byName.putAll(fresh);
+         publish(new Snapshot(byName));
+      }//end synchronized
+   }//end refresh
+
+   private synchronized void publish (Snapshot snapshot) {
+      this._snapshot = snapshot;
+      for (Runnable listener : this._changeListeners) {
+         try{
+            listener.run();
+         }catch (RuntimeException e){
+            System.err.println("Menu cache listener failed: " + e.getMessage());
+         }//end try
+      }//end for
+   }//end publish
+
+   /**
+    * Method to send a menu change notification on a connection.  When
+    * called inside a transaction the notification is delivered on commit.
+    *
+    * @param conn the connection the change was made on
+    * @param names the names of the changed items, or RELOAD_ALL
+    * @throws java.sql.SQLException when the notification could not be sent
+    */
+   public static void notifyChanged (ConnectionPool.PooledConnection conn, String... names) throws SQLException {
+      for (String name : names)
+         conn.statements().executeQuery("SELECT pg_notify(?, ?)", CHANNEL, key(name)).close();
+   }//end notifyChanged
+
+   /**
+    * Starts the background thread that LISTENs for menu changes.
+    *
+    * @param url the JDBC URL of the database to listen on
+    */
+   public void startListening (final String url) {
+      this._running = true;
+      this._listener = new Thread(new Runnable() {
+         public void run () {
+            listen(url);
+         }
+      }, "cafe-menu-listener");
+      this._listener.setDaemon(true);
+      this._listener.start();
+   }//end startListening
+
+   /**
+    * Stops the listener thread.
+    */
+   public void stopListening () {
+      this._running = false;
+      if (this._listener != null)
+         this._listener.interrupt();
+   }//end stopListening
+
+   private void listen (String url) {
+      // the first load ran before this LISTEN, so the first connect counts too
+      boolean missedNotifications = true;
+      long backoff = 500;
+      while (this._running) {
+         try (Connection conn = DriverManager.getConnection(url)) {
+            try (Statement stmt = conn.createStatement()) {
+               stmt.execute("LISTEN " + CHANNEL);
+            }
+            PGConnection pg = conn.unwrap(PGConnection.class);
+            // changes made before this LISTEN were not announced to us
+            if (missedNotifications)
+               reload();
+            backoff = 500;
+            while (this._running) {
+               PGNotification[] notes = pg.getNotifications(10 * 1000);
+               if (notes == null || notes.length == 0)
+                  continue;
+               Set<String> names = new LinkedHashSet<String>();
+               for (PGNotification note : notes)
+                  names.add(note.getParameter());
+               refresh(names);
+            }//end while
+         }catch (SQLException e){
+            if (!this._running)
+               return;
+            System.err.println("Menu cache listener lost its connection: " + e.getMessage());
+            missedNotifications = true;
+            try{
+               Thread.sleep(backoff);
+            }catch (InterruptedException ie){
+               return;
+            }//end try
+            backoff = Math.min(backoff * 2, 30 * 1000);
+         }//end try
+      }//end while
+   }//end listen
+
+   // an item name as the cache and the notifications key it
+   private static String key (String name) {
+      return name.trim();
+   }//end key
+
+   private static String trim (String value) {
+      return value == null ? null : value.trim();
+   }//end trim
+
+}//end MenuCache
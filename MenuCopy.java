@@ -0,0 +1,315 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class loads and saves the whole menu as CSV through the COPY
+ * protocol, for seasonal menu changes and new stores:
+ *
+ *   java Cafe db port --menu-import menu.csv
+ *   java Cafe db port --menu-export menu.csv
+ *
+ * The columns are itemName, type, price, description, imageURL; a header
+ * line is optional on import and written on export.
+ *
+ * An import streams the file through a validating reader straight into
+ * COPY, so only one record is in memory at a time.  Valid records go to
+ * a temporary staging table and are merged into Menu with one INSERT ...
+ * ON CONFLICT in the same transaction: new items are added, changed items
+ * updated.  When a name appears more than once the last line wins.
+ * Invalid records are written to <file>.rejects with their line number
+ * and reason.  Names, types and prices are trimmed: the CHAR key of Menu
+ * ignores trailing blanks, so "Latte " is the same item as "Latte".
+ * Every client reloads its menu cache when the import commits.
+ */
+public class MenuCopy {
+
+   private static final String HEADER = "itemname,type,price,description,imageurl";
+
+   // column sizes of Menu
+   private static final int NAME_LENGTH = 50, TYPE_LENGTH = 20, DESCRIPTION_LENGTH = 400, URL_LENGTH = 256;
+
+   // rejected lines also shown on the terminal
+   private static final int SHOWN_REJECTS = 20;
+
+   private static final String CREATE_STAGING =
+      "CREATE TEMP TABLE menu_staging (itemName text, type text, price numeric(10,2), " +
+      "description text, imageURL text, line integer) ON COMMIT DROP";
+
+   private static final String MERGE =
+      "INSERT INTO Menu (itemName, type, price, description, imageURL) " +
+      "SELECT DISTINCT ON (itemName) itemName, type, price, description, imageURL " +
+      "FROM menu_staging ORDER BY itemName, line DESC " +
+      "ON CONFLICT (itemName) DO UPDATE SET type = EXCLUDED.type, price = EXCLUDED.price, " +
+      "description = EXCLUDED.description, imageURL = EXCLUDED.imageURL " +
+      "WHERE (Menu.type, Menu.price, Menu.description, Menu.imageURL) IS DISTINCT FROM " +
+      "(EXCLUDED.type, EXCLUDED.price, EXCLUDED.description, EXCLUDED.imageURL)";
+
+   private static final String EXPORT =
+      "COPY (SELECT rtrim(itemName), rtrim(type), price, rtrim(description), rtrim(imageURL) " +
+      "FROM Menu ORDER BY itemName) TO STDOUT WITH (FORMAT csv, HEADER)";
+
+   private final Cafe _esql;
+
+   /**
+    * Creates a menu importer and exporter
+    *
+    * @param esql the database access object
+    */
+   public MenuCopy (Cafe esql) {
+      this._esql = esql;
+   }//end MenuCopy
+
+   /**
+    * Method to merge a CSV file into Menu.
+    *
+    * @param file the CSV file
+    * @return the number of rejected lines
+    * @throws java.io.IOException when the file could not be read
+    * @throws java.sql.SQLException when the import failed; nothing is changed
+    */
+   public int importMenu (String file) throws IOException, SQLException {
+      long start = System.currentTimeMillis();
+      String rejectsFile = file + ".rejects";
+      int rejected;
+      try (ConnectionPool.PooledConnection conn = this._esql.getPool().borrow();
+           ValidatingReader records = new ValidatingReader(new BufferedReader(new FileReader(file)),
+              new PrintWriter(new BufferedWriter(new FileWriter(rejectsFile))))) {
+         Connection c = conn.connection();
+         c.setAutoCommit(false);
+         try (Statement stmt = c.createStatement()) {
+            stmt.execute(CREATE_STAGING);
+            CopyManager copy = c.unwrap(PGConnection.class).getCopyAPI();
+            long staged = copy.copyIn("COPY menu_staging FROM STDIN WITH (FORMAT csv)", records);
+            long distinct;
+            try (ResultSet rs = stmt.executeQuery("SELECT count(DISTINCT itemName) FROM menu_staging")) {
+               rs.next();
+               distinct = rs.getLong(1);
+            }
+            int merged = stmt.executeUpdate(MERGE);
+            MenuCache.notifyChanged(conn, MenuCache.RELOAD_ALL);
+            c.commit();
+            System.out.println("Imported " + staged + " lines: " + merged + " items added or changed, " +
+               (distinct - merged) + " unchanged, " + (staged - distinct) + " repeated names, " +
+               records.rejected + " rejected, in " + (System.currentTimeMillis() - start) + " ms");
+         }catch (SQLException e){
+            c.rollback();
+            throw e;
+         }//end try
+         rejected = records.rejected;
+      }
+      if (rejected > 0)
+         System.out.println("Rejected lines are in " + rejectsFile);
+      this._esql.getMenu().refresh(Collections.singleton(MenuCache.RELOAD_ALL));
+      return rejected;
+   }//end importMenu
+
+   /**
+    * Method to write Menu to a CSV file.
+    *
+    * @param file the CSV file
+    * @return the number of items written
+    * @throws java.io.IOException when the file could not be written
+    * @throws java.sql.SQLException when the menu could not be read
+    */
+   public long exportMenu (String file) throws IOException, SQLException {
+      try (ConnectionPool.PooledConnection conn = this._esql.getPool().borrow();
+           Writer out = new BufferedWriter(new FileWriter(file))) {
+         CopyManager copy = conn.connection().unwrap(PGConnection.class).getCopyAPI();
+         long rows = copy.copyOut(EXPORT, out);
+         System.out.println("Exported " + rows + " items to " + file);
+         return rows;
+      }
+   }//end exportMenu
+
+   /**
+    * A reader that parses CSV records one at a time, checks them against
+    * the Menu columns and hands only the valid ones on, re-quoted and
+    * with their line number, to COPY.  Rejected records go to a file.
+    */
+   private static class ValidatingReader extends Reader {
+      private final BufferedReader _in;
+      private final PrintWriter _rejects;
+      private final StringBuilder _out = new StringBuilder(1024);
+      private int _outPos = 0;
+      private int _line = 0;
+      private boolean _first = true;
+      private boolean _eof = false;
+      int rejected = 0;
+
+      ValidatingReader (BufferedReader in, PrintWriter rejects) {
+         this._in = in;
+         this._rejects = rejects;
+      }//end ValidatingReader
+
+      @Override
+      public int read (char[] buf, int off, int len) throws IOException {
+         while (this._outPos >= this._out.length()) {
+            if (this._eof)
+               return -1;
+            this._out.setLength(0);
+            this._outPos = 0;
+            nextRecord();
+         }//end while
+         int n = Math.min(len, this._out.length() - this._outPos);
+         this._out.getChars(this._outPos, this._outPos + n, buf, off);
+         this._outPos += n;
+         return n;
+      }//end read
+
+      // parses one record; a valid one is appended to _out
+      private void nextRecord () throws IOException {
+         List<String> fields = new ArrayList<String>(5);
+         List<Boolean> quoted = new ArrayList<Boolean>(5);
+         int startLine = this._line + 1;
+         String text = this._in.readLine();
+         if (text == null) {
+            this._eof = true;
+            return;
+         }//end if
+         this._line++;
+         StringBuilder raw = new StringBuilder(text);
+         StringBuilder field = new StringBuilder();
+         boolean inQuotes = false, wasQuoted = false;
+         int i = 0;
+         while (true) {
+            if (i == text.length()) {
+               if (!inQuotes)
+                  break;
+               // a quoted field runs over the line break
+               text = this._in.readLine();
+               if (text == null) {
+                  reject(startLine, "unterminated quote", raw.toString());
+                  this._eof = true;
+                  return;
+               }//end if
+               this._line++;
+               raw.append('\n').append(text);
+               field.append('\n');
+               i = 0;
+               continue;
+            }//end if
+            char ch = text.charAt(i++);
+            if (inQuotes) {
+               if (ch == '"' && i < text.length() && text.charAt(i) == '"') {
+                  field.append('"');
+                  i++;
+               } else if (ch == '"') {
+                  inQuotes = false;
+               } else {
+                  field.append(ch);
+               }//end if
+            } else if (ch == '"') {
+               inQuotes = true;
+               wasQuoted = true;
+            } else if (ch == ',') {
+               fields.add(field.toString());
+               quoted.add(wasQuoted);
+               field.setLength(0);
+               wasQuoted = false;
+            } else {
+               field.append(ch);
+            }//end if
+         }//end while
+         fields.add(field.toString());
+         quoted.add(wasQuoted);
+
+         boolean first = this._first;
+         this._first = false;
+         if (first && raw.toString().trim().equalsIgnoreCase(HEADER))
+            return;
+         if (fields.size() == 1 && fields.get(0).trim().isEmpty() && !quoted.get(0))
+            return; // blank line
+         // Menu keys are CHAR, so "Latte" and "Latte " must stage as one name
+         for (int f = 0; f < Math.min(3, fields.size()); f++)
+            fields.set(f, fields.get(f).trim());
+         String problem = check(fields);
+         if (problem != null) {
+            reject(startLine, problem, raw.toString());
+            return;
+         }//end if
+         for (int f = 0; f < 5; f++) {
+            String value = fields.get(f);
+            // an unquoted empty description or URL stays NULL
+            if (!(value.isEmpty() && !quoted.get(f) && f >= 3))
+               this._out.append('"').append(value.replace("\"", "\"\"")).append('"');
+            this._out.append(',');
+         }//end for
+         this._out.append(startLine).append('\n');
+      }//end nextRecord
+
+      private static String check (List<String> fields) {
+         if (fields.size() != 5)
+            return "expected 5 fields, found " + fields.size();
+         String name = fields.get(0), type = fields.get(1);
+         if (name.isEmpty())
+            return "empty itemName";
+         if (name.length() > NAME_LENGTH)
+            return "itemName longer than " + NAME_LENGTH;
+         if (type.isEmpty())
+            return "empty type";
+         if (type.length() > TYPE_LENGTH)
+            return "type longer than " + TYPE_LENGTH;
+         if (fields.get(3).length() > DESCRIPTION_LENGTH)
+            return "description longer than " + DESCRIPTION_LENGTH;
+         if (fields.get(4).length() > URL_LENGTH)
+            return "imageURL longer than " + URL_LENGTH;
+         try{
+            BigDecimal price = new BigDecimal(fields.get(2));
+            if (price.signum() < 0)
+               return "negative price";
+            if (price.stripTrailingZeros().scale() > 2)
+               return "price has more than 2 decimals";
+            if (price.precision() - price.scale() > 8)
+               return "price too large";
+         }catch (NumberFormatException e){
+            return "price '" + fields.get(2) + "' is not a number";
+         }//end try
+         return null;
+      }//end check
+
+      private void reject (int line, String problem, String raw) {
+         this.rejected++;
+         this._rejects.println("line " + line + ": " + problem + ": " + raw);
+         if (this.rejected <= SHOWN_REJECTS)
+            System.out.println("line " + line + ": " + problem);
+         else if (this.rejected == SHOWN_REJECTS + 1)
+            System.out.println("...");
+      }//end reject
+
+      @Override
+      public void close () throws IOException {
+         this._rejects.close();
+         this._in.close();
+      }//end close
+   }//end ValidatingReader
+
+}//end MenuCopy
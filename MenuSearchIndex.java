@@ -0,0 +1,285 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is an in-memory search index over the menu item names and
+ * descriptions.  It answers prefix and fuzzy lookups without a database
+ * round trip, so a typo or a partial name gets suggestions instead of
+ * "does not exist".
+ *
+ * Prefix lookups binary search one sorted array of lower-case tokens:
+ * every whole item name and every word of the names and descriptions.
+ * Fuzzy lookups count the trigrams the query shares with each name and
+ * rank the candidates by trigram similarity and edit distance.
+ *
+ * An index is immutable and built from one menu snapshot; Cafe builds a
+ * new one whenever the MenuCache changes.
+ */
+public class MenuSearchIndex {
+
+   // how a token matched, best first
+   private static final byte NAME = 0, NAME_WORD = 1, DESCRIPTION_WORD = 2;
+
+   // fuzzy matches below this trigram similarity are dropped unless the edit distance is small
+   private static final double MIN_SIMILARITY = 0.3;
+
+   /**
+    * One ranked search result.
+    */
+   public static class Match {
+      public final MenuCache.MenuItem item;
+      public final double score;
+
+      Match (MenuCache.MenuItem item, double score) {
+         this.item = item;
+         this.score = score;
+      }//end Match
+
+      @Override
+      public String toString () {
+         return this.item.itemName;
+      }//end toString
+   }//end Match
+
+   private static final Comparator<Match> RANK = new Comparator<Match>() {
+      public int compare (Match a, Match b) {
+         int c = Double.compare(b.score, a.score);
+         return c != 0 ? c : a.item.itemName.compareTo(b.item.itemName);
+      }
+   };
+
+   private final MenuCache.MenuItem[] _items;
+   private final String[] _names;
+
+   // sorted tokens and, for each, the item it came from and how
+   private final String[] _tokens;
+   private final int[] _tokenItem;
+   private final byte[] _tokenField;
+
+   // item numbers by name trigram, and the number of trigrams of each name
+   private final Map<String, int[]> _trigrams;
+   private final int[] _trigramCount;
+
+   private MenuSearchIndex (Collection<MenuCache.MenuItem> items) {
+      this._items = items.toArray(new MenuCache.MenuItem[0]);
+      this._names = new String[this._items.length];
+
+      final List<String> tokens = new ArrayList<String>();
+      final List<int[]> owners = new ArrayList<int[]>();
+      Map<String, List<Integer>> trigrams = new HashMap<String, List<Integer>>();
+      this._trigramCount = new int[this._items.length];
+
+      for (int i = 0; i < this._items.length; i++) {
+         String name = normalize(this._items[i].itemName);
+         this._names[i] = name;
+         tokens.add(name);
+         owners.add(new int[] {i, NAME});
+         for (String word : words(name)) {
+            tokens.add(word);
+            owners.add(new int[] {i, NAME_WORD});
+         }//end for
+         for (String word : words(normalize(this._items[i].description))) {
+            tokens.add(word);
+            owners.add(new int[] {i, DESCRIPTION_WORD});
+         }//end for
+         Set<String> grams = trigrams(name);
+         this._trigramCount[i] = grams.size();
+         for (String gram : grams) {
+            List<Integer> list = trigrams.get(gram);
+            if (list == null)
+               trigrams.put(gram, list = new ArrayList<Integer>());
+            list.add(i);
+         }//end for
+      }//end for
+
+      Integer[] order = new Integer[tokens.size()];
+      for (int i = 0; i < order.length; i++)
+         order[i] = i;
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare (Integer a, Integer b) {
+            return tokens.get(a).compareTo(tokens.get(b));
+         }
+      });
+      this._tokens = new String[order.length];
+      this._tokenItem = new int[order.length];
+      this._tokenField = new byte[order.length];
+      for (int i = 0; i < order.length; i++) {
+         this._tokens[i] = tokens.get(order[i]);
+         this._tokenItem[i] = owners.get(order[i])[0];
+         this._tokenField[i] = (byte) owners.get(order[i])[1];
+      }//end for
+
+      this._trigrams = new HashMap<String, int[]>(trigrams.size() * 2);
+      for (Map.Entry<String, List<Integer>> e : trigrams.entrySet()) {
+         int[] ids = new int[e.getValue().size()];
+         for (int i = 0; i < ids.length; i++)
+            ids[i] = e.getValue().get(i);
+         this._trigrams.put(e.getKey(), ids);
+      }//end for
+   }//end MenuSearchIndex
+
+   /**
+    * @param items the menu items to index
+    * @return an index over the items
+    */
+   public static MenuSearchIndex build (Collection<MenuCache.MenuItem> items) {
+      return new MenuSearchIndex(items);
+   }//end build
+
+   /**
+    * @return the number of indexed items
+    */
+   public int size () {
+      return this._items.length;
+   }//end size
+
+   /**
+    * Method to find the items a user probably meant.  An exact name comes
+    * first, then names starting with the query, then names and
+    * descriptions with a word starting with it, then names that are
+    * spelled alike.
+    *
+    * @param query what the user typed
+    * @param limit the most matches to return
+    * @return the matches, best first
+    */
+   public List<Match> search (String query, int limit) {
+      String q = normalize(query);
+      if (q.isEmpty() || limit < 1)
+         return Collections.emptyList();
+
+      double[] scores = new double[this._items.length];
+      prefixMatches(q, scores);
+      fuzzyMatches(q, scores);
+
+      List<Match> matches = new ArrayList<Match>();
+      for (int i = 0; i < scores.length; i++)
+         if (scores[i] > 0)
+            matches.add(new Match(this._items[i], scores[i]));
+      Collections.sort(matches, RANK);
+      return matches.size() > limit ? matches.subList(0, limit) : matches;
+   }//end search
+
+   /**
+    * @param query what the user typed
+    * @param limit the most names to return
+    * @return the item names of the best matches, best first
+    */
+   public List<String> suggest (String query, int limit) {
+      List<String> names = new ArrayList<String>();
+      for (Match m : search(query, limit))
+         names.add(m.item.itemName);
+      return names;
+   }//end suggest
+
+   private void prefixMatches (String q, double[] scores) {
+      int i = lowerBound(q);
+      for (; i < this._tokens.length && this._tokens[i].startsWith(q); i++) {
+         int item = this._tokenItem[i];
+         double score;
+         if (this._tokenField[i] == NAME)
+            score = this._tokens[i].length() == q.length() ? 100 : 80;
+         else if (this._tokenField[i] == NAME_WORD)
+            score = 60;
+         else
+            score = 40;
+         // shorter tokens are closer to what was typed
+         score += 5.0 * q.length() / this._tokens[i].length();
+         scores[item] = Math.max(scores[item], score);
+      }//end for
+   }//end prefixMatches
+
+   private void fuzzyMatches (String q, double[] scores) {
+      Set<String> grams = trigrams(q);
+      int[] shared = new int[this._items.length];
+      for (String gram : grams) {
+         int[] ids = this._trigrams.get(gram);
+         if (ids != null)
+            for (int id : ids)
+               shared[id]++;
+      }//end for
+      for (int i = 0; i < shared.length; i++) {
+         if (shared[i] == 0)
+            continue;
+         double similarity = (double) shared[i] / (grams.size() + this._trigramCount[i] - shared[i]);
+         int distance = distance(q, this._names[i]);
+         boolean close = distance <= Math.max(1, q.length() / 4);
+         if (similarity < MIN_SIMILARITY && !close)
+            continue;
+         double score = 30 * similarity + (close ? 10 - distance : 0);
+         scores[i] = Math.max(scores[i], score);
+      }//end for
+   }//end fuzzyMatches
+
+   // index of the first token not less than key
+   private int lowerBound (String key) {
+      int lo = 0, hi = this._tokens.length;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (this._tokens[mid].compareTo(key) < 0)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }//end while
+      return lo;
+   }//end lowerBound
+
+   private static String normalize (String s) {
+      return s == null ? "" : s.trim().toLowerCase();
+   }//end normalize
+
+   private static List<String> words (String s) {
+      List<String> words = new ArrayList<String>();
+      for (String w : s.split("[^\\p{L}\\p{N}]+"))
+         if (!w.isEmpty())
+            words.add(w);
+      return words;
+   }//end words
+
+   // trigrams of the padded string, the way pg_trgm pads words
+   private static Set<String> trigrams (String s) {
+      Set<String> grams = new LinkedHashSet<String>();
+      String padded = "  " + s + " ";
+      for (int i = 0; i + 3 <= padded.length(); i++)
+         grams.add(padded.substring(i, i + 3));
+      return grams;
+   }//end trigrams
+
+   // Levenshtein distance with two rows
+   private static int distance (String a, String b) {
+      int[] prev = new int[b.length() + 1];
+      int[] curr = new int[b.length() + 1];
+      for (int j = 0; j <= b.length(); j++)
+         prev[j] = j;
+      for (int i = 1; i <= a.length(); i++) {
+         curr[0] = i;
+         for (int j = 1; j <= b.length(); j++) {
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            curr[j] = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+         }//end for
+         int[] t = prev; prev = curr; curr = t;
+      }//end for
+      return prev[b.length()];
+   }//end distance
+
+}//end MenuSearchIndex
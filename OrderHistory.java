@@ -0,0 +1,254 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+
+/**
+ * This class pages through a user's orders, newest first.
+ *
+ * Pages are found by seeking, not by OFFSET: the next page starts below
+ * the (timeStampRecieved, orderid) key of the last order shown and the
+ * previous page above the key of the first one.  With the index on
+ * (login, timeStampRecieved DESC, orderid DESC) every page reads only its
+ * own rows, so page 500 costs what page 1 does.  orderid breaks ties
+ * between orders placed in the same microsecond.
+ */
+public class OrderHistory {
+
+   /*
+    * One page of orders.  The keyset condition and its direction are filled
+    * in per call; the page is always returned newest first.  One order more
+    * than the page size is read to know whether there is a page after it.
+    * The key is read as text so the comparison keeps microseconds.
+    */
+   private static final String PAGE =
+      "WITH page AS (" +
+         "SELECT orderid, timeStampRecieved, paid, total, timeStampRecieved::text AS k " +
+         "FROM Orders WHERE login = ? %s " +
+         "ORDER BY timeStampRecieved %s, orderid %s LIMIT ?) ";
+
+   private static final String ORDERS_ONLY =
+      "SELECT orderid, timeStampRecieved, paid, total, k FROM page " +
+      "ORDER BY timeStampRecieved DESC, orderid DESC";
+
+   private static final String WITH_ITEMS =
+      "SELECT p.orderid, p.timeStampRecieved, p.paid, p.total, p.k, s.itemName, s.status " +
+      "FROM page p LEFT JOIN ItemStatus s ON s.orderid = p.orderid " +
+      "ORDER BY p.timeStampRecieved DESC, p.orderid DESC, s.itemName";
+
+   private static final String OLDER = "AND (timeStampRecieved, orderid) < (?::timestamp, ?)";
+   private static final String NEWER = "AND (timeStampRecieved, orderid) > (?::timestamp, ?)";
+
+   // columns of the page query
+   private static final int ORDERID = 1, RECEIVED = 2, PAID = 3, TOTAL = 4, KEY = 5, ITEM = 6, STATUS = 7;
+
+   private final Cafe _esql;
+   private final String _login;
+   private final int _pageSize;
+   private final boolean _withItems;
+   // where pages are printed, or null for standard out
+   private final Writer _out;
+
+   // keys of the newest and oldest order on the page shown
+   private String _firstKey, _lastKey;
+   private int _firstId, _lastId;
+   private boolean _hasOlder, _hasNewer;
+   private int _page = 0;
+
+   /**
+    * Creates a history browser
+    *
+    * @param esql the database access object
+    * @param login the user whose orders are shown
+    * @param pageSize orders per page
+    * @param withItems whether each order is shown with its items
+    */
+   public OrderHistory (Cafe esql, String login, int pageSize, boolean withItems) {
+      this(esql, login, pageSize, withItems, null);
+   }//end OrderHistory
+
+   /**
+    * Creates a history browser that prints the pages to a writer
+    *
+    * @param esql the database access object
+    * @param login the user whose orders are shown
+    * @param pageSize orders per page
+    * @param withItems whether each order is shown with its items
+    * @param out where the pages are printed, or null for standard out
+    */
+   public OrderHistory (Cafe esql, String login, int pageSize, boolean withItems, Writer out) {
+      if (pageSize < 1)
+         throw new IllegalArgumentException("page size must be at least 1");
+      this._esql = esql;
+      this._login = login;
+      this._pageSize = pageSize;
+      this._withItems = withItems;
+      this._out = out;
+   }//end OrderHistory
+
+   /**
+    * Method to show the newest orders.
+    *
+    * @return the number of orders shown
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public int first () throws SQLException {
+      this._page = 1;
+      return show(null, 0, true);
+   }//end first
+
+   /**
+    * Method to show the page of older orders.
+    *
+    * @return the number of orders shown, 0 when there are no older orders
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public int next () throws SQLException {
+      if (this._lastKey == null)
+         return first();
+      if (!this._hasOlder)
+         return 0;
+      this._page++;
+      return show(this._lastKey, this._lastId, true);
+   }//end next
+
+   /**
+    * Method to show the page of newer orders.
+    *
+    * @return the number of orders shown, 0 when there are no newer orders
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public int previous () throws SQLException {
+      if (this._firstKey == null || !this._hasNewer)
+         return 0;
+      this._page--;
+      return show(this._firstKey, this._firstId, false);
+   }//end previous
+
+   public boolean hasOlder () { return this._hasOlder; }
+   public boolean hasNewer () { return this._hasNewer; }
+   public int getPage () { return this._page; }
+
+   private int show (String key, int orderid, boolean older) throws SQLException {
+      String seek = key == null ? "" : (older ? OLDER : NEWER);
+      String dir = older ? "DESC" : "ASC";
+      String sql = String.format(PAGE, seek, dir, dir) + (this._withItems ? WITH_ITEMS : ORDERS_ONLY);
+      ColumnarResult rows = key == null
+         ? this._esql.executeQueryAndReturnResult(sql, this._login, this._pageSize + 1)
+         : this._esql.executeQueryAndReturnResult(sql, this._login, key, orderid, this._pageSize + 1);
+
+      // the extra order is the oldest one going forward, the newest going back
+      int orders = countOrders(rows);
+      boolean more = orders > this._pageSize;
+      int skipId = -1;
+      if (more) {
+         int row = older ? rows.getRowCount() - 1 : 0;
+         skipId = rows.getInt(row, ORDERID);
+      }//end if
+      if (older) {
+         this._hasOlder = more;
+         this._hasNewer = key != null;
+      } else {
+         this._hasNewer = more;
+         this._hasOlder = true;
+      }//end if
+
+      int shown = 0;
+      int lastOrder = -1;
+      try{
+         TablePrinter out = this._out == null ? new TablePrinter(0, null) : new TablePrinter(this._out, 0, null);
+         out.cell("orderid").cell("timeStampRecieved").cell("paid").cell("total");
+         if (this._withItems)
+            out.cell("itemName").cell("status");
+         out.endRow();
+         ColumnarResult.Cursor row = rows.cursor();
+         while (row.next()) {
+            int id = row.getInt(ORDERID);
+            if (id == skipId)
+               continue;
+            if (id != lastOrder) {
+               if (shown++ == 0) {
+                  this._firstKey = row.getString(KEY);
+                  this._firstId = id;
+               }//end if
+               this._lastKey = row.getString(KEY);
+               this._lastId = id;
+               lastOrder = id;
+               out.cell(Integer.toString(id)).cell(row.getString(RECEIVED))
+                  .cell(row.getString(PAID)).cell(row.getString(TOTAL));
+            } else {
+               // further items of the same order
+               out.cell("").cell("").cell("").cell("");
+            }//end if
+            if (this._withItems)
+               out.cell(row.getString(ITEM)).cell(row.getString(STATUS));
+            out.endRow();
+         }//end while
+         out.flush();
+      }catch (IOException e){
+         throw new SQLException("Unable to print the order history: " + e.getMessage(), e);
+      }//end try
+      return shown;
+   }//end show
+
+   private static int countOrders (ColumnarResult rows) {
+      int count = 0;
+      int last = -1;
+      for (int r = 0; r < rows.getRowCount(); r++) {
+         int id = rows.getInt(r, ORDERID);
+         if (id != last) {
+            count++;
+            last = id;
+         }//end if
+      }//end for
+      return count;
+   }//end countOrders
+
+   /**
+    * Method to let the user page through the history from the keyboard.
+    *
+    * @param in the keyboard input
+    * @throws java.sql.SQLException when the orders could not be read
+    * @throws java.io.IOException when the keyboard could not be read
+    */
+   public void browse (BufferedReader in) throws SQLException, IOException {
+      if (first() == 0) {
+         System.out.println("No orders yet");
+         return;
+      }//end if
+      while (true) {
+         System.out.print("Page " + this._page + ": " +
+            (this._hasOlder ? "n = older, " : "") +
+            (this._hasNewer ? "p = newer, " : "") +
+            "f = newest, q = quit: ");
+         String choice = in.readLine();
+         if (choice == null || choice.trim().equalsIgnoreCase("q"))
+            return;
+         switch (choice.trim().toLowerCase()) {
+            case "n":
+               if (next() == 0)
+                  System.out.println("No older orders");
+               break;
+            case "p":
+               if (previous() == 0)
+                  System.out.println("No newer orders");
+               break;
+            case "f": first(); break;
+            default: System.out.println("Unrecognized choice!"); break;
+         }//end switch
+      }//end while
+   }//end browse
+
+}//end OrderHistory
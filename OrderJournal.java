@@ -0,0 +1,750 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class takes new orders, added items and comment changes on the
+ * local disk first and writes them to the database behind the user's
+ * back, so the counter keeps taking orders while Postgres is slow or
+ * restarting.
+ *
+ * Each change is one record appended to a memory-mapped segment file and
+ * forced to disk before the call returns; the user is answered then.  A
+ * record is [length][CRC32][seq][body]; a scan stops at the first record
+ * whose length or checksum is wrong, so a write torn by a crash is
+ * ignored.  Segments are cafe.journal.segmentBytes long and named after
+ * their first sequence number; a segment is deleted once all its records
+ * are in the database.
+ *
+ * A background thread drains the records in batches, one transaction per
+ * batch.  Every applied record is written to cafe_journal_applied in the
+ * same transaction, and records found there are skipped, so a batch that
+ * is replayed after a crash or a lost commit is applied exactly once.
+ * When the database is unreachable the thread backs off and retries; the
+ * records wait on disk.  A record the database refuses (an item taken off
+ * the menu, an order already paid) is written to rejected.log, and so is
+ * one that fails cafe.journal.maxAttempts times in a row with the
+ * database up, so a single bad record cannot hold up the ones behind it.
+ *
+ * New orders need their orderid before they reach the database, so a
+ * block of ids is reserved from the Orders sequence ahead of time.  If
+ * the reserve runs out during a long outage, orders are still taken and
+ * get their id when they are applied.
+ *
+ * The database must be reachable at startup to log in and load the menu;
+ * records left from an earlier run are applied then.
+ *
+ * Settings (system properties):
+ *   cafe.journal.dir            journal directory; the journal is off when not set
+ *   cafe.journal.segmentBytes   size of a segment file, default 16 MB
+ *   cafe.journal.maxSegments    segments kept before appends fail, default 64
+ *   cafe.journal.sync           force every record to disk, default true
+ *   cafe.journal.batchSize      records per transaction, default 500
+ *   cafe.journal.reserve        orderids reserved ahead, default 200
+ *   cafe.journal.maxBackoffMs   longest wait between retries, default 5000
+ *   cafe.journal.maxAttempts    tries of a failing record before it is rejected, default 5
+ *   cafe.journal.drainMs        time given to drain the journal on exit, default 5000
+ */
+public class OrderJournal {
+
+   // record types
+   public static final byte ORDER = 1, ADD_ITEM = 2, COMMENT = 3;
+
+   // "CAFJ" and the format version at the start of every segment
+   private static final int MAGIC = 0x43414a46, VERSION = 1;
+   private static final int SEGMENT_HEADER = 8;
+   // length, crc and seq in front of every body
+   private static final int RECORD_HEADER = 16;
+
+   // created by schema migration 5
+   private static final String APPLIED_TABLE = "cafe_journal_applied";
+
+   private static final String ALREADY_APPLIED =
+      "SELECT seq FROM " + APPLIED_TABLE + " WHERE journalId = ? AND seq = ANY(?)";
+   private static final String MARK_APPLIED =
+      "INSERT INTO " + APPLIED_TABLE + " (journalId, seq) VALUES (?, ?)";
+   private static final String FORGET_APPLIED =
+      "DELETE FROM " + APPLIED_TABLE + " WHERE journalId = ? AND seq < ?";
+   private static final String RESERVE_ORDERIDS =
+      "SELECT nextval(pg_get_serial_sequence('orders', 'orderid')) FROM generate_series(1, ?)";
+
+   // the orderid is the reserved one, or a new one when none was left
+   private static final String INSERT_ORDER =
+      "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) " +
+      "SELECT COALESCE(?, nextval(pg_get_serial_sequence('orders', 'orderid'))::integer), ?, false, ?, " +
+      "round(sum(price::numeric), 2) FROM Menu WHERE itemName = ANY(?) HAVING count(*) = ? " +
+      "RETURNING orderid";
+   private static final String INSERT_ITEM =
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES (?, ?, ?, ?, ?)";
+   private static final String ADD_ITEM_SQL =
+      "WITH item AS (SELECT itemName, price FROM Menu WHERE itemName = ?), " +
+      "updated AS (UPDATE Orders o " +
+                  "SET total = round(o.total::numeric + item.price::numeric, 2), timeStampRecieved = ? " +
+                  "FROM item WHERE o.orderid = ? AND o.paid = false AND o.login = ? " +
+                  "RETURNING o.orderid) " +
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) " +
+      "SELECT updated.orderid, item.itemName, ?, ?, ? FROM updated, item";
+   private static final String SET_COMMENT =
+      "UPDATE ItemStatus SET comments = ? WHERE orderid = ? AND itemName = ?";
+
+   private static final CafeMetrics.Operation M_APPEND = CafeMetrics.query("journalAppend");
+   private static final CafeMetrics.Operation M_FLUSH = CafeMetrics.query("journalFlush");
+
+   /**
+    * One journaled change.  For ORDER, items and comments are the basket;
+    * for ADD_ITEM and COMMENT they hold one item.  An orderid of 0 is
+    * assigned when the order is applied.
+    */
+   public static class Record {
+      public final long seq;
+      public final byte type;
+      public final long time;
+      public final int orderid;
+      public final String login;
+      public final List<String> items;
+      public final List<String> comments;
+
+      Record (long seq, byte type, long time, int orderid, String login, List<String> items, List<String> comments) {
+         this.seq = seq;
+         this.type = type;
+         this.time = time;
+         this.orderid = orderid;
+         this.login = login;
+         this.items = items;
+         this.comments = comments;
+      }//end Record
+
+      @Override
+      public String toString () {
+         String kind = this.type == ORDER ? "order" : this.type == ADD_ITEM ? "add item" : "comment";
+         return kind + " " + (this.orderid > 0 ? this.orderid : "(new)") + " of " + this.login + " " + this.items;
+      }//end toString
+   }//end Record
+
+   /**
+    * One segment file.
+    */
+   private static class Segment {
+      final File file;
+      final long firstSeq;
+      long lastSeq;
+      MappedByteBuffer buf;
+
+      Segment (File file, long firstSeq) {
+         this.file = file;
+         this.firstSeq = firstSeq;
+         this.lastSeq = firstSeq - 1;
+      }//end Segment
+   }//end Segment
+
+   private final ConnectionPool _pool;
+   private final File _dir;
+   private final String _id;
+   private final int _segmentBytes = Integer.getInteger("cafe.journal.segmentBytes", 16 * 1024 * 1024);
+   private final int _maxSegments = Integer.getInteger("cafe.journal.maxSegments", 64);
+   private final boolean _sync = Boolean.parseBoolean(System.getProperty("cafe.journal.sync", "true"));
+   private final int _batchSize = Math.max(1, Integer.getInteger("cafe.journal.batchSize", 500));
+   private final int _reserveSize = Math.max(1, Integer.getInteger("cafe.journal.reserve", 200));
+   private final long _maxBackoffMillis = Long.getLong("cafe.journal.maxBackoffMs", 5000L);
+   private final long _drainMillis = Long.getLong("cafe.journal.drainMs", 5000L);
+   private final int _maxAttempts = Math.max(1, Integer.getInteger("cafe.journal.maxAttempts", 5));
+
+   // guarded by this
+   private final List<Segment> _segments = new ArrayList<Segment>();
+   private final CRC32 _crc = new CRC32();
+   private long _nextSeq = 1;
+
+   private final ArrayDeque<Integer> _orderids = new ArrayDeque<Integer>();
+   private final LinkedBlockingDeque<Record> _queue = new LinkedBlockingDeque<Record>();
+   // orders on disk but not yet in the database, by orderid, with their login
+   private final Map<Integer, String> _pendingOrders = new ConcurrentHashMap<Integer, String>();
+   // failed tries of records, by seq; used by the flusher only
+   private final Map<Long, Integer> _attempts = new HashMap<Long, Integer>();
+   private volatile long _appliedSeq = 0;
+   private volatile boolean _running = true;
+   private Thread _flusher = null;
+
+   /**
+    * Opens the journal in cafe.journal.dir, if set, and starts draining it
+    *
+    * @param pool the pool the records are written through
+    * @return the journal, or null when cafe.journal.dir is not set
+    * @throws java.io.IOException when the journal could not be opened
+    */
+   public static OrderJournal fromSystemProperties (ConnectionPool pool) throws IOException {
+      String dir = System.getProperty("cafe.journal.dir");
+      if (dir == null || dir.isEmpty())
+         return null;
+      OrderJournal journal = new OrderJournal(pool, new File(dir));
+      journal.start();
+      return journal;
+   }//end fromSystemProperties
+
+   /**
+    * Opens a journal and recovers the records it holds.  Call start() to
+    * begin draining it.
+    *
+    * @param pool the pool the records are written through
+    * @param dir the journal directory, created when missing
+    * @throws java.io.IOException when the journal could not be opened
+    */
+   public OrderJournal (ConnectionPool pool, File dir) throws IOException {
+      this._pool = pool;
+      this._dir = dir;
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Unable to create the journal directory " + dir);
+      File idFile = new File(dir, "journal.id");
+      if (!idFile.exists())
+         Files.write(idFile.toPath(), UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII));
+      this._id = new String(Files.readAllBytes(idFile.toPath()), StandardCharsets.US_ASCII).trim();
+      recover();
+   }//end OrderJournal
+
+   // maps every segment, queues its records and positions the active one at its end
+   private synchronized void recover () throws IOException {
+      File[] files = this._dir.listFiles((d, name) -> name.endsWith(".seg"));
+      if (files == null)
+         files = new File[0];
+      Arrays.sort(files);
+      int recovered = 0;
+      for (File file : files) {
+         String name = file.getName();
+         Segment seg = new Segment(file, Long.parseLong(name.substring(0, name.length() - 4)));
+         seg.buf = map(file, false);
+         if (seg.buf.getInt(0) != MAGIC || seg.buf.getInt(4) != VERSION)
+            throw new IOException("Not a journal segment: " + file);
+         seg.buf.position(SEGMENT_HEADER);
+         Record r;
+         while ((r = readNext(seg.buf)) != null) {
+            seg.lastSeq = r.seq;
+            enqueue(r);
+            recovered++;
+         }//end while
+         this._segments.add(seg);
+         this._nextSeq = Math.max(this._nextSeq, seg.lastSeq + 1);
+      }//end for
+      if (recovered > 0)
+         System.out.println("Order journal: " + recovered + " records to check against the database");
+   }//end recover
+
+   private MappedByteBuffer map (File file, boolean create) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+           FileChannel ch = raf.getChannel()) {
+         if (create)
+            raf.setLength(this._segmentBytes);
+         // the mapping stays valid after the channel is closed
+         MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+         if (create) {
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+         }//end if
+         return buf;
+      }
+   }//end map
+
+   // the record at the buffer's position, or null at the end or a torn record
+   private Record readNext (ByteBuffer buf) {
+      int pos = buf.position();
+      if (pos + RECORD_HEADER > buf.capacity())
+         return null;
+      int length = buf.getInt(pos);
+      if (length < 8 || pos + 8 + length > buf.capacity())
+         return null;
+      int crc = buf.getInt(pos + 4);
+      ByteBuffer body = buf.duplicate();
+      body.position(pos + 8).limit(pos + 8 + length);
+      this._crc.reset();
+      this._crc.update(body.duplicate());
+      if ((int) this._crc.getValue() != crc)
+         return null;
+      long seq = body.getLong();
+      byte type = body.get();
+      long time = body.getLong();
+      int orderid = body.getInt();
+      String login = getString(body);
+      int n = body.getInt();
+      List<String> items = new ArrayList<String>(n);
+      List<String> comments = new ArrayList<String>(n);
+      for (int i = 0; i < n; i++) {
+         items.add(getString(body));
+         comments.add(getString(body));
+      }//end for
+      buf.position(pos + 8 + length);
+      return new Record(seq, type, time, orderid, login, items, comments);
+   }//end readNext
+
+   private static String getString (ByteBuffer buf) {
+      int n = buf.getInt();
+      if (n < 0)
+         return null;
+      byte[] bytes = new byte[n];
+      buf.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }//end getString
+
+   private static void putString (ByteBuffer buf, String s) {
+      if (s == null) {
+         buf.putInt(-1);
+         return;
+      }//end if
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      buf.putInt(bytes.length);
+      buf.put(bytes);
+   }//end putString
+
+   private static int stringBytes (String s) {
+      return 4 + (s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length);
+   }//end stringBytes
+
+   /**
+    * Method to journal a new order.  Returns once the order is on disk.
+    *
+    * @param login the login of the customer
+    * @param items the names of the ordered menu items, without duplicates
+    * @param comments the comments for each item, in the same order
+    * @return the orderid, or 0 when it is assigned once the order is applied
+    * @throws java.io.IOException when the order could not be written
+    */
+   public int appendOrder (String login, List<String> items, List<String> comments) throws IOException {
+      Integer orderid;
+      synchronized (this._orderids) {
+         orderid = this._orderids.pollFirst();
+      }//end synchronized
+      int oid = orderid == null ? 0 : orderid;
+      append(ORDER, oid, login, items, comments);
+      return oid;
+   }//end appendOrder
+
+   /**
+    * Method to journal a menu item added to an open order.
+    *
+    * @param orderid the order to add to
+    * @param login the login the order must belong to
+    * @param itemName the name of the menu item
+    * @param comments optional comments for the item
+    * @throws java.io.IOException when the change could not be written
+    */
+   public void appendAddItem (int orderid, String login, String itemName, String comments) throws IOException {
+      append(ADD_ITEM, orderid, login, Collections.singletonList(itemName), Collections.singletonList(comments));
+   }//end appendAddItem
+
+   /**
+    * Method to journal new comments for an item of an order.
+    *
+    * @param orderid the order
+    * @param login the user making the change
+    * @param itemName the item of the order
+    * @param comments the new comments
+    * @throws java.io.IOException when the change could not be written
+    */
+   public void appendComment (int orderid, String login, String itemName, String comments) throws IOException {
+      append(COMMENT, orderid, login, Collections.singletonList(itemName), Collections.singletonList(comments));
+   }//end appendComment
+
+   private void append (byte type, int orderid, String login, List<String> items, List<String> comments) throws IOException {
+      long start = System.nanoTime();
+      long time = System.currentTimeMillis();
+      // the body is encoded outside the lock; only the seq is filled in under it
+      int size = 8 + 1 + 8 + 4 + stringBytes(login) + 4;
+      for (int i = 0; i < items.size(); i++)
+         size += stringBytes(items.get(i)) + stringBytes(comments.get(i));
+      if (RECORD_HEADER - 8 + size + SEGMENT_HEADER + 4 > this._segmentBytes)
+         throw new IOException("Order too large for the journal");
+      ByteBuffer body = ByteBuffer.allocate(size);
+      body.putLong(0L).put(type).putLong(time).putInt(orderid);
+      putString(body, login);
+      body.putInt(items.size());
+      for (int i = 0; i < items.size(); i++) {
+         putString(body, items.get(i));
+         putString(body, comments.get(i));
+      }//end for
+
+      Record record;
+      synchronized (this) {
+         if (!this._running)
+            throw new IOException("Order journal is closed");
+         long seq = this._nextSeq;
+         body.putLong(0, seq);
+         Segment seg = activeSegment(8 + size);
+         int pos = seg.buf.position();
+         this._crc.reset();
+         this._crc.update(body.array(), 0, size);
+         seg.buf.putInt(pos + 4, (int) this._crc.getValue());
+         ByteBuffer dst = seg.buf.duplicate();
+         dst.position(pos + 8);
+         dst.put(body.array(), 0, size);
+         // the length goes last: until it is written the record does not exist
+         seg.buf.putInt(pos, size);
+         if (this._sync)
+            seg.buf.force();
+         seg.buf.position(pos + 8 + size);
+         seg.lastSeq = seq;
+         this._nextSeq = seq + 1;
+         record = new Record(seq, type, time, orderid, login,
+            new ArrayList<String>(items), new ArrayList<String>(comments));
+         enqueue(record);
+      }//end synchronized
+      M_APPEND.record(start, 1, 0);
+   }//end append
+
+   // the segment with room for a record of this size, rolling to a new one if needed
+   private Segment activeSegment (int bytes) throws IOException {
+      Segment seg = this._segments.isEmpty() ? null : this._segments.get(this._segments.size() - 1);
+      // keeps 4 zero bytes after the last record as the end mark
+      if (seg != null && seg.buf.position() + bytes + 4 <= seg.buf.capacity())
+         return seg;
+      if (this._segments.size() >= this._maxSegments)
+         throw new IOException("Order journal is full; the database has been unreachable too long");
+      File file = new File(this._dir, String.format("%020d.seg", this._nextSeq));
+      seg = new Segment(file, this._nextSeq);
+      seg.buf = map(file, true);
+      seg.buf.position(SEGMENT_HEADER);
+      this._segments.add(seg);
+      return seg;
+   }//end activeSegment
+
+   private void enqueue (Record r) {
+      if (r.type == ORDER && r.orderid > 0)
+         this._pendingOrders.put(r.orderid, r.login);
+      this._queue.addLast(r);
+   }//end enqueue
+
+   /**
+    * @param orderid an order
+    * @param login the user asking
+    * @return true when the order of that user is journaled but not yet in the database
+    */
+   public boolean isPending (int orderid, String login) {
+      return login.equals(this._pendingOrders.get(orderid));
+   }//end isPending
+
+   /**
+    * @return the records not yet in the database
+    */
+   public int getBacklog () {
+      return this._queue.size();
+   }//end getBacklog
+
+   /**
+    * Method to start the thread that drains the journal into the database.
+    */
+   public void start () {
+      this._flusher = new Thread(new Runnable() {
+         public void run () {
+            flushLoop();
+         }
+      }, "cafe-order-journal");
+      this._flusher.setDaemon(true);
+      this._flusher.start();
+   }//end start
+
+   private void flushLoop () {
+      List<Record> batch = new ArrayList<Record>(this._batchSize);
+      long backoff = 100;
+      boolean down = false;
+      while (this._running || (!batch.isEmpty() || !this._queue.isEmpty())) {
+         try{
+            if (batch.isEmpty()) {
+               refillOrderIds();
+               Record first = this._queue.pollFirst(100, TimeUnit.MILLISECONDS);
+               if (first == null)
+                  continue;
+               batch.add(first);
+               this._queue.drainTo(batch, this._batchSize - 1);
+            }//end if
+            apply(batch);
+            this._appliedSeq = batch.get(batch.size() - 1).seq;
+            batch.clear();
+            dropAppliedSegments();
+            if (down)
+               System.err.println("Order journal: database is back, " + this._queue.size() + " records left");
+            down = false;
+            backoff = 100;
+         }catch (InterruptedException e){
+            return;
+         }catch (SQLException e){
+            if (!down)
+               System.err.println("Order journal: database unavailable, retrying: " + e.getMessage());
+            down = true;
+            if (!this._running)
+               return;
+            try{
+               Thread.sleep(backoff);
+            }catch (InterruptedException ie){
+               return;
+            }//end try
+            backoff = Math.min(backoff * 2, this._maxBackoffMillis);
+         }//end try
+      }//end while
+   }//end flushLoop
+
+   // one transaction: skip what is already applied, apply the rest, record them as applied
+   private void apply (List<Record> batch) throws SQLException {
+      long start = System.nanoTime();
+      long statements = CafeMetrics.statements();
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow()) {
+         Connection c = conn.connection();
+         c.setAutoCommit(false);
+         try{
+            Long[] seqs = new Long[batch.size()];
+            for (int i = 0; i < seqs.length; i++)
+               seqs[i] = batch.get(i).seq;
+            Set<Long> done = new HashSet<Long>();
+            PreparedStatement stmt = conn.statements().prepare(ALREADY_APPLIED);
+            stmt.setString(1, this._id);
+            stmt.setArray(2, c.createArrayOf("bigint", seqs));
+            CafeMetrics.roundTrip();
+            try (ResultSet rs = stmt.executeQuery()) {
+               while (rs.next())
+                  done.add(rs.getLong(1));
+            }
+
+            PreparedStatement mark = conn.statements().prepare(MARK_APPLIED);
+            for (Record r : batch) {
+               if (done.contains(r.seq))
+                  continue;
+               Savepoint sp = c.setSavepoint();
+               String problem;
+               try{
+                  problem = applyOne(conn, r);
+                  c.releaseSavepoint(sp);
+               }catch (SQLException e){
+                  // a statement left stale by a schema change would fail every retry
+                  if (StatementCache.isStale(e))
+                     evictRecordStatements(conn);
+                  if (!isRefusal(e) && !givesUp(r, e))
+                     throw e;
+                  c.rollback(sp);
+                  problem = e.getMessage();
+               }//end try
+               if (problem != null)
+                  reject(r, problem);
+               mark.setString(1, this._id);
+               mark.setLong(2, r.seq);
+               mark.addBatch();
+            }//end for
+            mark.executeBatch();
+            CafeMetrics.roundTrip();
+            c.commit();
+            CafeMetrics.roundTrip();
+            M_FLUSH.record(start, batch.size(), CafeMetrics.statements() - statements);
+         }catch (SQLException e){
+            try{
+               c.rollback();
+            }catch (SQLException ignored){
+               // the connection is probably gone; the pool will drop it
+            }//end try
+            if (StatementCache.isStale(e))
+               conn.statements().clear();
+            M_FLUSH.failed(start);
+            throw e;
+         }//end try
+      }
+      for (Record r : batch) {
+         this._attempts.remove(r.seq);
+         if (r.type == ORDER)
+            this._pendingOrders.remove(r.orderid);
+      }//end for
+   }//end apply
+
+   // null when applied, otherwise why the database refused the record
+   private String applyOne (ConnectionPool.PooledConnection conn, Record r) throws SQLException {
+      Timestamp time = new Timestamp(r.time);
+      PreparedStatement stmt;
+      CafeMetrics.roundTrip();
+      switch (r.type) {
+         case ORDER: {
+            stmt = conn.statements().prepare(INSERT_ORDER);
+            if (r.orderid > 0)
+               stmt.setInt(1, r.orderid);
+            else
+               stmt.setNull(1, Types.INTEGER);
+            stmt.setString(2, r.login);
+            stmt.setTimestamp(3, time);
+            stmt.setArray(4, conn.connection().createArrayOf("text", r.items.toArray()));
+            stmt.setInt(5, r.items.size());
+            int oid;
+            try (ResultSet rs = stmt.executeQuery()) {
+               if (!rs.next())
+                  return "an item is no longer on the menu";
+               oid = rs.getInt(1);
+            }
+            stmt = conn.statements().prepare(INSERT_ITEM);
+            for (int i = 0; i < r.items.size(); i++) {
+               stmt.setInt(1, oid);
+               stmt.setString(2, r.items.get(i));
+               stmt.setTimestamp(3, time);
+               stmt.setString(4, Cafe.INITIAL_ITEM_STATUS);
+               stmt.setString(5, r.comments.get(i));
+               stmt.addBatch();
+            }//end for
+            CafeMetrics.roundTrip();
+            stmt.executeBatch();
+            return null;
+         }
+         case ADD_ITEM:
+            stmt = conn.statements().prepare(ADD_ITEM_SQL);
+            stmt.setString(1, r.items.get(0));
+            stmt.setTimestamp(2, time);
+            stmt.setInt(3, r.orderid);
+            stmt.setString(4, r.login);
+            stmt.setTimestamp(5, time);
+            stmt.setString(6, Cafe.INITIAL_ITEM_STATUS);
+            stmt.setString(7, r.comments.get(0));
+            return stmt.executeUpdate() > 0 ? null : "the order is not open or the item is not on the menu";
+         case COMMENT:
+            stmt = conn.statements().prepare(SET_COMMENT);
+            stmt.setString(1, r.comments.get(0));
+            stmt.setInt(2, r.orderid);
+            stmt.setString(3, r.items.get(0));
+            return stmt.executeUpdate() > 0 ? null : "no such item in the order";
+         default:
+            return "unknown record type " + r.type;
+      }//end switch
+   }//end applyOne
+
+   private static void evictRecordStatements (ConnectionPool.PooledConnection conn) {
+      for (String sql : new String[] {INSERT_ORDER, INSERT_ITEM, ADD_ITEM_SQL, SET_COMMENT})
+         conn.statements().evict(sql);
+   }//end evictRecordStatements
+
+   // data errors and constraint violations will not go away on a retry
+   private static boolean isRefusal (SQLException e) {
+      String state = e.getSQLState();
+      return state != null && (state.startsWith("22") || state.startsWith("23"));
+   }//end isRefusal
+
+   /*
+    * Counts a failed try of a record; true when it has failed too often to
+    * be retried.  Lost connections, a server shutting down or out of
+    * resources, and stale statements are the database's fault, not the
+    * record's, and not counted.
+    */
+   private boolean givesUp (Record r, SQLException e) {
+      String state = e.getSQLState();
+      if (state == null || state.startsWith("08") || state.startsWith("53") || state.startsWith("57P")
+            || StatementCache.isStale(e))
+         return false;
+      Integer attempts = this._attempts.get(r.seq);
+      attempts = attempts == null ? 1 : attempts + 1;
+      this._attempts.put(r.seq, attempts);
+      return attempts >= this._maxAttempts;
+   }//end givesUp
+
+   private void reject (Record r, String problem) {
+      String line = new Timestamp(System.currentTimeMillis()) + " record " + r.seq + ": " + r + ": " + problem;
+      System.err.println("Order journal: not applied: " + line);
+      try (PrintWriter out = new PrintWriter(new FileWriter(new File(this._dir, "rejected.log"), true))) {
+         out.println(line);
+      }catch (IOException e){
+         System.err.println("Unable to write " + this._dir + "/rejected.log: " + e.getMessage());
+      }//end try
+   }//end reject
+
+   private void refillOrderIds () throws SQLException {
+      synchronized (this._orderids) {
+         if (this._orderids.size() >= this._reserveSize / 2)
+            return;
+      }//end synchronized
+      List<Integer> ids = new ArrayList<Integer>(this._reserveSize);
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow()) {
+         PreparedStatement stmt = conn.statements().prepare(RESERVE_ORDERIDS);
+         stmt.setInt(1, this._reserveSize);
+         CafeMetrics.roundTrip();
+         try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next())
+               ids.add(rs.getInt(1));
+         }
+      }
+      synchronized (this._orderids) {
+         this._orderids.addAll(ids);
+      }//end synchronized
+   }//end refillOrderIds
+
+   // deletes the segments whose records are all applied, then forgets them in the database
+   private void dropAppliedSegments () throws SQLException {
+      long keepFrom;
+      synchronized (this) {
+         boolean dropped = false;
+         while (this._segments.size() > 1 && this._segments.get(0).lastSeq <= this._appliedSeq) {
+            Segment seg = this._segments.remove(0);
+            seg.buf = null;
+            if (!seg.file.delete())
+               System.err.println("Order journal: unable to delete " + seg.file);
+            dropped = true;
+         }//end while
+         if (!dropped)
+            return;
+         keepFrom = this._segments.get(0).firstSeq;
+      }//end synchronized
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow()) {
+         PreparedStatement stmt = conn.statements().prepare(FORGET_APPLIED);
+         stmt.setString(1, this._id);
+         stmt.setLong(2, keepFrom);
+         CafeMetrics.roundTrip();
+         stmt.executeUpdate();
+      }
+   }//end dropAppliedSegments
+
+   /**
+    * Method to stop taking records and give the flusher up to
+    * cafe.journal.drainMs to write what is left.  Records still on disk
+    * are applied on the next start.
+    */
+   public void close () {
+      synchronized (this) {
+         this._running = false;
+      }//end synchronized
+      if (this._flusher == null)
+         return;
+      try{
+         this._flusher.join(this._drainMillis);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+      this._flusher.interrupt();
+      if (!this._queue.isEmpty())
+         System.err.println("Order journal: " + this._queue.size() + " records left for the next start");
+   }//end close
+
+}//end OrderJournal
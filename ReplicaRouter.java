@@ -0,0 +1,364 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class sends the queries of read-only menu actions to streaming
+ * replicas of the database, so browsing, history and reports do not
+ * compete with order writes on the primary.
+ *
+ * A query goes to a replica only when it runs inside one of the actions
+ * listed in cafe.replicas.readActions (see CafeMetrics.action), and the
+ * session has not written anything in the last cafe.replicas.stickyMs,
+ * so users always see their own new orders.  Everything else, and every
+ * query when no replica is healthy, goes to the primary.
+ *
+ * A background check measures each replica's round trip and replication
+ * lag every cafe.replicas.checkMs.  A replica that fails, lags more than
+ * cafe.replicas.maxLagMs, cannot hand out a connection, or has lost its
+ * WAL stream and is behind the primary is taken out until a later check
+ * passes.  The leastLatency policy picks the healthy
+ * replica with the fastest recent round trip, roundRobin takes turns.
+ *
+ * To try it with two local instances:
+ *
+ *   pg_basebackup -h 127.0.0.1 -p 5432 -D replica -R
+ *   pg_ctl -D replica -o "-p 5433" start
+ *   java -Dcafe.replicas=127.0.0.1:5433 Cafe cafedb 5432
+ *
+ * Settings (system properties):
+ *   cafe.replicas               replicas as host:port or JDBC URLs, comma separated
+ *   cafe.replicas.policy        roundRobin (default) or leastLatency
+ *   cafe.replicas.stickyMs      reads stay on the primary this long after a write, default 5000
+ *   cafe.replicas.maxLagMs      replicas further behind are not used, default 5000
+ *   cafe.replicas.checkMs       period of the health check, default 2000
+ *   cafe.replicas.readActions   actions whose queries may go to a replica
+ */
+public class ReplicaRouter {
+
+   public static final String DEFAULT_READ_ACTIONS =
+      "BrowseMenuName,BrowseMenuType,ViewOrderHistory,ViewOrderStatus,ViewCurrentOrder,SalesReports";
+
+   /*
+    * The lag is 0 on a replica that has replayed all it received, which
+    * says nothing when it receives nothing; so the query also tells
+    * whether WAL is streaming in, and how far the replica has replayed.
+    */
+   private static final String LAG_QUERY =
+      "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() " +
+      "THEN 0 ELSE COALESCE(extract(epoch FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END, " +
+      "NOT pg_is_in_recovery() OR EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming'), " +
+      "pg_last_wal_replay_lsn()::text";
+
+   // run on the primary: has the replica replayed all the primary wrote
+   private static final String CAUGHT_UP_QUERY =
+      "SELECT pg_wal_lsn_diff(pg_current_wal_lsn(), ?::pg_lsn) <= 0";
+
+   // weight of the newest round trip in the latency average
+   private static final double LATENCY_WEIGHT = 0.3;
+
+   /**
+    * How a replica is picked among the healthy ones.
+    */
+   public enum Policy { ROUND_ROBIN, LEAST_LATENCY }
+
+   /**
+    * One replica and what the last checks saw.
+    */
+   private static class Replica {
+      final String url;
+      volatile ConnectionPool pool = null;
+      volatile boolean healthy = false;
+      volatile double latencyMicros = 0;
+      volatile double lagMillis = 0;
+      final LongAdder reads = new LongAdder();
+
+      Replica (String url) {
+         this.url = url;
+      }//end Replica
+
+      @Override
+      public String toString () {
+         return String.format("%s %s rtt=%.0fus lag=%.0fms reads=%d", this.url,
+            this.healthy ? "up" : "down", this.latencyMicros, this.lagMillis, this.reads.sum());
+      }//end toString
+   }//end Replica
+
+   /**
+    * The session bound to a thread and when the thread last wrote.
+    */
+   private static class Binding {
+      Session session;
+      long lastWriteMillis;
+   }//end Binding
+
+   private static final ThreadLocal<Binding> BINDING = new ThreadLocal<Binding>() {
+      protected Binding initialValue () {
+         return new Binding();
+      }
+   };
+
+   private final ConnectionPool _primary;
+   private final ConnectionPool.Config _config;
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final Policy _policy;
+   private final long _stickyMillis = Long.getLong("cafe.replicas.stickyMs", 5000L);
+   private final long _maxLagMillis = Long.getLong("cafe.replicas.maxLagMs", 5000L);
+   private final Set<String> _readActions;
+   private final AtomicInteger _next = new AtomicInteger();
+   private final LongAdder _primaryReads = new LongAdder();
+   private final LongAdder _failovers = new LongAdder();
+   private ScheduledExecutorService _checker = null;
+
+   /**
+    * @param dbname the database name, used for replicas given as host:port
+    * @return the replica URLs in cafe.replicas, possibly none
+    */
+   public static List<String> urlsFromSystemProperties (String dbname) {
+      String value = System.getProperty("cafe.replicas", "").trim();
+      List<String> urls = new ArrayList<String>();
+      if (value.isEmpty())
+         return urls;
+      for (String replica : value.split(",")) {
+         replica = replica.trim();
+         if (replica.isEmpty())
+            continue;
+         urls.add(replica.startsWith("jdbc:") ? replica : "jdbc:postgresql://" + replica + "/" + dbname);
+      }//end for
+      return urls;
+   }//end urlsFromSystemProperties
+
+   /**
+    * Creates a router and starts checking the replicas.  Replicas that are
+    * down now are used once a check finds them up.
+    *
+    * @param primary the pool of the primary
+    * @param replicaUrls the JDBC URLs of the replicas, may be empty
+    * @param config the pool settings, also used for the replica pools
+    */
+   public ReplicaRouter (ConnectionPool primary, List<String> replicaUrls, ConnectionPool.Config config) {
+      this._primary = primary;
+      this._config = replicaConfig(config);
+      this._policy = System.getProperty("cafe.replicas.policy", "roundRobin").equalsIgnoreCase("leastLatency")
+         ? Policy.LEAST_LATENCY : Policy.ROUND_ROBIN;
+      this._readActions = new HashSet<String>(Arrays.asList(
+         System.getProperty("cafe.replicas.readActions", DEFAULT_READ_ACTIONS).split("\\s*,\\s*")));
+      for (String url : replicaUrls)
+         this._replicas.add(new Replica(url));
+      if (this._replicas.isEmpty())
+         return;
+      check();
+      long period = Long.getLong("cafe.replicas.checkMs", 2000L);
+      this._checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "cafe-replica-check");
+         t.setDaemon(true);
+         return t;
+      });
+      this._checker.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   // a replica that does not answer should fail a read over to the primary quickly
+   private static ConnectionPool.Config replicaConfig (ConnectionPool.Config config) {
+      ConnectionPool.Config copy = new ConnectionPool.Config();
+      copy.minSize = config.minSize;
+      copy.maxSize = config.maxSize;
+      copy.idleTimeoutMillis = config.idleTimeoutMillis;
+      copy.borrowTimeoutMillis = Math.min(config.borrowTimeoutMillis, 2000L);
+      copy.healthCheckMillis = config.healthCheckMillis;
+      copy.validateAfterIdleMillis = config.validateAfterIdleMillis;
+      copy.validationTimeoutSeconds = Math.min(config.validationTimeoutSeconds, 1);
+      copy.statementCacheSize = config.statementCacheSize;
+      return copy;
+   }//end replicaConfig
+
+   /**
+    * Method to bind a session to the calling thread, so its writes keep
+    * its reads on the primary for a while.
+    *
+    * @param session the session the thread works for, or null to unbind
+    */
+   public void bind (Session session) {
+      Binding binding = BINDING.get();
+      binding.session = session;
+      binding.lastWriteMillis = 0;
+   }//end bind
+
+   /**
+    * Method to note that the calling thread has just written to the primary.
+    */
+   public void wroteNow () {
+      if (this._replicas.isEmpty())
+         return;
+      long now = System.currentTimeMillis();
+      Binding binding = BINDING.get();
+      binding.lastWriteMillis = now;
+      if (binding.session != null)
+         binding.session.markWrite(now);
+   }//end wroteNow
+
+   /**
+    * Borrows a connection for a query: from a replica when the query
+    * belongs to a read-only action and one is healthy, else from the primary.
+    *
+    * @return a connection that must be closed to give it back
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public ConnectionPool.PooledConnection borrowForRead () throws SQLException {
+      Replica replica = choose();
+      if (replica != null) {
+         try{
+            ConnectionPool.PooledConnection conn = replica.pool.borrow();
+            replica.reads.increment();
+            return conn;
+         }catch (SQLException e){
+            // the next check decides when it comes back
+            replica.healthy = false;
+            this._failovers.increment();
+         }//end try
+      }//end if
+      this._primaryReads.increment();
+      return this._primary.borrow();
+   }//end borrowForRead
+
+   private Replica choose () {
+      if (this._replicas.isEmpty())
+         return null;
+      String action = CafeMetrics.currentAction();
+      if (action == null || !this._readActions.contains(action))
+         return null;
+      Binding binding = BINDING.get();
+      long lastWrite = binding.session == null ? binding.lastWriteMillis
+         : Math.max(binding.lastWriteMillis, binding.session.getLastWriteMillis());
+      if (System.currentTimeMillis() - lastWrite < this._stickyMillis)
+         return null;
+
+      Replica best = null;
+      if (this._policy == Policy.LEAST_LATENCY) {
+         for (Replica r : this._replicas)
+            if (r.healthy && (best == null || r.latencyMicros < best.latencyMicros))
+               best = r;
+         return best;
+      }//end if
+      int n = this._replicas.size();
+      int start = Math.floorMod(this._next.getAndIncrement(), n);
+      for (int i = 0; i < n; i++) {
+         Replica r = this._replicas.get((start + i) % n);
+         if (r.healthy)
+            return r;
+      }//end for
+      return null;
+   }//end choose
+
+   // measures round trip and lag of every replica, opening its pool if needed
+   private void check () {
+      for (Replica r : this._replicas) {
+         try{
+            if (r.pool == null)
+               r.pool = new ConnectionPool(r.url, this._config);
+            long start = System.nanoTime();
+            double lag;
+            boolean streaming;
+            String replayed;
+            try (ConnectionPool.PooledConnection conn = r.pool.borrow();
+                 ResultSet rs = conn.statements().executeQuery(LAG_QUERY)) {
+               rs.next();
+               lag = rs.getDouble(1);
+               streaming = rs.getBoolean(2);
+               replayed = rs.getString(3);
+            }
+            double micros = (System.nanoTime() - start) / 1000.0;
+            r.latencyMicros = r.latencyMicros == 0 ? micros
+               : LATENCY_WEIGHT * micros + (1 - LATENCY_WEIGHT) * r.latencyMicros;
+            r.lagMillis = lag;
+            // a detached replica is only good while the primary has written nothing since
+            boolean attached = streaming || caughtUp(replayed);
+            boolean healthy = attached && lag <= this._maxLagMillis;
+            if (healthy != r.healthy)
+               System.err.println("Replica " + r.url + (healthy ? " is up"
+                  : !attached ? " is not streaming and behind the primary" : " lags " + (long) lag + " ms"));
+            r.healthy = healthy;
+         }catch (SQLException e){
+            if (r.healthy || r.pool == null)
+               System.err.println("Replica " + r.url + " is down: " + e.getMessage());
+            r.healthy = false;
+         }//end try
+      }//end for
+   }//end check
+
+   // false also when the primary cannot tell
+   private boolean caughtUp (String replayedLsn) {
+      if (replayedLsn == null)
+         return false;
+      try (ConnectionPool.PooledConnection conn = this._primary.borrow();
+           ResultSet rs = conn.statements().executeQuery(CAUGHT_UP_QUERY, replayedLsn)) {
+         return rs.next() && rs.getBoolean(1);
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end caughtUp
+
+   /**
+    * @return the number of replicas configured
+    */
+   public int getReplicaCount () {
+      return this._replicas.size();
+   }//end getReplicaCount
+
+   /**
+    * @return the replica URLs that are in use now
+    */
+   public List<String> getHealthyReplicas () {
+      List<String> urls = new ArrayList<String>();
+      for (Replica r : this._replicas)
+         if (r.healthy)
+            urls.add(r.url);
+      return Collections.unmodifiableList(urls);
+   }//end getHealthyReplicas
+
+   public long getPrimaryReads () { return this._primaryReads.sum(); }
+   public long getFailovers () { return this._failovers.sum(); }
+
+   /**
+    * Method to stop the checks and close the replica pools.  The primary
+    * pool is left open.
+    */
+   public void close () {
+      if (this._checker != null)
+         this._checker.shutdownNow();
+      for (Replica r : this._replicas)
+         if (r.pool != null)
+            r.pool.close();
+   }//end close
+
+   @Override
+   public String toString () {
+      StringBuilder out = new StringBuilder(String.format("primaryReads=%d failovers=%d policy=%s",
+         getPrimaryReads(), getFailovers(), this._policy));
+      for (Replica r : this._replicas)
+         out.append("\n  ").append(r);
+      return out.toString();
+   }//end toString
+
+}//end ReplicaRouter
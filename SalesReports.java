@@ -0,0 +1,143 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+
+/**
+ * This class prints the manager reports: top items, revenue by day and
+ * by hour, average ticket size and item prep times.
+ *
+ * Every report reads the rollup tables that schema migration 6 keeps up
+ * to date with triggers (sales_hourly, sales_item_daily, prep_time_daily),
+ * never Orders or ItemStatus.  A report over N days reads at most 24*N
+ * hourly rows or N rows per menu item, found through the primary key,
+ * so it costs the same after one month or ten years of orders and puts
+ * no load on the tables the counter writes to.
+ */
+public class SalesReports {
+
+   private static final String TOP_ITEMS =
+      "SELECT itemName, sum(quantity) AS sold, sum(revenue) AS revenue " +
+      "FROM sales_item_daily WHERE day > current_date - ? " +
+      "GROUP BY itemName ORDER BY sold DESC, revenue DESC LIMIT ?";
+
+   private static final String REVENUE_BY_DAY =
+      "SELECT hour::date AS day, sum(orders) AS orders, sum(revenue) AS revenue, " +
+      "round(sum(revenue) / NULLIF(sum(orders), 0), 2) AS avg_ticket " +
+      "FROM sales_hourly WHERE hour >= current_date - (? - 1) " +
+      "GROUP BY 1 HAVING sum(orders) <> 0 ORDER BY 1";
+
+   private static final String REVENUE_BY_HOUR =
+      "SELECT hour, sum(orders) AS orders, sum(revenue) AS revenue, " +
+      "round(sum(revenue) / NULLIF(sum(orders), 0), 2) AS avg_ticket " +
+      "FROM sales_hourly WHERE hour >= ?::date AND hour < ?::date + 1 " +
+      "GROUP BY hour HAVING sum(orders) <> 0 ORDER BY hour";
+
+   // the busy hours of the day over a period
+   private static final String REVENUE_BY_HOUR_OF_DAY =
+      "SELECT extract(hour FROM hour)::integer AS hour_of_day, sum(orders) AS orders, sum(revenue) AS revenue, " +
+      "round(sum(revenue) / NULLIF(sum(orders), 0), 2) AS avg_ticket " +
+      "FROM sales_hourly WHERE hour >= current_date - (? - 1) " +
+      "GROUP BY 1 HAVING sum(orders) <> 0 ORDER BY 1";
+
+   private static final String AVERAGE_TICKET =
+      "SELECT sum(orders) AS orders, sum(revenue) AS revenue, " +
+      "round(sum(revenue) / NULLIF(sum(orders), 0), 2) AS avg_ticket " +
+      "FROM sales_hourly WHERE hour >= current_date - (? - 1)";
+
+   private static final String PREP_TIMES =
+      "SELECT itemName, sum(finished) AS finished, " +
+      "round((sum(totalSeconds) / sum(finished) / 60)::numeric, 1) AS avg_minutes, " +
+      "round((max(maxSeconds) / 60)::numeric, 1) AS max_minutes " +
+      "FROM prep_time_daily WHERE day > current_date - ? " +
+      "GROUP BY itemName ORDER BY avg_minutes DESC";
+
+   private final Cafe _esql;
+
+   /**
+    * Creates the reports
+    *
+    * @param esql the database access object
+    */
+   public SalesReports (Cafe esql) {
+      this._esql = esql;
+   }//end SalesReports
+
+   /**
+    * Method to print the best selling items.
+    *
+    * @param days the period, ending today
+    * @param limit the items to show
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when the report failed
+    */
+   public int topItems (int days, int limit) throws SQLException {
+      return this._esql.executeQueryAndPrintResult(TOP_ITEMS, days, limit);
+   }//end topItems
+
+   /**
+    * Method to print orders, revenue and average ticket per day.
+    *
+    * @param days the period, ending today
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when the report failed
+    */
+   public int revenueByDay (int days) throws SQLException {
+      return this._esql.executeQueryAndPrintResult(REVENUE_BY_DAY, days);
+   }//end revenueByDay
+
+   /**
+    * Method to print orders, revenue and average ticket per hour of one day.
+    *
+    * @param day the day, as yyyy-mm-dd
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when the report failed
+    */
+   public int revenueByHour (String day) throws SQLException {
+      return this._esql.executeQueryAndPrintResult(REVENUE_BY_HOUR, day, day);
+   }//end revenueByHour
+
+   /**
+    * Method to print orders, revenue and average ticket per hour of the
+    * day over a period, to see the busy hours.
+    *
+    * @param days the period, ending today
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when the report failed
+    */
+   public int revenueByHourOfDay (int days) throws SQLException {
+      return this._esql.executeQueryAndPrintResult(REVENUE_BY_HOUR_OF_DAY, days);
+   }//end revenueByHourOfDay
+
+   /**
+    * Method to print the average ticket size over a period.
+    *
+    * @param days the period, ending today
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when the report failed
+    */
+   public int averageTicket (int days) throws SQLException {
+      return this._esql.executeQueryAndPrintResult(AVERAGE_TICKET, days);
+   }//end averageTicket
+
+   /**
+    * Method to print how long items took from being ordered to being done.
+    *
+    * @param days the period, ending today
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when the report failed
+    */
+   public int prepTimes (int days) throws SQLException {
+      return this._esql.executeQueryAndPrintResult(PREP_TIMES, days);
+   }//end prepTimes
+
+}//end SalesReports
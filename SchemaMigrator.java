@@ -0,0 +1,338 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class brings the database schema up to date when Cafe starts.
+ * Each migration has a version number and runs once; applied versions are
+ * recorded in the cafe_schema_version table, so a startup against an up
+ * to date database only reads the version and checks that the indexes
+ * the hot queries rely on are still there.
+ *
+ * Migrations run one per transaction under an advisory lock, so several
+ * clients starting at the same time do not apply the same migration
+ * twice.  To change the schema, append a new migration to MIGRATIONS;
+ * never edit one that has been released.
+ */
+public class SchemaMigrator {
+
+   // table recording the applied migrations
+   public static final String VERSION_TABLE = "cafe_schema_version";
+
+   // advisory lock key held while migrating ("cafe" in ASCII)
+   private static final long LOCK_KEY = 0x63616665L;
+
+   /**
+    * One schema change.
+    */
+   public static class Migration {
+      public final int version;
+      public final String description;
+      public final String[] statements;
+
+      public Migration (int version, String description, String... statements) {
+         this.version = version;
+         this.description = description;
+         this.statements = statements;
+      }//end Migration
+   }//end Migration
+
+   /*
+    * The indexes the hot queries need, by name.  They are checked on every
+    * startup and recreated if someone dropped them.
+    *
+    *   orders_unpaid_time_idx     ViewCurrentOrder: unpaid orders of the last day
+    *   orders_login_time_id_idx   ViewOrderHistory: seeking a page of a user's orders
+    *   itemstatus_itemname_idx    UpdateMenu: is the item in any order
+    */
+   private static final String ORDERS_UNPAID_TIME_INDEX =
+      "CREATE INDEX IF NOT EXISTS orders_unpaid_time_idx ON Orders (timeStampRecieved) WHERE paid = false";
+   private static final String ORDERS_LOGIN_TIME_INDEX =
+      "CREATE INDEX IF NOT EXISTS orders_login_time_idx ON Orders (login, timeStampRecieved DESC)";
+   private static final String ORDERS_LOGIN_TIME_ID_INDEX =
+      "CREATE INDEX IF NOT EXISTS orders_login_time_id_idx ON Orders (login, timeStampRecieved DESC, orderid DESC)";
+   private static final String ITEMSTATUS_ITEMNAME_INDEX =
+      "CREATE INDEX IF NOT EXISTS itemstatus_itemname_idx ON ItemStatus (itemName)";
+
+   private static final Map<String, String> REQUIRED_INDEXES = new LinkedHashMap<String, String>();
+   static {
+      REQUIRED_INDEXES.put("orders_unpaid_time_idx", ORDERS_UNPAID_TIME_INDEX);
+      REQUIRED_INDEXES.put("orders_login_time_id_idx", ORDERS_LOGIN_TIME_ID_INDEX);
+      REQUIRED_INDEXES.put("itemstatus_itemname_idx", ITEMSTATUS_ITEMNAME_INDEX);
+   }
+
+   /*
+    * ItemStatus lookups by orderid are already served by the primary key
+    * (orderid, itemName); a separate index is only built when no index
+    * starts with orderid, to keep inserts cheap.
+    */
+   private static final String ITEMSTATUS_ORDERID_INDEX =
+      "DO $$ BEGIN " +
+        "IF NOT EXISTS (SELECT 1 FROM pg_index i " +
+                       "JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = i.indkey[0] " +
+                       "WHERE i.indrelid = 'itemstatus'::regclass AND a.attname = 'orderid') THEN " +
+          "CREATE INDEX itemstatus_orderid_idx ON ItemStatus (orderid); " +
+        "END IF; " +
+      "END $$";
+
+   /*
+    * Sales rollups for the manager reports, see SalesReports.  Triggers
+    * add every new or changed order to an hourly row and every ordered
+    * item to a daily row, so a report reads a few hundred rollup rows
+    * instead of scanning Orders and ItemStatus.  Each row is split into
+    * ROLLUP_SLOTS slots picked by backend, so concurrent orders in the
+    * same hour do not queue on one row lock; reports sum the slots.
+    * Deleting old orders does not take them out of the rollups.
+    *
+    * An item's prep time runs from when it was ordered (orderedAt, set on
+    * insert) to when its status first becomes a done status.
+    */
+   private static final int ROLLUP_SLOTS = 8;
+
+   private static final String IS_DONE_FUNCTION =
+      "CREATE OR REPLACE FUNCTION cafe_is_done(status text) RETURNS boolean AS $$ " +
+         "SELECT lower(trim(status)) IN ('finished', 'done', 'completed', 'complete', 'ready', 'served') " +
+      "$$ LANGUAGE sql IMMUTABLE";
+
+   private static final String STAMP_ORDERED_FUNCTION =
+      "CREATE OR REPLACE FUNCTION cafe_stamp_ordered() RETURNS trigger AS $$ " +
+      "BEGIN NEW.orderedAt := COALESCE(NEW.lastUpdated, now()); RETURN NEW; END $$ LANGUAGE plpgsql";
+
+   private static final String ROLLUP_ORDERS_FUNCTION =
+      "CREATE OR REPLACE FUNCTION cafe_rollup_orders() RETURNS trigger AS $$ " +
+      "DECLARE s smallint := pg_backend_pid() % " + ROLLUP_SLOTS + "; " +
+      "BEGIN " +
+        "IF TG_OP = 'UPDATE' THEN " +
+          "IF NEW.total IS NOT DISTINCT FROM OLD.total " +
+             "AND NEW.timeStampRecieved IS NOT DISTINCT FROM OLD.timeStampRecieved THEN RETURN NULL; END IF; " +
+          "INSERT INTO sales_hourly AS h (hour, slot, orders, revenue) " +
+            "VALUES (date_trunc('hour', OLD.timeStampRecieved), s, -1, -COALESCE(OLD.total, 0)) " +
+            "ON CONFLICT (hour, slot) DO UPDATE SET orders = h.orders + EXCLUDED.orders, " +
+            "revenue = h.revenue + EXCLUDED.revenue; " +
+        "END IF; " +
+        "INSERT INTO sales_hourly AS h (hour, slot, orders, revenue) " +
+          "VALUES (date_trunc('hour', NEW.timeStampRecieved), s, 1, COALESCE(NEW.total, 0)) " +
+          "ON CONFLICT (hour, slot) DO UPDATE SET orders = h.orders + EXCLUDED.orders, " +
+          "revenue = h.revenue + EXCLUDED.revenue; " +
+        "RETURN NULL; " +
+      "END $$ LANGUAGE plpgsql";
+
+   private static final String ROLLUP_ITEMS_FUNCTION =
+      "CREATE OR REPLACE FUNCTION cafe_rollup_items() RETURNS trigger AS $$ " +
+      "DECLARE s smallint := pg_backend_pid() % " + ROLLUP_SLOTS + "; secs double precision; " +
+      "BEGIN " +
+        "IF TG_OP = 'INSERT' THEN " +
+          "INSERT INTO sales_item_daily AS d (day, itemName, slot, quantity, revenue) " +
+            "SELECT NEW.orderedAt::date, NEW.itemName, s, 1, COALESCE(" +
+              "(SELECT price FROM Menu WHERE itemName = NEW.itemName), 0) " +
+            "ON CONFLICT (day, itemName, slot) DO UPDATE SET quantity = d.quantity + 1, " +
+            "revenue = d.revenue + EXCLUDED.revenue; " +
+        "ELSIF cafe_is_done(NEW.status) AND NOT COALESCE(cafe_is_done(OLD.status), false) " +
+              "AND NEW.orderedAt IS NOT NULL THEN " +
+          "secs := GREATEST(extract(epoch FROM NEW.lastUpdated - NEW.orderedAt), 0); " +
+          "INSERT INTO prep_time_daily AS p (day, itemName, slot, finished, totalSeconds, maxSeconds) " +
+            "VALUES (NEW.lastUpdated::date, NEW.itemName, s, 1, secs, secs) " +
+            "ON CONFLICT (day, itemName, slot) DO UPDATE SET finished = p.finished + 1, " +
+            "totalSeconds = p.totalSeconds + EXCLUDED.totalSeconds, " +
+            "maxSeconds = GREATEST(p.maxSeconds, EXCLUDED.maxSeconds); " +
+        "END IF; " +
+        "RETURN NULL; " +
+      "END $$ LANGUAGE plpgsql";
+
+   // every migration, in version order
+   private static final List<Migration> MIGRATIONS = new ArrayList<Migration>();
+   static {
+      MIGRATIONS.add(new Migration(1, "indexes for the hot order and menu queries",
+         ORDERS_UNPAID_TIME_INDEX, ORDERS_LOGIN_TIME_INDEX, ITEMSTATUS_ITEMNAME_INDEX,
+         ITEMSTATUS_ORDERID_INDEX));
+      MIGRATIONS.add(new Migration(2, "exact NUMERIC(10,2) money columns",
+         "ALTER TABLE Menu ALTER COLUMN price TYPE numeric(10,2) USING round(price::numeric, 2)",
+         "ALTER TABLE Orders ALTER COLUMN total TYPE numeric(10,2) USING round(total::numeric, 2)"));
+      /*
+       * A row is stamped when it is written but seen when its transaction
+       * commits, so a counter cannot tell a reader which changes are still
+       * to come.  The writing transaction's id can be checked against the
+       * oldest one still running; see KitchenBoard.
+       */
+      MIGRATIONS.add(new Migration(3, "writing transaction ids on Orders and ItemStatus for delta reads",
+         "ALTER TABLE Orders ADD COLUMN IF NOT EXISTS changeXid bigint",
+         "ALTER TABLE ItemStatus ADD COLUMN IF NOT EXISTS changeXid bigint",
+         "CREATE OR REPLACE FUNCTION cafe_stamp_change() RETURNS trigger AS $$ " +
+            "BEGIN NEW.changeXid := txid_current(); RETURN NEW; END $$ LANGUAGE plpgsql",
+         "DROP TRIGGER IF EXISTS orders_stamp_change ON Orders",
+         "CREATE TRIGGER orders_stamp_change BEFORE INSERT OR UPDATE ON Orders " +
+            "FOR EACH ROW EXECUTE PROCEDURE cafe_stamp_change()",
+         "DROP TRIGGER IF EXISTS itemstatus_stamp_change ON ItemStatus",
+         "CREATE TRIGGER itemstatus_stamp_change BEFORE INSERT OR UPDATE ON ItemStatus " +
+            "FOR EACH ROW EXECUTE PROCEDURE cafe_stamp_change()",
+         "CREATE INDEX IF NOT EXISTS orders_change_xid_idx ON Orders (changeXid)",
+         "CREATE INDEX IF NOT EXISTS itemstatus_change_xid_idx ON ItemStatus (changeXid)"));
+      // the new index covers everything the old one served
+      MIGRATIONS.add(new Migration(4, "keyset index for paging order history",
+         ORDERS_LOGIN_TIME_ID_INDEX,
+         "DROP INDEX IF EXISTS orders_login_time_idx"));
+      // records of the local order journals already written, see OrderJournal
+      MIGRATIONS.add(new Migration(5, "applied order journal records",
+         "CREATE TABLE IF NOT EXISTS cafe_journal_applied (" +
+            "journalId text NOT NULL, seq bigint NOT NULL, appliedAt timestamp NOT NULL DEFAULT now(), " +
+            "PRIMARY KEY (journalId, seq))"));
+      // no order may slip in between the backfill and the triggers
+      MIGRATIONS.add(new Migration(6, "sales rollups for the manager reports",
+         "LOCK TABLE Orders, ItemStatus IN SHARE ROW EXCLUSIVE MODE",
+         "ALTER TABLE ItemStatus ADD COLUMN IF NOT EXISTS orderedAt timestamp",
+         "CREATE TABLE sales_hourly (hour timestamp NOT NULL, slot smallint NOT NULL, " +
+            "orders integer NOT NULL, revenue numeric(14,2) NOT NULL, PRIMARY KEY (hour, slot))",
+         "CREATE TABLE sales_item_daily (day date NOT NULL, itemName text NOT NULL, slot smallint NOT NULL, " +
+            "quantity integer NOT NULL, revenue numeric(14,2) NOT NULL, PRIMARY KEY (day, itemName, slot))",
+         "CREATE TABLE prep_time_daily (day date NOT NULL, itemName text NOT NULL, slot smallint NOT NULL, " +
+            "finished integer NOT NULL, totalSeconds double precision NOT NULL, " +
+            "maxSeconds double precision NOT NULL, PRIMARY KEY (day, itemName, slot))",
+         "INSERT INTO sales_hourly (hour, slot, orders, revenue) " +
+            "SELECT date_trunc('hour', timeStampRecieved), 0, count(*), COALESCE(sum(total), 0) " +
+            "FROM Orders WHERE timeStampRecieved IS NOT NULL GROUP BY 1",
+         "INSERT INTO sales_item_daily (day, itemName, slot, quantity, revenue) " +
+            "SELECT o.timeStampRecieved::date, s.itemName, 0, count(*), COALESCE(sum(m.price), 0) " +
+            "FROM ItemStatus s JOIN Orders o ON o.orderid = s.orderid " +
+            "LEFT JOIN Menu m ON m.itemName = s.itemName " +
+            "WHERE o.timeStampRecieved IS NOT NULL GROUP BY 1, 2",
+         IS_DONE_FUNCTION, STAMP_ORDERED_FUNCTION, ROLLUP_ORDERS_FUNCTION, ROLLUP_ITEMS_FUNCTION,
+         "CREATE TRIGGER itemstatus_stamp_ordered BEFORE INSERT ON ItemStatus " +
+            "FOR EACH ROW EXECUTE PROCEDURE cafe_stamp_ordered()",
+         "CREATE TRIGGER orders_rollup AFTER INSERT OR UPDATE OF total, timeStampRecieved ON Orders " +
+            "FOR EACH ROW EXECUTE PROCEDURE cafe_rollup_orders()",
+         "CREATE TRIGGER itemstatus_rollup AFTER INSERT OR UPDATE OF status ON ItemStatus " +
+            "FOR EACH ROW EXECUTE PROCEDURE cafe_rollup_items()"));
+      // the free-text favItems are carried over where they name menu items
+      MIGRATIONS.add(new Migration(7, "favorite items as menu references",
+         "CREATE TABLE FavoriteItems (" +
+            "login char(50) NOT NULL REFERENCES Users (login) ON DELETE CASCADE ON UPDATE CASCADE, " +
+            "itemName char(50) NOT NULL REFERENCES Menu (itemName) ON DELETE CASCADE ON UPDATE CASCADE, " +
+            "listOrder smallint NOT NULL, comments char(130), PRIMARY KEY (login, itemName))",
+         "INSERT INTO FavoriteItems (login, itemName, listOrder, comments) " +
+            "SELECT DISTINCT ON (u.login, m.itemName) u.login, m.itemName, f.n, '' " +
+            "FROM Users u, unnest(string_to_array(u.favItems, ',')) WITH ORDINALITY AS f(name, n) " +
+            "JOIN Menu m ON m.itemName = trim(f.name)::char(50) " +
+            "ORDER BY u.login, m.itemName, f.n"));
+   }
+
+   /**
+    * @return the version the latest migration brings the schema to
+    */
+   public static int latestVersion () {
+      return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+   }//end latestVersion
+
+   /**
+    * Method to apply every pending migration and verify the indexes.
+    *
+    * @param pool the pool to borrow a connection from
+    * @return the number of migrations applied
+    * @throws java.sql.SQLException when a migration failed; it is rolled back
+    */
+   public static int migrate (ConnectionPool pool) throws SQLException {
+      try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+         int applied = 0;
+         if (currentVersion(conn) < latestVersion())
+            applied = applyPending(conn.connection());
+         verifyIndexes(conn);
+         return applied;
+      }
+   }//end migrate
+
+   private static int currentVersion (ConnectionPool.PooledConnection conn) throws SQLException {
+      PreparedStatement stmt = conn.statements().prepare("SELECT to_regclass(?) IS NOT NULL");
+      stmt.setString(1, VERSION_TABLE);
+      try (ResultSet rs = stmt.executeQuery()) {
+         if (!rs.next() || !rs.getBoolean(1))
+            return 0;
+      }
+      try (ResultSet rs = conn.statements().prepare(
+            "SELECT COALESCE(max(version), 0) FROM " + VERSION_TABLE).executeQuery()) {
+         return rs.next() ? rs.getInt(1) : 0;
+      }
+   }//end currentVersion
+
+   private static int applyPending (Connection c) throws SQLException {
+      int applied = 0;
+      c.setAutoCommit(false);
+      try (Statement stmt = c.createStatement()) {
+         for (Migration m : MIGRATIONS) {
+            stmt.execute("SELECT pg_advisory_xact_lock(" + LOCK_KEY + ")");
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE + " (" +
+               "version integer PRIMARY KEY, " +
+               "description text NOT NULL, " +
+               "applied timestamp NOT NULL DEFAULT now())");
+            // another client may have applied it while we waited for the lock
+            boolean done;
+            try (ResultSet rs = stmt.executeQuery(
+                  "SELECT 1 FROM " + VERSION_TABLE + " WHERE version = " + m.version)) {
+               done = rs.next();
+            }
+            if (done) {
+               c.commit();
+               continue;
+            }//end if
+            try{
+               for (String sql : m.statements)
+                  stmt.execute(sql);
+               try (PreparedStatement insert = c.prepareStatement(
+                     "INSERT INTO " + VERSION_TABLE + " (version, description) VALUES (?, ?)")) {
+                  insert.setInt(1, m.version);
+                  insert.setString(2, m.description);
+                  insert.executeUpdate();
+               }
+               c.commit();
+               System.out.println("Applied schema migration " + m.version + ": " + m.description);
+               applied++;
+            }catch (SQLException e){
+               c.rollback();
+               throw new SQLException("Schema migration " + m.version + " (" + m.description
+                  + ") failed: " + e.getMessage(), e.getSQLState(), e);
+            }//end try
+         }//end for
+      }finally{
+         c.setAutoCommit(true);
+      }//end try
+      return applied;
+   }//end applyPending
+
+   private static void verifyIndexes (ConnectionPool.PooledConnection conn) throws SQLException {
+      Set<String> present = new HashSet<String>();
+      PreparedStatement stmt = conn.statements().prepare(
+         "SELECT indexname FROM pg_indexes WHERE indexname = ANY(?)");
+      stmt.setArray(1, conn.connection().createArrayOf("text", REQUIRED_INDEXES.keySet().toArray()));
+      try (ResultSet rs = stmt.executeQuery()) {
+         while (rs.next())
+            present.add(rs.getString(1));
+      }
+      for (Map.Entry<String, String> index : REQUIRED_INDEXES.entrySet()) {
+         if (present.contains(index.getKey()))
+            continue;
+         System.err.println("Index " + index.getKey() + " is missing, recreating it");
+         try (Statement create = conn.connection().createStatement()) {
+            create.execute(index.getValue());
+         }
+      }//end for
+   }//end verifyIndexes
+
+}//end SchemaMigrator
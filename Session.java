@@ -0,0 +1,200 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds who is logged in: the login, the role and the profile
+ * fields read by the single login query, including the user's favorite
+ * items, so reordering them needs no further lookup.  It replaces the static
+ * authorisedUser string, so handlers get the user from the session they
+ * are given instead of from global state.
+ *
+ * Open sessions are kept in a registry keyed by a random id, so a server
+ * can hold many sessions at once and look them up per request.
+ */
+public class Session {
+
+   /**
+    * The user types stored in Users.type.
+    */
+   public enum Role {
+      CUSTOMER("Customer"), EMPLOYEE("Employee"), MANAGER("Manager");
+
+      // the value stored in the Users.type column
+      public final String column;
+
+      Role (String column) {
+         this.column = column;
+      }//end Role
+
+      /**
+       * @param type the Users.type value; CHAR padding is ignored
+       * @return the matching role
+       * @throws java.lang.IllegalArgumentException for an unknown type
+       */
+      public static Role fromColumn (String type) {
+         String trimmed = type == null ? "" : type.trim();
+         for (Role role : values())
+            if (role.column.equalsIgnoreCase(trimmed))
+               return role;
+         throw new IllegalArgumentException("Unrecognized user type '" + trimmed + "'");
+      }//end fromColumn
+   }//end Role
+
+   // the login query; its columns are read by FROM_ROW
+   public static final String LOGIN_QUERY =
+      "SELECT u.login, u.type, u.phoneNum, " +
+      "ARRAY(SELECT rtrim(f.itemName) FROM FavoriteItems f WHERE f.login = u.login ORDER BY f.listOrder), " +
+      "ARRAY(SELECT COALESCE(rtrim(f.comments), '') FROM FavoriteItems f WHERE f.login = u.login ORDER BY f.listOrder) " +
+      "FROM Users u WHERE u.login = ? AND u.password = ?";
+
+   /**
+    * Builds a session from a row of LOGIN_QUERY.
+    */
+   public static final Cafe.RowMapper<Session> FROM_ROW = new Cafe.RowMapper<Session>() {
+      public Session map (ResultSet rs) throws SQLException {
+         return new Session(trim(rs.getString(1)), Role.fromColumn(rs.getString(2)),
+            trim(rs.getString(3)), new Favorites(strings(rs.getArray(4)), strings(rs.getArray(5))));
+      }
+   };
+
+   /**
+    * A user's favorite items in order, with the comments of each.
+    */
+   public static class Favorites {
+      public final List<String> items;
+      public final List<String> comments;
+
+      public Favorites (List<String> items, List<String> comments) {
+         this.items = Collections.unmodifiableList(items);
+         this.comments = Collections.unmodifiableList(comments);
+      }//end Favorites
+
+      public boolean isEmpty () {
+         return this.items.isEmpty();
+      }//end isEmpty
+   }//end Favorites
+
+   private static final ConcurrentHashMap<String, Session> OPEN = new ConcurrentHashMap<String, Session>();
+
+   public final String id;
+   public final String login;
+   public final Role role;
+   public final long openedMillis;
+
+   private volatile String _phoneNum;
+   private volatile Favorites _favorites;
+   private volatile long _lastAccessMillis;
+   private volatile long _lastWriteMillis = 0;
+
+   /**
+    * Creates a new session; call open() to register it
+    *
+    * @param login the user login
+    * @param role the user type
+    * @param phoneNum the phone number, may be null
+    * @param favorites the favorite items
+    */
+   public Session (String login, Role role, String phoneNum, Favorites favorites) {
+      this.id = UUID.randomUUID().toString();
+      this.login = login;
+      this.role = role;
+      this.openedMillis = System.currentTimeMillis();
+      this._phoneNum = phoneNum;
+      this._favorites = favorites;
+      this._lastAccessMillis = this.openedMillis;
+   }//end Session
+
+   /**
+    * Registers the session so it can be found by its id.
+    *
+    * @return this session
+    */
+   public Session open () {
+      OPEN.put(this.id, this);
+      return this;
+   }//end open
+
+   /**
+    * Removes the session from the registry.
+    */
+   public void close () {
+      OPEN.remove(this.id);
+   }//end close
+
+   /**
+    * @param id a session id
+    * @return the open session with that id, or null
+    */
+   public static Session lookup (String id) {
+      Session session = id == null ? null : OPEN.get(id);
+      if (session != null)
+         session.touch();
+      return session;
+   }//end lookup
+
+   /**
+    * @return all open sessions
+    */
+   public static Collection<Session> openSessions () {
+      return Collections.unmodifiableCollection(OPEN.values());
+   }//end openSessions
+
+   /**
+    * Records that the session was used now.
+    */
+   public void touch () {
+      this._lastAccessMillis = System.currentTimeMillis();
+   }//end touch
+
+   public long getLastAccessMillis () { return this._lastAccessMillis; }
+
+   /**
+    * Records that the session wrote to the database, see ReplicaRouter.
+    *
+    * @param millis when, from System.currentTimeMillis()
+    */
+   public void markWrite (long millis) {
+      this._lastWriteMillis = millis;
+   }//end markWrite
+
+   public long getLastWriteMillis () { return this._lastWriteMillis; }
+
+   public String getPhoneNum () { return this._phoneNum; }
+   public void setPhoneNum (String phoneNum) { this._phoneNum = phoneNum; }
+
+   public Favorites getFavorites () { return this._favorites; }
+   public void setFavorites (Favorites favorites) { this._favorites = favorites; }
+
+   private static List<String> strings (Array array) throws SQLException {
+      return array == null ? Collections.<String>emptyList() : Arrays.asList((String[]) array.getArray());
+   }//end strings
+
+   private static String trim (String value) {
+      return value == null ? null : value.trim();
+   }//end trim
+
+   @Override
+   public String toString () {
+      return this.login + " (" + this.role.column + ")";
+   }//end toString
+
+}//end Session
@@ -0,0 +1,259 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes statements that took longer than a threshold to a
+ * log file with their parameters, duration and the action that ran them,
+ * optionally followed by the query plan.
+ *
+ * The caller only compares the duration and, when it is over, hands the
+ * statement to a queue; a background thread writes the entry and runs
+ * the EXPLAIN.  SELECTs are explained with EXPLAIN (ANALYZE, BUFFERS),
+ * which runs them again, inside a transaction that is rolled back and
+ * has a statement timeout.  Writes get a plain EXPLAIN, which does not
+ * run them.  Only a sample of the slow statements is explained, at most
+ * maxPerMinute entries are logged, and entries are dropped when the
+ * queue is full, so a slow database is not made slower.
+ *
+ * Settings (system properties):
+ *   cafe.slowlog.thresholdMs        log statements slower than this, default -1 (off)
+ *   cafe.slowlog.file               log file, default cafe-slow.log
+ *   cafe.slowlog.explain            capture plans, default true
+ *   cafe.slowlog.sample             share of logged statements explained, default 1.0
+ *   cafe.slowlog.maxPerMinute       entries logged per minute, default 20
+ *   cafe.slowlog.explainTimeoutMs   statement timeout of an EXPLAIN ANALYZE, default 5000
+ *   cafe.slowlog.maxBytes           size at which the file is rotated, default 10 MB
+ *   cafe.slowlog.files              rotated files kept, default 5
+ */
+public class SlowQueryLog {
+
+   // a parameter longer than this is cut in the log
+   private static final int MAX_PARAM_LENGTH = 200;
+
+   /**
+    * One slow statement waiting to be written.
+    */
+   private static class Entry {
+      final long when = System.currentTimeMillis();
+      final String sql;
+      final Object[] params;
+      final long nanos;
+      final String action;
+      final boolean explain;
+
+      Entry (String sql, Object[] params, long nanos, String action, boolean explain) {
+         this.sql = sql;
+         this.params = params;
+         this.nanos = nanos;
+         this.action = action;
+         this.explain = explain;
+      }//end Entry
+   }//end Entry
+
+   private final ConnectionPool _pool;
+   private final long _thresholdNanos;
+   private final File _file;
+   private final boolean _explain;
+   private final double _sample;
+   private final int _maxPerMinute;
+   private final int _explainTimeoutMillis;
+   private final long _maxBytes;
+   private final int _files;
+
+   private final BlockingQueue<Entry> _queue = new ArrayBlockingQueue<Entry>(64);
+   private final AtomicLong _windowStart = new AtomicLong();
+   private final AtomicInteger _inWindow = new AtomicInteger();
+   private final AtomicLong _dropped = new AtomicLong();
+   private Thread _writer = null;
+
+   /**
+    * Creates a slow query log from the cafe.slowlog.* system properties
+    *
+    * @param pool the pool the EXPLAINs borrow connections from
+    */
+   public SlowQueryLog (ConnectionPool pool) {
+      this._pool = pool;
+      long threshold = Long.getLong("cafe.slowlog.thresholdMs", -1L);
+      this._thresholdNanos = threshold < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(threshold);
+      this._file = new File(System.getProperty("cafe.slowlog.file", "cafe-slow.log"));
+      this._explain = Boolean.parseBoolean(System.getProperty("cafe.slowlog.explain", "true"));
+      this._sample = Double.parseDouble(System.getProperty("cafe.slowlog.sample", "1.0"));
+      this._maxPerMinute = Integer.getInteger("cafe.slowlog.maxPerMinute", 20);
+      this._explainTimeoutMillis = Integer.getInteger("cafe.slowlog.explainTimeoutMs", 5000);
+      this._maxBytes = Long.getLong("cafe.slowlog.maxBytes", 10L * 1024 * 1024);
+      this._files = Math.max(1, Integer.getInteger("cafe.slowlog.files", 5));
+      if (isEnabled())
+         start();
+   }//end SlowQueryLog
+
+   /**
+    * @return true when a threshold is set
+    */
+   public boolean isEnabled () {
+      return this._thresholdNanos != Long.MAX_VALUE;
+   }//end isEnabled
+
+   /**
+    * Method to log a statement if it was slow.  Cheap when it was not.
+    *
+    * @param nanos how long the statement took
+    * @param sql the statement with '?' placeholders
+    * @param params the values bound to the placeholders
+    */
+   public void check (long nanos, String sql, Object[] params) {
+      if (nanos < this._thresholdNanos || !admit())
+         return;
+      boolean explain = this._explain && ThreadLocalRandom.current().nextDouble() < this._sample;
+      Entry entry = new Entry(sql, params.clone(), nanos, CafeMetrics.currentAction(), explain);
+      if (!this._queue.offer(entry))
+         this._dropped.incrementAndGet();
+   }//end check
+
+   // at most maxPerMinute entries in each minute
+   private boolean admit () {
+      long now = System.currentTimeMillis();
+      long start = this._windowStart.get();
+      if (now - start >= 60000 && this._windowStart.compareAndSet(start, now))
+         this._inWindow.set(0);
+      if (this._inWindow.incrementAndGet() <= this._maxPerMinute)
+         return true;
+      this._dropped.incrementAndGet();
+      return false;
+   }//end admit
+
+   private void start () {
+      this._writer = new Thread(new Runnable() {
+         public void run () {
+            while (true) {
+               Entry entry;
+               try{
+                  entry = SlowQueryLog.this._queue.take();
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+               write(entry);
+            }//end while
+         }
+      }, "cafe-slow-query-log");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end start
+
+   private void write (Entry entry) {
+      String plan = entry.explain ? explain(entry) : null;
+      rotate();
+      try (PrintWriter out = new PrintWriter(new FileWriter(this._file, true))) {
+         out.printf("-- %s  %.1f ms  action=%s%n", new Timestamp(entry.when), entry.nanos / 1e6,
+            entry.action == null ? "-" : entry.action);
+         long dropped = this._dropped.getAndSet(0);
+         if (dropped > 0)
+            out.println("-- " + dropped + " slow statements not logged (rate limit or queue full)");
+         out.println(entry.sql);
+         if (entry.params.length > 0) {
+            StringBuilder params = new StringBuilder("-- params:");
+            for (int i = 0; i < entry.params.length; i++)
+               params.append(" $").append(i + 1).append('=').append(render(entry.params[i]));
+            out.println(params);
+         }//end if
+         if (plan != null)
+            out.print(plan);
+         out.println();
+      }catch (IOException e){
+         System.err.println("Unable to write the slow query log " + this._file + ": " + e.getMessage());
+      }//end try
+   }//end write
+
+   private static String render (Object value) {
+      if (value == null)
+         return "NULL";
+      String s = value instanceof String ? "'" + value + "'" : String.valueOf(value);
+      return s.length() > MAX_PARAM_LENGTH ? s.substring(0, MAX_PARAM_LENGTH) + "..." : s;
+   }//end render
+
+   // true for statements EXPLAIN ANALYZE may run again
+   private static boolean isReadOnly (String sql) {
+      String s = sql.trim().toUpperCase();
+      if (s.startsWith("SELECT"))
+         return !s.contains("FOR UPDATE");
+      if (s.startsWith("WITH"))
+         return !s.matches("(?s).*\\b(INSERT|UPDATE|DELETE)\\b.*");
+      return false;
+   }//end isReadOnly
+
+   private String explain (Entry entry) {
+      boolean analyze = isReadOnly(entry.sql);
+      StringBuilder plan = new StringBuilder(analyze ? "-- EXPLAIN (ANALYZE, BUFFERS)\n" : "-- EXPLAIN\n");
+      try (ConnectionPool.PooledConnection conn = this._pool.borrow()) {
+         Connection c = conn.connection();
+         // the pool rolls the transaction back when the connection is returned
+         c.setAutoCommit(false);
+         try (Statement stmt = c.createStatement()) {
+            if (analyze)
+               stmt.execute("SET TRANSACTION READ ONLY");
+            stmt.execute("SET LOCAL statement_timeout = " + this._explainTimeoutMillis);
+         }
+         try (PreparedStatement stmt = c.prepareStatement(
+               (analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + entry.sql)) {
+            for (int i = 0; i < entry.params.length; i++)
+               stmt.setObject(i + 1, entry.params[i]);
+            try (ResultSet rs = stmt.executeQuery()) {
+               while (rs.next())
+                  plan.append(rs.getString(1)).append('\n');
+            }
+         }
+         c.rollback();
+      }catch (SQLException e){
+         plan.append("-- plan not available: ").append(e.getMessage()).append('\n');
+      }//end try
+      return plan.toString();
+   }//end explain
+
+   // log, log.1 ... log.(files-1); the oldest is deleted
+   private void rotate () {
+      if (this._file.length() < this._maxBytes)
+         return;
+      String name = this._file.getPath();
+      new File(name + "." + (this._files - 1)).delete();
+      for (int i = this._files - 2; i >= 1; i--)
+         new File(name + "." + i).renameTo(new File(name + "." + (i + 1)));
+      if (this._files > 1)
+         this._file.renameTo(new File(name + ".1"));
+      else
+         this._file.delete();
+   }//end rotate
+
+   /**
+    * Method to stop the background writer.  Entries still queued are lost.
+    */
+   public void close () {
+      if (this._writer != null)
+         this._writer.interrupt();
+   }//end close
+
+}//end SlowQueryLog
@@ -0,0 +1,181 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the prepared statements of one physical connection,
+ * keyed by their SQL text.  Reusing the same PreparedStatement lets the
+ * PostgreSQL driver switch to a named server-side statement, so the query
+ * is parsed and planned once instead of on every call.
+ *
+ * The cache is bounded and evicts the least recently used statement.
+ * A statement that failed because a schema change left its server-side
+ * plan unusable ("cached plan must not change result type") is dropped as
+ * well, since it would fail on every later use.  Other failures, such as
+ * constraint violations, keep the statement prepared.
+ * It is not thread safe; it belongs to exactly one connection.
+ */
+public class StatementCache {
+
+   // default number of statements kept open per connection
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // the connection the statements were prepared on
+   private final Connection _connection;
+
+   // access-ordered map so the eldest entry is the least recently used
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   /**
+    * Creates a new statement cache for a connection
+    *
+    * @param connection the physical connection statements are prepared on
+    * @param capacity the maximum number of open statements
+    */
+   public StatementCache (Connection connection, final int capacity) {
+      this._connection = connection;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns a prepared statement for the given SQL text, preparing it on
+    * the first use.  The caller must not close the returned statement.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return the cached prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt == null || stmt.isClosed()) {
+         stmt = this._connection.prepareStatement(sql);
+         this._statements.put(sql, stmt);
+      }//end if
+      return stmt;
+   }//end prepare
+
+   /**
+    * Runs a query on the cached statement for the given SQL text.  The
+    * statement is dropped from the cache when the query fails.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the result, to be closed by the caller
+    * @throws java.sql.SQLException when the query failed
+    */
+   public ResultSet executeQuery (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = bind(sql, params);
+      try{
+         return stmt.executeQuery();
+      }catch (SQLException e){
+         if (isStale(e))
+            evict(sql);
+         throw e;
+      }//end try
+   }//end executeQuery
+
+   /**
+    * Runs an update on the cached statement for the given SQL text.  The
+    * statement is dropped from the cache when the update fails.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when the update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = bind(sql, params);
+      try{
+         return stmt.executeUpdate();
+      }catch (SQLException e){
+         if (isStale(e))
+            evict(sql);
+         throw e;
+      }//end try
+   }//end executeUpdate
+
+   private PreparedStatement bind (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare(sql);
+      stmt.clearParameters();
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      return stmt;
+   }//end bind
+
+   /**
+    * Tells whether a statement failed because its cached plan (SQLState
+    * 0A000) or its server-side statement (26000) is no longer usable, so
+    * it has to be prepared again.  For a batch the chained exceptions of
+    * the failed statements are checked too.
+    *
+    * @param e the failure
+    * @return true when the statement should be evicted
+    */
+   public static boolean isStale (SQLException e) {
+      for (SQLException x = e; x != null; x = x.getNextException()) {
+         String state = x.getSQLState();
+         if ("0A000".equals(state) || "26000".equals(state))
+            return true;
+      }//end for
+      return false;
+   }//end isStale
+
+   /**
+    * Drops a statement from the cache, e.g. after it failed in a way that
+    * may have left it unusable.
+    *
+    * @param sql the SQL text of the statement
+    */
+   public void evict (String sql) {
+      closeQuietly(this._statements.remove(sql));
+   }//end evict
+
+   /**
+    * @return the number of statements currently cached
+    */
+   public int size () {
+      return this._statements.size();
+   }//end size
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear () {
+      for (PreparedStatement stmt : this._statements.values())
+         closeQuietly(stmt);
+      this._statements.clear();
+   }//end clear
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try{
+         if (stmt != null)
+            stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end StatementCache
@@ -0,0 +1,116 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * This class writes tab separated rows to a buffered writer.  Each row is
+ * rendered into one reusable StringBuilder and handed to the writer in a
+ * single call, so printing a large result does not pay for a synchronized
+ * System.out call per cell.
+ *
+ * With a page size set, output stops after every page and waits for the
+ * user to press Enter (or 'q' to stop).
+ */
+public class TablePrinter {
+
+   // one buffered writer for standard out; it goes through System.out,
+   // so it stays ordered with the prompts printed there
+   private static final Writer STDOUT =
+      new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+
+   private final Writer _out;
+   private final int _pageSize;
+   private final BufferedReader _pager;
+
+   // the row being rendered, reused for every row
+   private final StringBuilder _line = new StringBuilder(256);
+   private int _rowsOnPage = 0;
+   private boolean _stopped = false;
+
+   /**
+    * Creates a printer that writes to standard out
+    *
+    * @param pageSize rows per page, or 0 to print without stopping
+    * @param pager where the answer to the paging prompt is read from
+    */
+   public TablePrinter (int pageSize, BufferedReader pager) {
+      this(STDOUT, pageSize, pager);
+   }//end TablePrinter
+
+   /**
+    * Creates a printer
+    *
+    * @param out the writer rows are written to
+    * @param pageSize rows per page, or 0 to print without stopping
+    * @param pager where the answer to the paging prompt is read from
+    */
+   public TablePrinter (Writer out, int pageSize, BufferedReader pager) {
+      this._out = out;
+      this._pageSize = pageSize;
+      this._pager = pager;
+   }//end TablePrinter
+
+   /**
+    * Adds one cell to the current row.
+    *
+    * @param value the cell value, printed as "null" when null
+    * @return this printer
+    */
+   public TablePrinter cell (String value) {
+      this._line.append(value).append('\t');
+      return this;
+   }//end cell
+
+   /**
+    * Ends the current row and writes it out.
+    *
+    * @return false when the user asked to stop at a page prompt
+    * @throws java.io.IOException when the output could not be written
+    */
+   public boolean endRow () throws IOException {
+      this._line.append('\n');
+      this._out.append(this._line);
+      this._line.setLength(0);
+      if (this._pageSize > 0 && ++this._rowsOnPage >= this._pageSize) {
+         this._rowsOnPage = 0;
+         this._out.flush();
+         System.out.print("-- more (Enter to continue, q to stop) --");
+         System.out.flush();
+         String answer = this._pager.readLine();
+         if (answer == null || answer.trim().equalsIgnoreCase("q"))
+            this._stopped = true;
+      }//end if
+      return !this._stopped;
+   }//end endRow
+
+   /**
+    * @return true when the user asked to stop at a page prompt
+    */
+   public boolean isStopped () {
+      return this._stopped;
+   }//end isStopped
+
+   /**
+    * Writes out everything still buffered.
+    *
+    * @throws java.io.IOException when the output could not be written
+    */
+   public void flush () throws IOException {
+      this._out.flush();
+   }//end flush
+
+}//end TablePrinter
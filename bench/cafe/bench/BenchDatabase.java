@@ -0,0 +1,177 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package cafe.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * This class provides the database the benchmarks run against: a
+ * throwaway Postgres cluster started with initdb and pg_ctl in a temporary
+ * directory, seeded with the Cafe tables.  Nothing outside the directory
+ * is touched and stop() deletes it.  The cluster superuser is the OS
+ * user, which is who the driver logs in as when Cafe gives no user name.
+ *
+ * Settings (system properties):
+ *   cafe.bench.pgBin       directory of initdb and pg_ctl, default: found on the PATH
+ *   cafe.bench.menuItems   Menu rows, default 200
+ *   cafe.bench.users       Users rows, default 1000
+ *   cafe.bench.orders      Orders rows, default 100000
+ *   cafe.bench.orderItems  ItemStatus rows per order, default 3
+ */
+public class BenchDatabase {
+
+   public static final String DBNAME = "cafebench";
+
+   public final int menuItems = Integer.getInteger("cafe.bench.menuItems", 200);
+   public final int users = Integer.getInteger("cafe.bench.users", 1000);
+   public final int orders = Integer.getInteger("cafe.bench.orders", 100000);
+   public final int orderItems = Math.min(Integer.getInteger("cafe.bench.orderItems", 3), this.menuItems);
+
+   private final String _bin = System.getProperty("cafe.bench.pgBin", "");
+   private final String _user = System.getProperty("user.name");
+   private File _dir;
+   private int _port;
+
+   /*
+    * The course schema, before any SchemaMigrator migration.  Cafe applies
+    * the migrations when the benchmark creates it, like on a real install.
+    */
+   private static final String[] SCHEMA = {
+      "CREATE TABLE Users (phoneNum char(16), login char(50) PRIMARY KEY, password char(50) NOT NULL, " +
+         "favItems char(400), type char(8) NOT NULL)",
+      "CREATE TABLE Menu (itemName char(50) PRIMARY KEY, type char(20) NOT NULL, price real NOT NULL, " +
+         "description char(400), imageURL char(256))",
+      "CREATE TABLE Orders (orderid serial PRIMARY KEY, login char(50) REFERENCES Users (login), " +
+         "paid boolean, timeStampRecieved timestamp NOT NULL, total real NOT NULL)",
+      "CREATE TABLE ItemStatus (orderid integer REFERENCES Orders (orderid), " +
+         "itemName char(50) REFERENCES Menu (itemName), lastUpdated timestamp NOT NULL, " +
+         "status char(20), comments char(130), PRIMARY KEY (orderid, itemName))"
+   };
+
+   /**
+    * Method to create, start and seed the cluster.
+    *
+    * @throws java.io.IOException when initdb or pg_ctl failed
+    * @throws java.sql.SQLException when the database could not be seeded
+    */
+   public void start () throws IOException, SQLException {
+      this._dir = File.createTempFile("cafebench", "");
+      if (!this._dir.delete() || !this._dir.mkdir())
+         throw new IOException("Unable to create " + this._dir);
+      this._port = freePort();
+      File data = new File(this._dir, "data");
+      run(tool("initdb"), "-D", data.getPath(), "-U", this._user, "-A", "trust", "-E", "UTF8");
+      run(tool("pg_ctl"), "-D", data.getPath(), "-l", new File(this._dir, "log").getPath(), "-w",
+         "-o", "-p " + this._port + " -k " + this._dir.getPath() + " -c fsync=off", "start");
+
+      try (Connection c = DriverManager.getConnection(url("postgres"), this._user, "");
+           Statement stmt = c.createStatement()) {
+         stmt.execute("CREATE DATABASE " + DBNAME);
+      }
+      try (Connection c = DriverManager.getConnection(url(DBNAME), this._user, "");
+           Statement stmt = c.createStatement()) {
+         for (String sql : SCHEMA)
+            stmt.execute(sql);
+         seed(stmt);
+      }
+   }//end start
+
+   private void seed (Statement stmt) throws SQLException {
+      long start = System.currentTimeMillis();
+      stmt.execute("INSERT INTO Menu SELECT 'item' || i, (ARRAY['Drinks','Sweets','Soup'])[i % 3 + 1], " +
+         "round((1 + random() * 9)::numeric, 2), 'description of item ' || i, NULL " +
+         "FROM generate_series(1, " + this.menuItems + ") i");
+      stmt.execute("INSERT INTO Users SELECT lpad(i::text, 10, '0'), 'user' || i, 'pw', '', " +
+         "CASE WHEN i = 1 THEN 'Manager' WHEN i = 2 THEN 'Employee' ELSE 'Customer' END " +
+         "FROM generate_series(1, " + this.users + ") i");
+      // one order in ten is still open; older orders are further back in time
+      stmt.execute("INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+         "SELECT 'user' || (i % " + this.users + " + 1), i % 10 <> 0, " +
+         "now() - (" + this.orders + " - i) * INTERVAL '1 minute', 0 " +
+         "FROM generate_series(1, " + this.orders + ") i");
+      // distinct items per order: consecutive menu positions from a per-order start
+      stmt.execute("INSERT INTO ItemStatus SELECT o.orderid, " +
+         "'item' || ((o.orderid * 7 + j) % " + this.menuItems + " + 1), o.timeStampRecieved, " +
+         "'Finished', '' FROM Orders o, generate_series(0, " + (this.orderItems - 1) + ") j");
+      stmt.execute("UPDATE Orders o SET total = t.total FROM " +
+         "(SELECT s.orderid, sum(m.price) AS total FROM ItemStatus s JOIN Menu m ON m.itemName = s.itemName " +
+         "GROUP BY s.orderid) t WHERE t.orderid = o.orderid");
+      stmt.execute("ANALYZE");
+      System.out.println("Seeded " + this.menuItems + " items, " + this.users + " users, " +
+         this.orders + " orders in " + (System.currentTimeMillis() - start) + " ms");
+   }//end seed
+
+   /**
+    * Method to stop the cluster and delete its files.
+    */
+   public void stop () {
+      if (this._dir == null)
+         return;
+      try{
+         run(tool("pg_ctl"), "-D", new File(this._dir, "data").getPath(), "-m", "immediate", "stop");
+      }catch (IOException e){
+         System.err.println("Unable to stop the benchmark database: " + e.getMessage());
+      }//end try
+      delete(this._dir);
+      this._dir = null;
+   }//end stop
+
+   /**
+    * @return the port the cluster listens on, for the Cafe constructor
+    */
+   public String getPort () {
+      return Integer.toString(this._port);
+   }//end getPort
+
+   private String url (String db) {
+      return "jdbc:postgresql://127.0.0.1:" + this._port + "/" + db;
+   }//end url
+
+   private String tool (String name) {
+      return this._bin.isEmpty() ? name : new File(this._bin, name).getPath();
+   }//end tool
+
+   private static void run (String... command) throws IOException {
+      Process p = new ProcessBuilder(command).redirectErrorStream(true)
+         .redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+      try{
+         if (p.waitFor() != 0)
+            throw new IOException(Arrays.toString(command) + " exited with " + p.exitValue());
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted running " + command[0]);
+      }//end try
+   }//end run
+
+   private static int freePort () throws IOException {
+      try (ServerSocket socket = new ServerSocket(0)) {
+         return socket.getLocalPort();
+      }
+   }//end freePort
+
+   private static void delete (File f) {
+      File[] children = f.listFiles();
+      if (children != null)
+         for (File child : children)
+            delete(child);
+      f.delete();
+   }//end delete
+
+}//end BenchDatabase
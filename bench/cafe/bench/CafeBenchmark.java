@@ -0,0 +1,304 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package cafe.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the Cafe data-access methods and of the order
+ * workflows behind AddOrder and UpdateOrder, run against a seeded
+ * throwaway Postgres (see BenchDatabase).  Each benchmark reports
+ * throughput and sampled latency; main() also turns on the GC profiler,
+ * so every run shows the bytes allocated per operation.
+ *
+ * JMH refuses benchmarks in the default package and a named package
+ * cannot import Cafe, so the benchmarks call Cafe through method handles
+ * held in static finals; the JIT inlines them like direct calls.
+ *
+ * Build and run with the JMH jars and the Postgres driver on the class path:
+ *
+ *   javac -d out *.java
+ *   javac -cp out:jmh-core.jar:jmh-generator-annprocess.jar -d out bench/cafe/bench/*.java
+ *   java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar:postgresql.jar cafe.bench.CafeBenchmark [regexp]
+ *
+ * Keep the numbers of a run as the baseline before changing Cafe, and
+ * compare against them after.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class CafeBenchmark {
+
+   private static final Class<?> CAFE = cafeClass();
+   private static final MethodHandle NEW_CAFE =
+      constructor(String.class, String.class);
+   private static final MethodHandle EXECUTE_UPDATE =
+      method("executeUpdate", int.class, String.class, Object[].class);
+   private static final MethodHandle EXECUTE_QUERY =
+      method("executeQuery", int.class, String.class, Object[].class);
+   private static final MethodHandle EXISTS =
+      method("exists", boolean.class, String.class, Object[].class);
+   private static final MethodHandle QUERY_SCALAR_INT =
+      method("queryScalarInt", OptionalInt.class, String.class, Object[].class);
+   private static final MethodHandle EXECUTE_QUERY_AND_RETURN_RESULT =
+      method("executeQueryAndReturnResult", classNamed("ColumnarResult"), String.class, Object[].class);
+   private static final MethodHandle EXECUTE_QUERY_AND_PRINT_RESULT =
+      method("executeQueryAndPrintResult", int.class, String.class, Object[].class);
+   private static final MethodHandle PLACE_ORDER =
+      method("placeOrder", int.class, String.class, String.class, String.class);
+   private static final MethodHandle PLACE_BASKET =
+      method("placeOrder", int.class, String.class, List.class, List.class, List.class);
+   private static final MethodHandle ADD_ITEM_TO_ORDER =
+      method("addItemToOrder", boolean.class, int.class, String.class, String.class, String.class);
+   private static final MethodHandle CLEANUP =
+      method("cleanup", void.class);
+
+   private static Class<?> cafeClass () {
+      return classNamed("Cafe");
+   }//end cafeClass
+
+   private static Class<?> classNamed (String name) {
+      try{
+         return Class.forName(name);
+      }catch (ClassNotFoundException e){
+         throw new IllegalStateException(name + " is not on the class path", e);
+      }//end try
+   }//end classNamed
+
+   private static MethodHandle constructor (Class<?>... params) {
+      try{
+         return MethodHandles.publicLookup().findConstructor(CAFE, MethodType.methodType(void.class, params))
+            .asType(MethodType.methodType(Object.class, params));
+      }catch (ReflectiveOperationException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }//end constructor
+
+   // a handle taking the Cafe as Object, so callers need not name the class
+   private static MethodHandle method (String name, Class<?> returns, Class<?>... params) {
+      try{
+         MethodHandle h = MethodHandles.publicLookup().findVirtual(CAFE, name, MethodType.methodType(returns, params));
+         return h.asType(h.type().changeParameterType(0, Object.class)).asFixedArity();
+      }catch (ReflectiveOperationException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }//end method
+
+   private BenchDatabase _db;
+   private Object _esql;
+   private int _seededOrders;
+
+   @Setup(Level.Trial)
+   public void start () throws Exception {
+      // printed results would flood the JMH output; they still go through the printer
+      System.setOut(new PrintStream(new OutputStream() {
+         public void write (int b) { }
+         public void write (byte[] b, int off, int len) { }
+      }));
+      Class.forName("org.postgresql.Driver");
+      this._db = new BenchDatabase();
+      this._db.start();
+      try{
+         this._esql = (Object) NEW_CAFE.invokeExact(BenchDatabase.DBNAME, this._db.getPort());
+         OptionalInt maxOrder = (OptionalInt) QUERY_SCALAR_INT.invokeExact(this._esql,
+            "SELECT max(orderid) FROM Orders", new Object[0]);
+         this._seededOrders = maxOrder.orElse(0);
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end start
+
+   private static SQLException rethrow (Throwable e) {
+      if (e instanceof SQLException)
+         return (SQLException) e;
+      if (e instanceof RuntimeException)
+         throw (RuntimeException) e;
+      if (e instanceof Error)
+         throw (Error) e;
+      return new SQLException(e);
+   }//end rethrow
+
+   // orders placed by the write benchmarks are removed after every iteration,
+   // so each iteration sees the seeded volume
+   @TearDown(Level.Iteration)
+   public void removePlacedOrders () throws SQLException {
+      try{
+         int items = (int) EXECUTE_UPDATE.invokeExact(this._esql,
+            "DELETE FROM ItemStatus WHERE orderid > ?", new Object[] {this._seededOrders});
+         int orders = (int) EXECUTE_UPDATE.invokeExact(this._esql,
+            "DELETE FROM Orders WHERE orderid > ?", new Object[] {this._seededOrders});
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end removePlacedOrders
+
+   @TearDown(Level.Trial)
+   public void stop () {
+      if (this._esql != null) {
+         try{
+            CLEANUP.invokeExact(this._esql);
+         }catch (Throwable e){
+            System.err.println("Unable to close Cafe: " + e.getMessage());
+         }//end try
+      }//end if
+      if (this._db != null)
+         this._db.stop();
+   }//end stop
+
+   private String randomUser () {
+      return "user" + (3 + ThreadLocalRandom.current().nextInt(this._db.users - 2));
+   }//end randomUser
+
+   private String randomItem () {
+      return "item" + (1 + ThreadLocalRandom.current().nextInt(this._db.menuItems));
+   }//end randomItem
+
+   @Benchmark
+   public int executeQuery () throws SQLException {
+      try{
+         return (int) EXECUTE_QUERY.invokeExact(this._esql,
+            "SELECT * FROM Users WHERE login = ?", new Object[] {randomUser()});
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end executeQuery
+
+   @Benchmark
+   public boolean exists () throws SQLException {
+      try{
+         return (boolean) EXISTS.invokeExact(this._esql,
+            "SELECT 1 FROM Users WHERE login = ? LIMIT 1", new Object[] {randomUser()});
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end exists
+
+   @Benchmark
+   public Object executeQueryAndReturnResult () throws SQLException {
+      try{
+         return EXECUTE_QUERY_AND_RETURN_RESULT.invoke(this._esql,
+            "SELECT * FROM Orders WHERE login = ? ORDER BY timeStampRecieved DESC LIMIT 20",
+            new Object[] {randomUser()});
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   @Benchmark
+   public int executeQueryAndPrintResult () throws SQLException {
+      // the ViewCurrentOrder query
+      try{
+         return (int) EXECUTE_QUERY_AND_PRINT_RESULT.invokeExact(this._esql,
+            "SELECT * FROM Orders WHERE timeStampRecieved >= NOW() - INTERVAL '1' DAY AND paid = false",
+            new Object[0]);
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end executeQueryAndPrintResult
+
+   @Benchmark
+   public int addOrderOneItem () throws SQLException {
+      try{
+         return (int) PLACE_ORDER.invokeExact(this._esql, randomUser(), randomItem(), "");
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end addOrderOneItem
+
+   @Benchmark
+   public int addOrderBasket () throws SQLException {
+      int first = ThreadLocalRandom.current().nextInt(this._db.menuItems);
+      List<String> items = new ArrayList<String>();
+      for (int i = 0; i < 3; i++)
+         items.add("item" + ((first + i) % this._db.menuItems + 1));
+      List<String> comments = Arrays.asList("", "", "");
+      List<String> rejected = new ArrayList<String>();
+      try{
+         return (int) PLACE_BASKET.invokeExact(this._esql, randomUser(), items, comments, rejected);
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end addOrderBasket
+
+   /**
+    * An open order with one item, placed before each UpdateOrder call.
+    */
+   @State(Scope.Thread)
+   public static class OpenOrder {
+      String login;
+      String next;
+      int orderid;
+
+      @Setup(Level.Invocation)
+      public void place (CafeBenchmark bench) throws SQLException {
+         int item = ThreadLocalRandom.current().nextInt(bench._db.menuItems);
+         this.login = bench.randomUser();
+         this.next = "item" + ((item + 1) % bench._db.menuItems + 1);
+         try{
+            this.orderid = (int) PLACE_ORDER.invokeExact(bench._esql, this.login, "item" + (item + 1), "");
+         }catch (Throwable e){
+            throw rethrow(e);
+         }//end try
+      }//end place
+   }//end OpenOrder
+
+   @Benchmark
+   public boolean updateOrderAddItem (OpenOrder order) throws SQLException {
+      try{
+         return (boolean) ADD_ITEM_TO_ORDER.invokeExact(this._esql, order.orderid, order.login, order.next, "");
+      }catch (Throwable e){
+         throw rethrow(e);
+      }//end try
+   }//end updateOrderAddItem
+
+   public static void main (String[] args) throws RunnerException {
+      Options options = new OptionsBuilder()
+         .include(CafeBenchmark.class.getSimpleName() + (args.length > 0 ? "." + args[0] : ""))
+         .addProfiler(GCProfiler.class)
+         .build();
+      new Runner(options).run();
+   }//end main
+
+}//end CafeBenchmark
@@ -0,0 +1,141 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Checks that the kitchen board shows an order whose transaction began
+ * before, and committed after, many other orders the board already read.
+ * A copy of the database taken before the orders is configured as a
+ * replica, so reads the router sends there miss them, like on a replica
+ * that lags.  Runs against a scratch database holding at least one user,
+ * which it fills with orders, and exits with status 1 when a check fails:
+ *
+ *   javac -d out *.java test/KitchenBoardTest.java
+ *   java -cp out:postgresql.jar KitchenBoardTest <dbname> <port>
+ */
+public class KitchenBoardTest {
+
+   private static final String NEW_ORDER =
+      "INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+      "SELECT min(login), false, now(), 0 FROM Users RETURNING orderid";
+
+   // more orders than any fixed re-read window would cover
+   private static final int OTHER_ORDERS = 5000;
+
+   // the replica that never replays anything
+   private static final String STALE_SUFFIX = "_stale";
+
+   public static void main (String[] args) throws Exception {
+      if (args.length != 2) {
+         System.err.println("Usage: java KitchenBoardTest <dbname> <port>");
+         System.exit(2);
+      }//end if
+      Class.forName("org.postgresql.Driver");
+      String server = "jdbc:postgresql://127.0.0.1:" + args[1] + "/";
+      String url = server + args[0];
+      String stale = args[0] + STALE_SUFFIX;
+      String user = System.getProperty("user.name");
+      Cafe esql = null;
+      int failed = 0;
+      try{
+         createStaleCopy(server, user, args[0], stale);
+         System.setProperty("cafe.replicas", server + stale);
+         esql = new Cafe(args[0], args[1]);
+         try (Connection slow = DriverManager.getConnection(url, user, "");
+              Connection fast = DriverManager.getConnection(url, user, "")) {
+            KitchenBoard board;
+            CafeMetrics.Action a = CafeMetrics.action("ViewCurrentOrder");
+            try{
+               board = new KitchenBoard(esql);
+            }finally{
+               a.close();
+            }//end try
+
+            // the slow transaction writes first and commits last
+            slow.setAutoCommit(false);
+            int slowOrder = insertOrder(slow);
+            int lastFastOrder = 0;
+            fast.setAutoCommit(false);
+            for (int i = 0; i < OTHER_ORDERS; i++)
+               lastFastOrder = insertOrder(fast);
+            fast.commit();
+
+            a = CafeMetrics.action("ViewCurrentOrder");
+            try{
+               failed += check(!esql.exists("SELECT 1 FROM Orders WHERE orderid = ?", lastFastOrder),
+                  "the action's reads go to the stale replica");
+               board.refresh();
+               failed += check(board.shows(lastFastOrder), "the committed orders are shown");
+               failed += check(!board.shows(slowOrder), "the uncommitted order is not shown");
+
+               slow.commit();
+               board.refresh();
+               failed += check(board.shows(slowOrder), "the order committed last is shown");
+
+               // nothing is left to re-read once no transaction is running
+               board.refresh();
+               failed += check(board.refresh() == 0, "an idle refresh reads no rows");
+            }finally{
+               a.close();
+            }//end try
+         }
+      }finally{
+         if (esql != null)
+            esql.cleanup();
+         dropStaleCopy(server, user, stale);
+      }//end try
+      System.out.println(failed == 0 ? "OK" : failed + " checks failed");
+      if (failed > 0)
+         System.exit(1);
+   }//end main
+
+   // a migrated copy of the database as it is before the test writes anything
+   private static void createStaleCopy (String server, String user, String dbname, String stale) throws SQLException {
+      dropStaleCopy(server, user, stale);
+      try (Connection c = DriverManager.getConnection(server + "postgres", user, "");
+           Statement stmt = c.createStatement()) {
+         stmt.execute("CREATE DATABASE " + stale + " TEMPLATE " + dbname);
+      }
+      ConnectionPool pool = new ConnectionPool(server + stale, new ConnectionPool.Config());
+      try{
+         SchemaMigrator.migrate(pool);
+      }finally{
+         pool.close();
+      }//end try
+   }//end createStaleCopy
+
+   private static void dropStaleCopy (String server, String user, String stale) throws SQLException {
+      try (Connection c = DriverManager.getConnection(server + "postgres", user, "");
+           Statement stmt = c.createStatement()) {
+         stmt.execute("DROP DATABASE IF EXISTS " + stale);
+      }
+   }//end dropStaleCopy
+
+   private static int insertOrder (Connection c) throws SQLException {
+      try (Statement stmt = c.createStatement();
+           ResultSet rs = stmt.executeQuery(NEW_ORDER)) {
+         rs.next();
+         return rs.getInt(1);
+      }
+   }//end insertOrder
+
+   private static int check (boolean passed, String what) {
+      System.out.println((passed ? "passed: " : "FAILED: ") + what);
+      return passed ? 0 : 1;
+   }//end check
+
+}//end KitchenBoardTest